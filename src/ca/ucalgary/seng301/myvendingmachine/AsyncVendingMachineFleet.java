@@ -0,0 +1,264 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fleet of vending machines addressed by ID whose operations return at
+ * once with a {@link Future} of their result. Each machine is an actor: its
+ * operations go into its own lock-free mailbox, and are carried out in the
+ * order they were sent by whichever thread of a small worker pool the
+ * machine is scheduled on, one machine per thread at a time. Callers never
+ * wait for a lock or for the machine, and machines do not wait for each
+ * other, so throughput grows with the number of machines up to the number of
+ * workers.
+ * 
+ * <p>
+ * Operations that would throw, including those on a machine that has not
+ * been constructed, complete their future exceptionally instead.
+ */
+public class AsyncVendingMachineFleet implements Closeable {
+
+	private static final int BATCH = 64;									//Operations run before a machine yields its worker
+
+	private final AtomicReferenceArray<Machine> machines;
+	private final ExecutorService workers;
+
+	/**
+	 * @param capacity
+	 *            the number of machine IDs, from 0 to capacity - 1
+	 * @param workerCount
+	 *            the number of worker threads shared by the machines
+	 */
+	public AsyncVendingMachineFleet(int capacity, int workerCount) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("The fleet capacity must be positive.");
+		}
+		if (workerCount <= 0) {
+			throw new IllegalArgumentException("The worker count must be positive.");
+		}
+		machines = new AtomicReferenceArray<Machine>(capacity);
+		final AtomicInteger threadNumber = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "machine-worker-" + threadNumber.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public int capacity() {
+		return machines.length();
+	}
+
+	/**
+	 * Constructs the machine with the given ID, replacing it if it already
+	 * exists once its earlier operations are done.
+	 */
+	public Future<Void> construct(int machineId, final List<Integer> coinKinds, final int selectionButtonCount) {
+		if (machineId < 0 || machineId >= machines.length()) {
+			return failed(new IllegalArgumentException("Machine " + machineId + " is not in the fleet."));
+		}
+		Machine machine = machines.get(machineId);
+		if (machine == null) {
+			machines.compareAndSet(machineId, null, new Machine());
+			machine = machines.get(machineId);								//Whoever won the race made the machine
+		}
+		final VendingMachineFactory factory = machine.factory;
+		return machine.send(new Callable<Void>() {
+			@Override
+			public Void call() {
+				factory.construct(coinKinds, selectionButtonCount);
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> configure(int machineId, final List<String> popNames, final List<Integer> popCosts) {
+		Machine machine = machine(machineId);
+		if (machine == null) {
+			return notConstructed(machineId);
+		}
+		final VendingMachineFactory factory = machine.factory;
+		return machine.send(new Callable<Void>() {
+			@Override
+			public Void call() {
+				factory.configure(popNames, popCosts);
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> load(int machineId, final List<Integer> coinCounts, final List<Integer> popCounts) {
+		Machine machine = machine(machineId);
+		if (machine == null) {
+			return notConstructed(machineId);
+		}
+		final VendingMachineFactory factory = machine.factory;
+		return machine.send(new Callable<Void>() {
+			@Override
+			public Void call() {
+				factory.load(coinCounts, popCounts);
+				return null;
+			}
+		});
+	}
+
+	public Future<List<Object>> unload(int machineId) {
+		Machine machine = machine(machineId);
+		if (machine == null) {
+			return notConstructed(machineId);
+		}
+		final VendingMachineFactory factory = machine.factory;
+		return machine.send(new Callable<List<Object>>() {
+			@Override
+			public List<Object> call() {
+				return factory.unload();
+			}
+		});
+	}
+
+	public Future<List<Object>> extract(int machineId) {
+		Machine machine = machine(machineId);
+		if (machine == null) {
+			return notConstructed(machineId);
+		}
+		final VendingMachineFactory factory = machine.factory;
+		return machine.send(new Callable<List<Object>>() {
+			@Override
+			public List<Object> call() {
+				return new DeliveryChute(factory.extract());				//A later extract reuses the machine's chute
+			}
+		});
+	}
+
+	public Future<Void> insert(int machineId, final int value) {
+		Machine machine = machine(machineId);
+		if (machine == null) {
+			return notConstructed(machineId);
+		}
+		final VendingMachineFactory factory = machine.factory;
+		return machine.send(new Callable<Void>() {
+			@Override
+			public Void call() {
+				factory.insert(value);
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> press(int machineId, final int value) {
+		Machine machine = machine(machineId);
+		if (machine == null) {
+			return notConstructed(machineId);
+		}
+		final VendingMachineFactory factory = machine.factory;
+		return machine.send(new Callable<Void>() {
+			@Override
+			public Void call() {
+				factory.press(value);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Stops the workers once the operations already sent are done. Sending
+	 * operations afterwards throws a RejectedExecutionException; one sent
+	 * while the fleet is closing runs on the sending thread instead.
+	 */
+	@Override
+	public void close() {
+		workers.shutdown();
+	}
+
+	/**
+	 * @return the machine with the given ID, or null if it has not been
+	 *         constructed or is not in the fleet
+	 */
+	private Machine machine(int machineId) {
+		return machineId >= 0 && machineId < machines.length() ? machines.get(machineId) : null;
+	}
+
+	private <T> Future<T> notConstructed(int machineId) {
+		if (machineId < 0 || machineId >= machines.length()) {
+			return failed(new IllegalArgumentException("Machine " + machineId + " is not in the fleet."));
+		}
+		return failed(new IllegalStateException("Machine " + machineId + " has not been constructed."));
+	}
+
+	private static <T> Future<T> failed(final RuntimeException e) {
+		FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+			@Override
+			public T call() {
+				throw e;
+			}
+		});
+		task.run();
+		return task;
+	}
+
+	/**
+	 * One machine and its mailbox. The machine is scheduled on a worker
+	 * whenever its mailbox has operations and it is not already scheduled,
+	 * so at most one worker runs its operations at a time.
+	 */
+	private final class Machine implements Runnable {
+		final VendingMachineFactory factory = new VendingMachineFactory();
+		private final ConcurrentLinkedQueue<FutureTask<?>> mailbox = new ConcurrentLinkedQueue<FutureTask<?>>();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+
+		<T> Future<T> send(Callable<T> operation) {
+			if (workers.isShutdown()) {
+				throw new RejectedExecutionException("The fleet has been closed.");
+			}
+			FutureTask<T> task = new FutureTask<T>(operation);
+			mailbox.offer(task);
+			if (scheduled.compareAndSet(false, true)) {
+				schedule();
+			}
+			return task;
+		}
+
+		/**
+		 * Hands the machine to a worker, or runs it on this thread if the
+		 * workers have stopped taking work, so that no mailbox is stranded.
+		 */
+		private void schedule() {
+			try {
+				workers.execute(this);
+			} catch (RejectedExecutionException e) {
+				run();
+			}
+		}
+
+		@Override
+		public void run() {
+			boolean closing = workers.isShutdown();								//Drain the mailbox rather than yield
+			for (int i = 0; closing || i < BATCH; i++) {
+				FutureTask<?> task = mailbox.poll();
+				if (task == null) {
+					break;
+				}
+				task.run();
+			}
+			scheduled.set(false);
+			if (!mailbox.isEmpty() && scheduled.compareAndSet(false, true)) {	//Sent while the flag was still set
+				schedule();
+			}
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.util.Arrays;
+
+/**
+ * Remembers which amounts of change the coins in a coin dispenser can pay
+ * exactly, as a bitset over the amounts up to a limit, so that whether a sale
+ * can be settled is a single bit test. Loading coins updates the bitset in
+ * place; paying or unloading coins only marks it stale, and it is rebuilt the
+ * next time it is asked, since the float shrinks far less often than it is
+ * consulted.
+ * 
+ * <p>
+ * The machine is in the exact change only state when some amount below the
+ * largest coin kind, that the coin kinds could pay if coins were unlimited,
+ * cannot be paid from the loaded coins.
+ */
+public class ChangeAvailability {
+
+	private final int[] values;												//Coin kind values, in construction order
+	private final int limit;												//Largest amount tracked
+	private final long[] reachable;											//Bit a is set if the loaded coins can pay a exactly
+	private final long[] expected;											//Amounts that must be reachable to give change freely
+	private boolean stale = true;
+	private boolean exactChangeOnly;
+
+	/**
+	 * @param values
+	 *            the value of each coin kind, in construction order
+	 * @param limit
+	 *            the largest amount of change to track
+	 */
+	public ChangeAvailability(int[] values, int limit) {
+		if (limit < 0) {
+			throw new IllegalArgumentException("The change limit cannot be negative.");
+		}
+		this.values = values.clone();
+		this.limit = limit;
+		this.reachable = new long[(limit >>> 6) + 1];
+		this.expected = new long[reachable.length];
+
+		int largest = 0;
+		for (int value : values) {
+			largest = Math.max(largest, value);
+		}
+		boolean[] payable = new boolean[Math.min(largest, limit + 1)];
+		if (payable.length > 0) {
+			payable[0] = true;
+		}
+		for (int amount = 1; amount < payable.length; amount++) {
+			for (int value : values) {
+				payable[amount] |= value <= amount && payable[amount - value];
+			}
+			if (payable[amount]) {
+				expected[amount >>> 6] |= 1L << amount;
+			}
+		}
+	}
+
+	/**
+	 * A copy of another's bitset, which then changes independently of it.
+	 */
+	public ChangeAvailability(ChangeAvailability original) {
+		this.values = original.values;
+		this.limit = original.limit;
+		this.reachable = original.reachable.clone();
+		this.expected = original.expected;									//Never changes
+		this.stale = original.stale;
+		this.exactChangeOnly = original.exactChangeOnly;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Forgets the bitset after coins have been taken out of the dispenser.
+	 */
+	public void invalidate() {
+		stale = true;
+	}
+
+	/**
+	 * Updates the bitset after coins of one kind have been put into the
+	 * dispenser. A negative count takes coins out, and makes it stale.
+	 */
+	public void added(int coinKind, int count) {
+		if (count < 0) {
+			stale = true;
+		} else if (!stale && count > 0) {
+			addCoins(values[coinKind], count);
+			exactChangeOnly = missesExpected();
+		}
+	}
+
+	/**
+	 * @param amount
+	 *            the change owed, at most the limit
+	 * @param coinCounts
+	 *            the number of coins loaded for each coin kind
+	 * @return whether the exact amount can be paid from the loaded coins
+	 */
+	public boolean canPay(int amount, int[] coinCounts) {
+		if (amount <= 0) {
+			return amount == 0;
+		}
+		refresh(coinCounts);
+		return (reachable[amount >>> 6] & (1L << amount)) != 0;
+	}
+
+	/**
+	 * @param coinCounts
+	 *            the number of coins loaded for each coin kind
+	 * @return whether some change that the coin kinds could give cannot be
+	 *         paid from the loaded coins
+	 */
+	public boolean isExactChangeOnly(int[] coinCounts) {
+		refresh(coinCounts);
+		return exactChangeOnly;
+	}
+
+	private void refresh(int[] coinCounts) {
+		if (stale) {
+			Arrays.fill(reachable, 0L);
+			reachable[0] = 1L;
+			for (int i = 0; i < values.length; i++) {
+				addCoins(values[i], coinCounts[i]);
+			}
+			exactChangeOnly = missesExpected();
+			stale = false;
+		}
+	}
+
+	/**
+	 * Adds up to count more coins of a value to every reachable amount, with
+	 * the coins split into groups of 1, 2, 4, ... so that every count can be
+	 * made from them.
+	 */
+	private void addCoins(int value, int count) {
+		int left = Math.min(count, limit / value);							//More could not reach a tracked amount
+		for (int multiple = 1; left > 0; multiple <<= 1) {
+			int size = Math.min(multiple, left);
+			orShifted(size * value);
+			left -= size;
+		}
+	}
+
+	/**
+	 * Sets every bit that is set a given distance below it.
+	 */
+	private void orShifted(int distance) {
+		int words = distance >>> 6;
+		int bits = distance & 63;
+		for (int i = reachable.length - 1; i >= words; i--) {					//High words first, so each reads unchanged words
+			long shifted = reachable[i - words] << bits;
+			if (bits != 0 && i - words > 0) {
+				shifted |= reachable[i - words - 1] >>> (64 - bits);
+			}
+			reachable[i] |= shifted;
+		}
+	}
+
+	private boolean missesExpected() {
+		for (int i = 0; i < expected.length; i++) {
+			if ((expected[i] & ~reachable[i]) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,259 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Works out which coins to return as change. It does not depend on the order
+ * in which the coin kinds were constructed, honours the number of coins
+ * actually loaded for each kind, and pays the fewest coins possible.
+ * 
+ * <p>
+ * The tables that only depend on the coin kinds are built once, when the
+ * machine is constructed: the coin kinds in descending order of value, and
+ * the fewest coins needed for every amount up to a ceiling when coins are
+ * unlimited. The latter answers up front whether an amount can be paid at all,
+ * and is a lower bound on the coins needed, so whenever one greedy pass over
+ * the loaded coins meets it the request is answered without searching; the
+ * rest fall back to a bounded knapsack over the loaded coins. Above the
+ * ceiling there is no table to check against, so a greedy pass is only
+ * trusted when the coin kinds are canonical and it pays exactly; otherwise
+ * the knapsack runs there too, in time and space proportional to the amount.
+ */
+public class ChangeMaker {
+
+	public static final int DEFAULT_TABLE_CEILING = 10000;
+
+	/**
+	 * The largest ceiling allowed, which keeps the tables of one set of coin
+	 * kinds to about 4 MB.
+	 */
+	public static final int MAX_TABLE_CEILING = 1 << 20;
+
+	private static final int UNREACHABLE = Integer.MAX_VALUE;
+
+	private final int[] values;												//Coin kind values, in construction order
+	private final int[] descending;											//Coin kind indices, highest value first
+	private final int ceiling;
+	private final int[] fewestCoins;										//Fewest unlimited coins for each amount, or UNREACHABLE
+	private final boolean canonical;
+
+	//Scratch space for the bounded knapsack, reused between requests
+	private int[] bestCoins = new int[0];
+	private long[] choices = new long[0];
+	private int[] itemKinds = new int[0];
+	private int[] itemMultiples = new int[0];
+	private final int[] scratchTaken;
+
+	/**
+	 * @param values
+	 *            the value of each coin kind, in construction order; each must
+	 *            be positive and unique
+	 * @param ceiling
+	 *            the largest amount to precompute tables for, at most
+	 *            {@link #MAX_TABLE_CEILING}
+	 */
+	public ChangeMaker(int[] values, int ceiling) {
+		if (ceiling < 0 || ceiling > MAX_TABLE_CEILING) {
+			throw new IllegalArgumentException("The change table ceiling must be between 0 and " + MAX_TABLE_CEILING + ".");
+		}
+		this.values = values.clone();
+		this.ceiling = ceiling;
+		this.scratchTaken = new int[values.length];
+
+		Integer[] order = new Integer[values.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(ChangeMaker.this.values[b], ChangeMaker.this.values[a]);
+			}
+		});
+		descending = new int[order.length];
+		for (int i = 0; i < order.length; i++) {
+			descending[i] = order[i];
+		}
+
+		fewestCoins = new int[ceiling + 1];
+		Arrays.fill(fewestCoins, 1, fewestCoins.length, UNREACHABLE);
+		for (int value : this.values) {
+			for (int amount = value; amount <= ceiling; amount++) {
+				int previous = fewestCoins[amount - value];
+				if (previous != UNREACHABLE && previous + 1 < fewestCoins[amount]) {
+					fewestCoins[amount] = previous + 1;
+				}
+			}
+		}
+		canonical = checkCanonical();
+	}
+
+	/**
+	 * A change maker for the same coin kinds that shares the tables of
+	 * another, which never change, but has its own scratch space, so that the
+	 * two can be used by different threads.
+	 */
+	ChangeMaker(ChangeMaker tables) {
+		this.values = tables.values;
+		this.descending = tables.descending;
+		this.ceiling = tables.ceiling;
+		this.fewestCoins = tables.fewestCoins;
+		this.canonical = tables.canonical;
+		this.scratchTaken = new int[values.length];
+	}
+
+	/**
+	 * @return whether greedy change is always optimal for these coin kinds
+	 *         when coins are unlimited
+	 */
+	public boolean isCanonical() {
+		return canonical;
+	}
+
+	public int getCeiling() {
+		return ceiling;
+	}
+
+	/**
+	 * @param amount
+	 *            the change owed
+	 * @param coinCounts
+	 *            the number of coins loaded for each coin kind
+	 * @return whether the exact amount can be paid from the loaded coins
+	 */
+	public boolean canMakeChange(int amount, int[] coinCounts) {
+		if (amount > 0 && amount <= ceiling && fewestCoins[amount] == UNREACHABLE) {
+			return false;														//Not even unlimited coins could pay it exactly
+		}
+		return makeChange(amount, coinCounts, scratchTaken) == amount;
+	}
+
+	/**
+	 * Chooses the coins to pay an amount of change. When the exact amount
+	 * cannot be paid, it chooses coins for the largest amount below it that
+	 * can. The coin counts are not changed.
+	 * 
+	 * @param amount
+	 *            the change owed
+	 * @param coinCounts
+	 *            the number of coins loaded for each coin kind
+	 * @param taken
+	 *            receives the number of coins to pay of each coin kind
+	 * @return the value of the coins chosen
+	 */
+	public int makeChange(int amount, int[] coinCounts, int[] taken) {
+		Arrays.fill(taken, 0);
+		if (amount <= 0) {
+			return 0;
+		}
+
+		//Nothing between the last amount unlimited coins could pay and this one can be paid
+		int target = amount;
+		while (target <= ceiling && fewestCoins[target] == UNREACHABLE) {
+			target--;
+		}
+
+		//Greedy pass; it is optimal if it pays exactly with the fewest coins unlimited coins could
+		int remaining = target;
+		int coins = 0;
+		long loadedValue = 0;
+		for (int kind : descending) {
+			loadedValue += (long) coinCounts[kind] * values[kind];
+			int count = Math.min(remaining / values[kind], coinCounts[kind]);
+			taken[kind] = count;
+			coins += count;
+			remaining -= count * values[kind];
+		}
+		if (amount > ceiling ? canonical && remaining == 0 : remaining == 0 && coins == fewestCoins[target]) {
+			return target;
+		}
+		if (loadedValue <= amount) {
+			System.arraycopy(coinCounts, 0, taken, 0, taken.length);			//Everything loaded is the most that can be paid
+			return (int) loadedValue;
+		}
+		return boundedChange(target, coinCounts, taken);
+	}
+
+	/**
+	 * Bounded knapsack over the loaded coins, with each coin kind split into
+	 * items of 1, 2, 4, ... coins so that every count can be made from them.
+	 */
+	private int boundedChange(int amount, int[] coinCounts, int[] taken) {
+		int items = 0;
+		for (int kind : descending) {
+			int left = Math.min(coinCounts[kind], amount / values[kind]);
+			for (int multiple = 1; left > 0; multiple <<= 1) {
+				int size = Math.min(multiple, left);
+				if (items == itemKinds.length) {
+					itemKinds = Arrays.copyOf(itemKinds, Math.max(8, items * 2));
+					itemMultiples = Arrays.copyOf(itemMultiples, itemKinds.length);
+				}
+				itemKinds[items] = kind;
+				itemMultiples[items] = size;
+				items++;
+				left -= size;
+			}
+		}
+
+		int width = amount + 1;
+		if (bestCoins.length < width) {
+			bestCoins = new int[width];
+		}
+		long bits = (long) items * width;
+		if ((long) choices.length * 64 < bits) {
+			choices = new long[(int) ((bits + 63) >>> 6)];
+		} else {
+			Arrays.fill(choices, 0, (int) ((bits + 63) >>> 6), 0L);
+		}
+		Arrays.fill(bestCoins, 1, width, UNREACHABLE);
+		bestCoins[0] = 0;
+
+		for (int item = 0; item < items; item++) {
+			int itemValue = itemMultiples[item] * values[itemKinds[item]];
+			long row = (long) item * width;
+			for (int a = amount; a >= itemValue; a--) {
+				int previous = bestCoins[a - itemValue];
+				if (previous != UNREACHABLE && previous + itemMultiples[item] < bestCoins[a]) {
+					bestCoins[a] = previous + itemMultiples[item];
+					long bit = row + a;
+					choices[(int) (bit >>> 6)] |= 1L << bit;
+				}
+			}
+		}
+
+		int paid = amount;
+		while (bestCoins[paid] == UNREACHABLE) {
+			paid--;																//Pay as much as the loaded coins allow
+		}
+		Arrays.fill(taken, 0);
+		int a = paid;
+		for (int item = items - 1; item >= 0 && a > 0; item--) {
+			long bit = (long) item * width + a;
+			if ((choices[(int) (bit >>> 6)] & (1L << bit)) != 0) {
+				taken[itemKinds[item]] += itemMultiples[item];
+				a -= itemMultiples[item] * values[itemKinds[item]];
+			}
+		}
+		return paid;
+	}
+
+	/**
+	 * Greedy change is trusted only if, for every amount in the table, it pays
+	 * exactly whenever that is possible and uses no more coins than needed.
+	 */
+	private boolean checkCanonical() {
+		for (int amount = 1; amount <= ceiling; amount++) {
+			int remaining = amount;
+			int coins = 0;
+			for (int kind : descending) {
+				coins += remaining / values[kind];
+				remaining %= values[kind];
+			}
+			if (remaining != 0 ? fewestCoins[amount] != UNREACHABLE : coins > fewestCoins[amount]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,91 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+/**
+ * Maps coin values to the index of their coin kind without boxing. Small
+ * values are looked up in a dense array indexed by value; larger ones in an
+ * open-addressing hash table with linear probing. Either way, a lookup is
+ * O(1) and building the index for k coin kinds is O(k).
+ */
+public class CoinKindIndex {
+
+	/** Largest coin value for which a dense lookup array is used. */
+	static final int DENSE_LIMIT = 4096;
+
+	private static final int EMPTY = 0;
+
+	private final int[] dense;												//Coin kind + 1 for each value, or EMPTY
+	private final int[] keys;												//Hashed coin values
+	private final int[] kinds;												//Coin kind + 1 for each hashed value, or EMPTY
+	private final int mask;
+
+	/**
+	 * @param values
+	 *            the value of each coin kind, in construction order; each must
+	 *            be positive
+	 * @throws IllegalStateException
+	 *             if two coin kinds have the same value
+	 */
+	public CoinKindIndex(int[] values) {
+		int max = 0;
+		for (int value : values) {
+			max = Math.max(max, value);
+		}
+		if (max <= DENSE_LIMIT) {
+			dense = new int[max + 1];
+			keys = null;
+			kinds = null;
+			mask = 0;
+			for (int i = 0; i < values.length; i++) {
+				if (dense[values[i]] != EMPTY) {
+					throw duplicate(values[i]);
+				}
+				dense[values[i]] = i + 1;
+			}
+		} else {
+			dense = null;
+			int capacity = Integer.highestOneBit(Math.max(values.length, 1) * 2 - 1) << 1;	//At most half full
+			keys = new int[capacity];
+			kinds = new int[capacity];
+			mask = capacity - 1;
+			for (int i = 0; i < values.length; i++) {
+				int slot = slot(values[i]);
+				if (kinds[slot] != EMPTY) {
+					throw duplicate(values[i]);
+				}
+				keys[slot] = values[i];
+				kinds[slot] = i + 1;
+			}
+		}
+	}
+
+	/**
+	 * @return the index of the coin kind with the given value, or -1 if the
+	 *         machine does not accept it
+	 */
+	public int kindOf(int value) {
+		if (dense != null) {
+			return value > 0 && value < dense.length ? dense[value] - 1 : -1;
+		}
+		return kinds[slot(value)] - 1;
+	}
+
+	/**
+	 * @return the slot holding the value, or the empty slot where it belongs
+	 */
+	private int slot(int value) {
+		int slot = mix(value) & mask;
+		while (kinds[slot] != EMPTY && keys[slot] != value) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static int mix(int value) {
+		int h = value * 0x9E3779B9;											//Fibonacci hashing spreads nearby values apart
+		return h ^ (h >>> 16);
+	}
+
+	private static IllegalStateException duplicate(int value) {
+		return new IllegalStateException(value + " is a duplicate value. You cannot have duplicate coin kinds.");
+	}
+}
@@ -0,0 +1,91 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything about a machine that only depends on its coin kinds: their
+ * values, the index from value to kind, and the change tables. None of it
+ * changes once built, so machines with the same coin kinds share one set.
+ * The most recent set is remembered, so that constructing many machines of
+ * the same shape builds the tables once rather than once per machine.
+ */
+final class CoinTables {
+
+	private static volatile CoinTables last;								//Most recently built, for the next machine
+
+	final int[] coinValues;													//Value of each coin kind
+	final List<Integer> coinDenominations;									//The same, as a list
+	final CoinKindIndex coinKindIndex;
+	final int ceiling;
+	private final ChangeMaker changeMaker;									//Never used itself, only copied
+	private final ChangeAvailability changeAvailability;						//Likewise
+
+	private CoinTables(int[] coinValues, int ceiling) {
+		this.coinValues = coinValues;
+		List<Integer> denominations = new ArrayList<Integer>(coinValues.length);
+		for (int value : coinValues) {
+			denominations.add(value);
+		}
+		this.coinDenominations = Collections.unmodifiableList(denominations);
+		this.coinKindIndex = new CoinKindIndex(coinValues);					//Also rejects duplicate coin kinds
+		this.ceiling = ceiling;
+		this.changeMaker = new ChangeMaker(coinValues, ceiling);
+		this.changeAvailability = new ChangeAvailability(coinValues, ceiling);
+	}
+
+	/**
+	 * @return the tables for the given coin kinds, reusing the last ones built
+	 *         if they were for the same coin kinds and ceiling
+	 * @throws IllegalArgumentException
+	 *             if a coin kind is not positive
+	 */
+	static CoinTables of(List<Integer> coinKinds, int ceiling) {
+		CoinTables tables = last;
+		if (tables != null && tables.ceiling == ceiling && tables.coinValues.length == coinKinds.size()) {
+			int i = 0;
+			while (i < coinKinds.size() && coinKinds.get(i) == tables.coinValues[i]) {
+				i++;
+			}
+			if (i == coinKinds.size()) {
+				return tables;
+			}
+		}
+		int[] coinValues = new int[coinKinds.size()];
+		for (int i = 0; i < coinValues.length; i++) {
+			int coinKind = coinKinds.get(i);
+			if (coinKind <= 0) {
+				throw new IllegalArgumentException("The coin kind must have a positive value.");
+			}
+			coinValues[i] = coinKind;
+		}
+		return of(coinValues, ceiling);
+	}
+
+	static CoinTables of(int[] coinValues, int ceiling) {
+		CoinTables tables = last;
+		if (tables != null && tables.ceiling == ceiling && Arrays.equals(tables.coinValues, coinValues)) {
+			return tables;
+		}
+		tables = new CoinTables(coinValues, ceiling);
+		last = tables;
+		return tables;
+	}
+
+	/**
+	 * @return a change maker of its own for one machine
+	 */
+	ChangeMaker newChangeMaker() {
+		return new ChangeMaker(changeMaker);
+	}
+
+	/**
+	 * @return a record of the change one machine can pay, for an empty coin
+	 *         dispenser
+	 */
+	ChangeAvailability newChangeAvailability() {
+		return new ChangeAvailability(changeAvailability);
+	}
+}
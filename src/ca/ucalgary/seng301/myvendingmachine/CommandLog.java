@@ -0,0 +1,89 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The binary command log format, a compact encoding of scripts for fast
+ * replay.
+ * 
+ * <p>
+ * A log starts with the bytes <code>VMCL</code> and a version byte, followed
+ * by records. Each record is an opcode followed by its operands. Integers,
+ * including opcodes, counts and string IDs, are unsigned LEB128 varints, so
+ * the common small values take one or two bytes. A list is its length
+ * followed by its elements. Strings are interned: a {@link #DEFINE_STRING}
+ * record (length and UTF-8 bytes) gives the next string ID, counting from 0,
+ * to a string before its first use, and commands refer to strings by ID. As
+ * in {@link FleetProtocol}, a string's length is written plus one, so that 0
+ * can stand for a null pop name.
+ * 
+ * <pre>
+ * DEFINE_STRING  length bytes...
+ * CONSTRUCT      [coin kinds] selectionButtonCount
+ * CONFIGURE      [pop name IDs] [pop costs]
+ * LOAD           [coin counts] [pop counts]
+ * UNLOAD
+ * EXTRACT
+ * INSERT         value
+ * PRESS          value
+ * CHECK_DELIVERY change [pop name IDs]
+ * CHECK_TEARDOWN change payments [pop name IDs]
+ * </pre>
+ * 
+ * Strings are kept exactly as the script parser passes them to the factory,
+ * quotation marks and all, so that a replayed log behaves like its script.
+ */
+final class CommandLog {
+
+	static final byte[] MAGIC = { 'V', 'M', 'C', 'L' };
+	static final int VERSION = 2;
+
+	static final int DEFINE_STRING = 0;
+	static final int CONSTRUCT = 1;
+	static final int CONFIGURE = 2;
+	static final int LOAD = 3;
+	static final int UNLOAD = 4;
+	static final int EXTRACT = 5;
+	static final int INSERT = 6;
+	static final int PRESS = 7;
+	static final int CHECK_DELIVERY = 8;
+	static final int CHECK_TEARDOWN = 9;
+
+	private CommandLog() {
+	}
+
+	static void writeVarint(OutputStream out, int value) throws IOException {
+		if (value < 0) {
+			throw new IllegalArgumentException("Command log integers cannot be negative: " + value);
+		}
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * @return the next varint, of up to five bytes; the fifth may only hold
+	 *         the top four bits of the 32, so that no bits are dropped
+	 * @throws IllegalStateException
+	 *             if the varint is longer or has bits beyond 32
+	 */
+	static int readVarint(ByteBuffer in) {
+		int value = 0;
+		for (int shift = 0; shift < 28; shift += 7) {
+			byte b = in.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		byte last = in.get();
+		if ((last & 0xFF) > 0x0F) {
+			throw new IllegalStateException("Malformed varint in command log.");
+		}
+		return value | last << 28;
+	}
+}
@@ -0,0 +1,241 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.ucalgary.seng301.vendingmachine.parser.ParseException;
+import ca.ucalgary.seng301.vendingmachine.parser.ParserConstants;
+import ca.ucalgary.seng301.vendingmachine.parser.ParserTokenManager;
+import ca.ucalgary.seng301.vendingmachine.parser.SimpleCharStream;
+import ca.ucalgary.seng301.vendingmachine.parser.Token;
+import ca.ucalgary.seng301.vendingmachine.parser.TokenMgrError;
+
+/**
+ * Converts a text script into a binary {@link CommandLog}. The script is
+ * split into tokens by the script parser's own token manager, so comments and
+ * string escapes are read exactly as they are when the script is run, and
+ * each command is checked against the grammar in the
+ * {@link VendingMachineFactory} documentation. Nothing is run.
+ * 
+ * <p>
+ * Usage: <code>CommandLogConverter script log</code>, where the script may be
+ * <code>-</code> for standard input and may be gzip compressed.
+ */
+public class CommandLogConverter {
+
+	private final ParserTokenManager tokens;
+	private final CommandLogWriter writer;
+	private Token token;
+
+	public CommandLogConverter(Reader script, CommandLogWriter writer) {
+		this.tokens = new ParserTokenManager(new SimpleCharStream(script));
+		this.writer = writer;
+	}
+
+	/**
+	 * Converts the whole script.
+	 * 
+	 * @return the number of commands converted
+	 */
+	public long convert() throws IOException, ParseException {
+		try {
+			long commands = 0;
+			while (next().kind != ParserConstants.EOF) {
+				convertCommand();
+				commands++;
+			}
+			writer.flush();
+			return commands;
+		} catch (TokenMgrError e) {
+			throw new ParseException(e.getMessage());
+		}
+	}
+
+	private void convertCommand() throws IOException, ParseException {
+		Token command = token;
+		expect(ParserConstants.LPAREN);
+		List<List<Token>> groups = arguments();
+		switch (command.kind) {
+		case ParserConstants.CONSTRUCT:
+			shape(command, groups, 2, 2);
+			checkKinds(command, groups.get(0), ParserConstants.INTEGER_LITERAL, 1);
+			checkKinds(command, groups.get(1), ParserConstants.INTEGER_LITERAL, 1);
+			if (groups.get(1).size() != 1) {
+				throw error(command, "expects one selection button count");
+			}
+			writer.construct(ints(groups.get(0)), ints(groups.get(1)).get(0));
+			break;
+		case ParserConstants.CONFIGURE:
+			shape(command, groups, 2, 2);
+			checkKinds(command, groups.get(0), ParserConstants.STRING_LITERAL, 1);
+			checkKinds(command, groups.get(1), ParserConstants.INTEGER_LITERAL, 1);
+			writer.configure(strings(groups.get(0)), ints(groups.get(1)));
+			break;
+		case ParserConstants.LOAD:
+			shape(command, groups, 2, 2);
+			checkKinds(command, groups.get(0), ParserConstants.INTEGER_LITERAL, 1);
+			checkKinds(command, groups.get(1), ParserConstants.INTEGER_LITERAL, 1);
+			writer.load(ints(groups.get(0)), ints(groups.get(1)));
+			break;
+		case ParserConstants.UNLOAD:
+		case ParserConstants.EXTRACT:
+			shape(command, groups, 1, 1);
+			checkKinds(command, groups.get(0), ParserConstants.EOF, 0);
+			if (command.kind == ParserConstants.UNLOAD) {
+				writer.unload();
+			} else {
+				writer.extract();
+			}
+			break;
+		case ParserConstants.INSERT:
+		case ParserConstants.PRESS:
+			shape(command, groups, 1, 1);
+			checkKinds(command, groups.get(0), ParserConstants.INTEGER_LITERAL, 1);
+			if (groups.get(0).size() != 1) {
+				throw error(command, "expects one integer");
+			}
+			int value = ints(groups.get(0)).get(0);
+			if (command.kind == ParserConstants.INSERT) {
+				writer.insert(value);
+			} else {
+				writer.press(value);
+			}
+			break;
+		case ParserConstants.CHECK_DELIVERY:
+			shape(command, groups, 1, 1);
+			List<Token> delivery = groups.get(0);
+			if (delivery.isEmpty()) {
+				throw error(command, "expects the value of the change");
+			}
+			checkKinds(command, delivery.subList(0, 1), ParserConstants.INTEGER_LITERAL, 1);
+			checkKinds(command, delivery.subList(1, delivery.size()), ParserConstants.STRING_LITERAL, 0);
+			writer.checkDelivery(ints(delivery.subList(0, 1)).get(0), strings(delivery.subList(1, delivery.size())));
+			break;
+		case ParserConstants.CHECK_TEARDOWN:
+			shape(command, groups, 2, 3);
+			checkKinds(command, groups.get(0), ParserConstants.INTEGER_LITERAL, 1);
+			checkKinds(command, groups.get(1), ParserConstants.INTEGER_LITERAL, 1);
+			if (groups.get(0).size() != 1 || groups.get(1).size() != 1) {
+				throw error(command, "expects one change value and one payments value");
+			}
+			List<String> pops = new ArrayList<String>();
+			if (groups.size() == 3) {
+				checkKinds(command, groups.get(2), ParserConstants.STRING_LITERAL, 0);
+				pops = strings(groups.get(2));
+			}
+			writer.checkTeardown(ints(groups.get(0)).get(0), ints(groups.get(1)).get(0), pops);
+			break;
+		default:
+			throw error(command, "is not a command");
+		}
+	}
+
+	/**
+	 * Reads the arguments up to the closing parenthesis.
+	 * 
+	 * @return the comma-separated tokens between each pair of semicolons
+	 */
+	private List<List<Token>> arguments() throws ParseException {
+		List<List<Token>> groups = new ArrayList<List<Token>>();
+		List<Token> group = new ArrayList<Token>();
+		groups.add(group);
+		boolean wantItem = true;
+		while (true) {
+			Token t = next();
+			if (t.kind == ParserConstants.INTEGER_LITERAL || t.kind == ParserConstants.STRING_LITERAL) {
+				if (!wantItem) {
+					throw error(t, "is missing a comma before it");
+				}
+				group.add(t);
+				wantItem = false;
+			} else if (t.kind == ParserConstants.COMMA && !wantItem) {
+				wantItem = true;
+			} else if (t.kind == ParserConstants.SEMICOLON && (!wantItem || group.isEmpty())) {
+				group = new ArrayList<Token>();
+				groups.add(group);
+				wantItem = true;
+			} else if (t.kind == ParserConstants.RPAREN && (!wantItem || group.isEmpty())) {
+				return groups;
+			} else {
+				throw error(t, "was not expected");
+			}
+		}
+	}
+
+	private void shape(Token command, List<List<Token>> groups, int min, int max) throws ParseException {
+		if (groups.size() < min || groups.size() > max) {
+			throw error(command, "has the wrong number of semicolon-separated parts");
+		}
+	}
+
+	/**
+	 * Checks that a group has at least the given number of tokens, all of the
+	 * given kind.
+	 */
+	private void checkKinds(Token command, List<Token> group, int kind, int min) throws ParseException {
+		if (group.size() < min) {
+			throw error(command, "is missing an argument");
+		}
+		for (Token t : group) {
+			if (t.kind != kind) {
+				throw error(t, "is the wrong kind of argument for " + command.image);
+			}
+		}
+	}
+
+	private Token next() {
+		token = tokens.getNextToken();
+		return token;
+	}
+
+	private void expect(int kind) throws ParseException {
+		if (next().kind != kind) {
+			throw error(token, "was found where " + ParserConstants.tokenImage[kind] + " was expected");
+		}
+	}
+
+	private static ParseException error(Token t, String message) {
+		return new ParseException("\"" + t.image + "\" at line " + t.beginLine + ", column " + t.beginColumn + " " + message + ".");
+	}
+
+	private static List<Integer> ints(List<Token> group) {
+		List<Integer> values = new ArrayList<Integer>(group.size());
+		for (Token t : group) {
+			values.add(Integer.parseInt(t.image));
+		}
+		return values;
+	}
+
+	private static List<String> strings(List<Token> group) {
+		List<String> values = new ArrayList<String>(group.size());
+		for (Token t : group) {
+			values.add(t.image);
+		}
+		return values;
+	}
+
+	public static void main(String[] args) throws IOException, ParseException {
+		if (args.length != 2) {
+			System.err.println("Usage: CommandLogConverter script log");
+			System.exit(2);
+		}
+		InputStream in = args[0].equals("-") ? System.in : new FileInputStream(args[0]);
+		try (OutputStream out = new FileOutputStream(args[1]); CommandLogWriter writer = new CommandLogWriter(out)) {
+			Reader script = new InputStreamReader(StreamingDriver.decompress(in), Charset.forName("UTF-8"));
+			long commands = new CommandLogConverter(script, writer).convert();
+			System.out.println(commands + " commands converted");
+		} finally {
+			if (in != System.in) {
+				in.close();
+			}
+		}
+	}
+}
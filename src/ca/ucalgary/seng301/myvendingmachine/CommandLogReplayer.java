@@ -0,0 +1,254 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ca.ucalgary.seng301.vendingmachine.IVendingMachineFactory;
+import ca.ucalgary.seng301.vendingmachine.parser.ParserConstants;
+
+/**
+ * Replays a binary {@link CommandLog} against a factory. The log is read
+ * through memory-mapped windows, and each command is decoded completely and
+ * then dispatched straight to the factory method it names, with checks
+ * reported as in {@link StreamingDriver}.
+ * 
+ * <p>
+ * Usage: <code>CommandLogReplayer log...</code>
+ */
+public class CommandLogReplayer {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final long WINDOW = 1L << 28;
+
+	private final IVendingMachineFactory factory;
+
+	//The decoded operands of the current command
+	private int opcode;
+	private int[] first = new int[16];
+	private int firstCount;
+	private int[] second = new int[16];
+	private int secondCount;
+	private int value;
+	private int otherValue;
+	private String definedString;
+
+	private final List<String> strings = new ArrayList<String>();
+	private List<Object> extraction = new ArrayList<Object>();
+	private List<Object> teardown = new ArrayList<Object>();
+
+	public CommandLogReplayer(IVendingMachineFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Replays a whole log.
+	 * 
+	 * @return the number of commands replayed
+	 */
+	public long replay(Path log, StreamingDriver.CheckListener listener) throws IOException {
+		return replay(log, listener, false);
+	}
+
+	/**
+	 * @param partialTail
+	 *            whether a log that ends in the middle of a command, as one
+	 *            being appended to when its writer stopped may, is replayed up
+	 *            to its last complete command instead of being rejected
+	 */
+	long replay(Path log, StreamingDriver.CheckListener listener, boolean partialTail) throws IOException {
+		try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+			long size = channel.size();
+			long position = CommandLog.MAGIC.length + 1;
+			ByteBuffer header = ByteBuffer.allocate((int) Math.min(size, position));
+			channel.read(header, 0);
+			if (header.position() < position || !Arrays.equals(Arrays.copyOf(header.array(), CommandLog.MAGIC.length), CommandLog.MAGIC)
+					|| header.get(CommandLog.MAGIC.length) != CommandLog.VERSION) {
+				throw new IOException(log + " is not a version " + CommandLog.VERSION + " command log.");
+			}
+
+			long command = 0;
+			long window = WINDOW;
+			while (position < size) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(window, size - position));
+				boolean progressed = false;
+				while (buffer.hasRemaining()) {
+					int start = buffer.position();
+					try {
+						decode(buffer);
+					} catch (BufferUnderflowException e) {
+						buffer.position(start);										//The record runs past this window
+						break;
+					}
+					progressed = true;
+					if (dispatch(command, listener)) {
+						command++;
+					}
+				}
+				if (!progressed && buffer.position() == 0) {
+					if (buffer.limit() == size - position) {
+						if (partialTail) {
+							return command;
+						}
+						throw new IOException(log + " ends in the middle of a command.");
+					}
+					window *= 2;													//A single record is larger than the window
+				}
+				position += buffer.position();
+			}
+			return command;
+		}
+	}
+
+	/**
+	 * Reads one record into the operand fields without acting on it, so that
+	 * a record cut off by the end of a window can be read again.
+	 */
+	private void decode(ByteBuffer in) {
+		opcode = CommandLog.readVarint(in);
+		switch (opcode) {
+		case CommandLog.DEFINE_STRING:
+			int length = CommandLog.readVarint(in);							//Plus one, or 0 for null
+			if (length == 0) {
+				definedString = null;
+			} else {
+				if (length < 0 || length - 1 > in.remaining()) {
+					throw new BufferUnderflowException();
+				}
+				byte[] bytes = new byte[length - 1];
+				in.get(bytes);
+				definedString = new String(bytes, UTF_8);
+			}
+			break;
+		case CommandLog.CONSTRUCT:
+			readFirst(in);
+			value = CommandLog.readVarint(in);
+			break;
+		case CommandLog.CONFIGURE:
+		case CommandLog.LOAD:
+			readFirst(in);
+			readSecond(in);
+			break;
+		case CommandLog.UNLOAD:
+		case CommandLog.EXTRACT:
+			break;
+		case CommandLog.INSERT:
+		case CommandLog.PRESS:
+			value = CommandLog.readVarint(in);
+			break;
+		case CommandLog.CHECK_DELIVERY:
+			value = CommandLog.readVarint(in);
+			readFirst(in);
+			break;
+		case CommandLog.CHECK_TEARDOWN:
+			value = CommandLog.readVarint(in);
+			otherValue = CommandLog.readVarint(in);
+			readFirst(in);
+			break;
+		default:
+			throw new IllegalStateException("Unknown opcode " + opcode + " in command log.");
+		}
+	}
+
+	/**
+	 * Carries out the record last decoded.
+	 * 
+	 * @return whether it was a command rather than a string definition
+	 */
+	private boolean dispatch(long command, StreamingDriver.CheckListener listener) {
+		switch (opcode) {
+		case CommandLog.DEFINE_STRING:
+			strings.add(definedString);
+			return false;
+		case CommandLog.CONSTRUCT:
+			factory.construct(integers(first, firstCount), value);
+			break;
+		case CommandLog.CONFIGURE:
+			factory.configure(names(first, firstCount), integers(second, secondCount));
+			break;
+		case CommandLog.LOAD:
+			factory.load(integers(first, firstCount), integers(second, secondCount));
+			break;
+		case CommandLog.UNLOAD:
+			teardown = factory.unload();
+			break;
+		case CommandLog.EXTRACT:
+			extraction = factory.extract();
+			break;
+		case CommandLog.INSERT:
+			factory.insert(value);
+			break;
+		case CommandLog.PRESS:
+			factory.press(value);
+			break;
+		case CommandLog.CHECK_DELIVERY:
+			listener.checked(command, ParserConstants.CHECK_DELIVERY,
+					ScriptChecker.checkDelivery(extraction, value, names(first, firstCount)));
+			break;
+		case CommandLog.CHECK_TEARDOWN:
+			listener.checked(command, ParserConstants.CHECK_TEARDOWN,
+					ScriptChecker.checkTeardown(teardown, value, otherValue, names(first, firstCount)));
+			break;
+		}
+		return true;
+	}
+
+	private void readFirst(ByteBuffer in) {
+		firstCount = CommandLog.readVarint(in);
+		if (first.length < firstCount) {
+			first = new int[firstCount];
+		}
+		for (int i = 0; i < firstCount; i++) {
+			first[i] = CommandLog.readVarint(in);
+		}
+	}
+
+	private void readSecond(ByteBuffer in) {
+		secondCount = CommandLog.readVarint(in);
+		if (second.length < secondCount) {
+			second = new int[secondCount];
+		}
+		for (int i = 0; i < secondCount; i++) {
+			second[i] = CommandLog.readVarint(in);
+		}
+	}
+
+	private static List<Integer> integers(int[] values, int count) {
+		List<Integer> list = new ArrayList<Integer>(count);
+		for (int i = 0; i < count; i++) {
+			list.add(values[i]);
+		}
+		return list;
+	}
+
+	private List<String> names(int[] ids, int count) {
+		List<String> list = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			list.add(strings.get(ids[i]));
+		}
+		return list;
+	}
+
+	public static void main(String[] args) throws IOException {
+		StreamingDriver.CheckListener printer = new StreamingDriver.CheckListener() {
+			@Override
+			public void checked(long command, int kind, boolean passed) {
+				System.out.println("Command #" + command + ": " + (passed ? "PASS" : "FAIL"));
+			}
+		};
+		for (String log : args) {
+			System.out.println("Log: " + log);
+			new CommandLogReplayer(new VendingMachineFactory()).replay(Paths.get(log), printer);
+			System.out.println();
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Writes commands to a binary {@link CommandLog}, one method per command.
+ */
+public class CommandLogWriter implements Closeable {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final OutputStream out;
+	private final HashMap<String, Integer> stringIds = new HashMap<String, Integer>();
+	private long commands = 0;
+
+	public CommandLogWriter(OutputStream out) throws IOException {
+		this(out, true);
+	}
+
+	/**
+	 * @param buffered
+	 *            whether to buffer the output; callers that already write to
+	 *            memory can save a copy by passing false
+	 */
+	CommandLogWriter(OutputStream out, boolean buffered) throws IOException {
+		this.out = buffered ? new BufferedOutputStream(out, 1 << 16) : out;
+		this.out.write(CommandLog.MAGIC);
+		this.out.write(CommandLog.VERSION);
+	}
+
+	public void construct(List<Integer> coinKinds, int selectionButtonCount) throws IOException {
+		command(CommandLog.CONSTRUCT);
+		writeInts(coinKinds);
+		CommandLog.writeVarint(out, selectionButtonCount);
+	}
+
+	public void configure(List<String> popNames, List<Integer> popCosts) throws IOException {
+		int[] ids = define(popNames);
+		command(CommandLog.CONFIGURE);
+		writeIds(ids);
+		writeInts(popCosts);
+	}
+
+	public void load(List<Integer> coinCounts, List<Integer> popCounts) throws IOException {
+		command(CommandLog.LOAD);
+		writeInts(coinCounts);
+		writeInts(popCounts);
+	}
+
+	public void unload() throws IOException {
+		command(CommandLog.UNLOAD);
+	}
+
+	public void extract() throws IOException {
+		command(CommandLog.EXTRACT);
+	}
+
+	public void insert(int value) throws IOException {
+		command(CommandLog.INSERT);
+		CommandLog.writeVarint(out, value);
+	}
+
+	public void press(int value) throws IOException {
+		command(CommandLog.PRESS);
+		CommandLog.writeVarint(out, value);
+	}
+
+	public void checkDelivery(int change, List<String> pops) throws IOException {
+		int[] ids = define(pops);
+		command(CommandLog.CHECK_DELIVERY);
+		CommandLog.writeVarint(out, change);
+		writeIds(ids);
+	}
+
+	public void checkTeardown(int change, int payments, List<String> pops) throws IOException {
+		int[] ids = define(pops);
+		command(CommandLog.CHECK_TEARDOWN);
+		CommandLog.writeVarint(out, change);
+		CommandLog.writeVarint(out, payments);
+		writeIds(ids);
+	}
+
+	/**
+	 * @return the number of commands written so far
+	 */
+	public long getCommandCount() {
+		return commands;
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+	private void command(int opcode) throws IOException {
+		CommandLog.writeVarint(out, opcode);
+		commands++;
+	}
+
+	/**
+	 * Defines any of the strings not yet in the string table.
+	 * 
+	 * @return the ID of each string
+	 */
+	private int[] define(List<String> strings) throws IOException {
+		int[] ids = new int[strings.size()];
+		for (int i = 0; i < ids.length; i++) {
+			String string = strings.get(i);
+			Integer id = stringIds.get(string);
+			if (id == null) {
+				id = stringIds.size();
+				stringIds.put(string, id);
+				CommandLog.writeVarint(out, CommandLog.DEFINE_STRING);
+				if (string == null) {
+					CommandLog.writeVarint(out, 0);
+				} else {
+					byte[] bytes = string.getBytes(UTF_8);
+					CommandLog.writeVarint(out, bytes.length + 1);
+					out.write(bytes);
+				}
+			}
+			ids[i] = id;
+		}
+		return ids;
+	}
+
+	private void writeInts(List<Integer> values) throws IOException {
+		CommandLog.writeVarint(out, values.size());
+		for (int value : values) {
+			CommandLog.writeVarint(out, value);
+		}
+	}
+
+	private void writeIds(int[] ids) throws IOException {
+		CommandLog.writeVarint(out, ids.length);
+		for (int id : ids) {
+			CommandLog.writeVarint(out, id);
+		}
+	}
+}
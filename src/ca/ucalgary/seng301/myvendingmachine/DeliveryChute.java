@@ -0,0 +1,179 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+import ca.ucalgary.seng301.vendingmachine.Pop;
+
+/**
+ * The contents of the delivery chute: rejected coins, change counted by coin
+ * kind, and pops in runs. {@link VendingMachineFactory#extract()} hands the
+ * machine's chute over whole and gives the machine the chute handed over by
+ * the extract before, emptied, so a machine only ever has two. A chute that
+ * has been handed over does not change until the machine's next extract.
+ * 
+ * <p>
+ * As a list, a chute reads as the rejected coins in the order they were
+ * inserted, then the change by coin kind, then the pops, oldest first. The
+ * entries are expanded from the counts as they are read, so callers that only
+ * need the totals can use {@link #getChangeValue()} and the run methods and
+ * never pay for the expansion.
+ */
+public class DeliveryChute extends AbstractList<Object> implements RandomAccess, PopRuns {
+
+	private final int[] coinValues;											//Value of each coin kind
+	final int[] change;														//Number of change coins of each coin kind
+	final FifoDispenser<Pop> pops;
+	int[] rejectedCoins;													//Values of coins that are not a valid kind, or null
+	int rejectedCoinCount = 0;
+
+	private long[] changeEnds;												//Change coins up to the end of each kind, once read
+	private long[] popEnds;													//Pops up to the end of each run, once read
+
+	DeliveryChute(int[] coinValues) {
+		this.coinValues = coinValues;
+		this.change = new int[coinValues.length];
+		this.pops = new FifoDispenser<Pop>();
+	}
+
+	/**
+	 * A chute with the same contents as another, sharing its pops until
+	 * either changes.
+	 */
+	DeliveryChute(DeliveryChute original) {
+		this.coinValues = original.coinValues;
+		this.change = original.change.clone();
+		this.pops = original.pops.fork();
+		this.rejectedCoins = original.rejectedCoins == null ? null : original.rejectedCoins.clone();
+		this.rejectedCoinCount = original.rejectedCoinCount;
+	}
+
+	/**
+	 * Empties the chute for reuse, keeping its buffers.
+	 */
+	void empty() {
+		Arrays.fill(change, 0);
+		pops.clear();
+		rejectedCoinCount = 0;
+		changeEnds = null;
+		popEnds = null;
+	}
+
+	void reject(int value) {
+		if (rejectedCoins == null) {
+			rejectedCoins = new int[8];
+		} else if (rejectedCoinCount == rejectedCoins.length) {
+			rejectedCoins = Arrays.copyOf(rejectedCoins, rejectedCoinCount * 2);
+		}
+		rejectedCoins[rejectedCoinCount++] = value;
+	}
+
+	/**
+	 * @return the value of the change and rejected coins together
+	 */
+	public long getCoinValue() {
+		return getChangeValue() + getRejectedValue();
+	}
+
+	public long getChangeValue() {
+		long value = 0;
+		for (int i = 0; i < change.length; i++) {
+			value += (long) change[i] * coinValues[i];
+		}
+		return value;
+	}
+
+	public long getRejectedValue() {
+		long value = 0;
+		for (int i = 0; i < rejectedCoinCount; i++) {
+			value += rejectedCoins[i];
+		}
+		return value;
+	}
+
+	/**
+	 * @return the number of change coins of a coin kind
+	 */
+	public int changeCount(int coinKind) {
+		return change[coinKind];
+	}
+
+	public int rejectedCount() {
+		return rejectedCoinCount;
+	}
+
+	public int runs() {
+		return pops.runs();
+	}
+
+	public Pop popAt(int run) {
+		return pops.elementAt(run);
+	}
+
+	public int countAt(int run) {
+		return pops.countAt(run);
+	}
+
+	public int popCount() {
+		return pops.size();
+	}
+
+	@Override
+	public int size() {
+		ends();
+		return (int) Math.min(Integer.MAX_VALUE, rejectedCoinCount + changeEnds[changeEnds.length - 1] + pops.size());
+	}
+
+	@Override
+	public Object get(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("Index " + index + " is not in the delivery chute.");
+		}
+		if (index < rejectedCoinCount) {
+			return rejectedCoins[index];
+		}
+		long item = index - rejectedCoinCount;
+		long changeCoins = changeEnds[changeEnds.length - 1];
+		if (item < changeCoins) {
+			return coinValues[search(changeEnds, item) - 1];
+		}
+		return pops.elementAt(search(popEnds, item - changeCoins));
+	}
+
+	/**
+	 * Counts up the ends of the change kinds and pop runs the first time the
+	 * chute is read as a list.
+	 */
+	private void ends() {
+		if (changeEnds == null) {
+			changeEnds = new long[change.length + 1];						//Starts with 0, so it is never empty
+			for (int i = 0; i < change.length; i++) {
+				changeEnds[i + 1] = changeEnds[i] + change[i];
+			}
+			popEnds = new long[pops.runs()];
+			long total = 0;
+			for (int run = 0; run < popEnds.length; run++) {
+				total += pops.countAt(run);
+				popEnds[run] = total;
+			}
+		}
+	}
+
+	/**
+	 * @return the index of the first end that is after the item
+	 */
+	private static int search(long[] ends, long item) {
+		int low = 0;
+		int high = ends.length - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (ends[middle] <= item) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+}
@@ -0,0 +1,172 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.util.Locale;
+
+/**
+ * Counters and latency histograms for the operations of a
+ * {@link VendingMachineFactory}. A factory starts with {@link #DISABLED},
+ * which records nothing and costs the factory one field read per operation.
+ * Snapshots of several metrics, such as those of every machine in a fleet,
+ * can be added together.
+ */
+public class FactoryMetrics {
+
+	/** The timed operations. */
+	public enum Operation {
+		CONSTRUCT, CONFIGURE, LOAD, UNLOAD, EXTRACT, INSERT, PRESS, PURCHASE
+	}
+
+	/** The counted events. */
+	public enum Event {
+		COIN_ACCEPTED, COIN_REJECTED, POP_VENDED, PRESS_SOLD_OUT, PRESS_INSUFFICIENT_CREDIT, PRESS_NO_CHANGE, CHANGE_SHORTFALL, CHANGE_SHORTFALL_VALUE
+	}
+
+	/** Metrics that record nothing. */
+	public static final FactoryMetrics DISABLED = new FactoryMetrics();
+
+	final boolean enabled;
+	private final StripedCounter[] events;
+	private final LatencyHistogram[] latencies;
+
+	/**
+	 * @param stripes
+	 *            the number of stripes for each counter; 1 is enough when the
+	 *            metrics belong to a single machine driven by one thread at a
+	 *            time
+	 */
+	public FactoryMetrics(int stripes) {
+		enabled = true;
+		events = new StripedCounter[Event.values().length];
+		for (int i = 0; i < events.length; i++) {
+			events[i] = new StripedCounter(stripes);
+		}
+		latencies = new LatencyHistogram[Operation.values().length];
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new LatencyHistogram();
+		}
+	}
+
+	private FactoryMetrics() {
+		enabled = false;
+		events = null;
+		latencies = null;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	void count(Event event) {
+		events[event.ordinal()].increment();
+	}
+
+	void count(Event event, long delta) {
+		events[event.ordinal()].add(delta);
+	}
+
+	/**
+	 * Records the time since an operation started.
+	 * 
+	 * @param start
+	 *            the {@link System#nanoTime()} when it started
+	 */
+	void time(Operation operation, long start) {
+		latencies[operation.ordinal()].record(System.nanoTime() - start);
+	}
+
+	public Snapshot snapshot() {
+		Snapshot snapshot = new Snapshot();
+		if (enabled) {
+			for (int i = 0; i < events.length; i++) {
+				snapshot.events[i] = events[i].sum();
+			}
+			for (int i = 0; i < latencies.length; i++) {
+				latencies[i].addTo(snapshot.latencies[i]);
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * The counts and latencies recorded up to some moment.
+	 */
+	public static class Snapshot {
+
+		final long[] events = new long[Event.values().length];
+		final long[][] latencies = new long[Operation.values().length][LatencyHistogram.BUCKETS];
+
+		public long get(Event event) {
+			return events[event.ordinal()];
+		}
+
+		/**
+		 * @return the number of times the operation was timed
+		 */
+		public long count(Operation operation) {
+			long count = 0;
+			for (long bucket : latencies[operation.ordinal()]) {
+				count += bucket;
+			}
+			return count;
+		}
+
+		/**
+		 * @param percentile
+		 *            between 0 and 100
+		 * @return the latency in nanoseconds that the given percentage of the
+		 *         timed operations did not exceed, or 0 if none were timed
+		 */
+		public long latency(Operation operation, double percentile) {
+			return LatencyHistogram.percentile(latencies[operation.ordinal()], percentile);
+		}
+
+		/**
+		 * Adds another snapshot into this one.
+		 * 
+		 * @return this snapshot
+		 */
+		public Snapshot add(Snapshot other) {
+			for (int i = 0; i < events.length; i++) {
+				events[i] += other.events[i];
+			}
+			for (int i = 0; i < latencies.length; i++) {
+				for (int j = 0; j < LatencyHistogram.BUCKETS; j++) {
+					latencies[i][j] += other.latencies[i][j];
+				}
+			}
+			return this;
+		}
+
+		public String toText() {
+			StringBuilder text = new StringBuilder();
+			for (Event event : Event.values()) {
+				text.append(String.format(Locale.ROOT, "%-28s %d%n", name(event), get(event)));
+			}
+			for (Operation operation : Operation.values()) {
+				text.append(String.format(Locale.ROOT, "%-10s count %d  p50 %d ns  p99 %d ns  p99.9 %d ns  max %d ns%n",
+						name(operation), count(operation), latency(operation, 50), latency(operation, 99),
+						latency(operation, 99.9), latency(operation, 100)));
+			}
+			return text.toString();
+		}
+
+		public String toJson() {
+			StringBuilder json = new StringBuilder("{\"events\": {");
+			for (Event event : Event.values()) {
+				json.append(event.ordinal() == 0 ? "" : ", ").append('"').append(name(event)).append("\": ").append(get(event));
+			}
+			json.append("}, \"latencies\": {");
+			for (Operation operation : Operation.values()) {
+				json.append(operation.ordinal() == 0 ? "" : ", ").append('"').append(name(operation)).append("\": ");
+				json.append(String.format(Locale.ROOT, "{\"count\": %d, \"p50\": %d, \"p99\": %d, \"p99.9\": %d, \"max\": %d}",
+						count(operation), latency(operation, 50), latency(operation, 99), latency(operation, 99.9),
+						latency(operation, 100)));
+			}
+			return json.append("}}").toString();
+		}
+
+		private static String name(Enum<?> value) {
+			return value.name().toLowerCase(Locale.ROOT);
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A first-in, first-out dispenser of identical units, such as the pops in one
+ * selection button's slot. Consecutive units that share an element are stored
+ * as a single run with a count, and the runs are kept in a growable circular
+ * array, so that {@link #put(Object, int)} and {@link #take()} are both O(1)
+ * regardless of how many units are loaded.
+ * 
+ * <p>
+ * {@link #fork()} copies a dispenser in O(1) by sharing its arrays with the
+ * copy; whichever of the two changes first takes its own copy of them then.
+ *
+ * @param <T>
+ *            the kind of element being dispensed
+ */
+public class FifoDispenser<T> {
+
+	private static final int INITIAL_CAPACITY = 4;
+
+	private Object[] elements;												//Element of each run
+	private int[] counts;													//Number of units in each run
+	private int head = 0;													//Index of the oldest run
+	private int runs = 0;													//Number of runs in use
+	private int size = 0;													//Total number of units in all runs
+	private boolean shared = false;											//Whether the arrays are shared with a fork
+
+	public FifoDispenser() {
+		elements = new Object[INITIAL_CAPACITY];
+		counts = new int[INITIAL_CAPACITY];
+	}
+
+	private FifoDispenser(FifoDispenser<T> original) {
+		elements = original.elements;
+		counts = original.counts;
+		head = original.head;
+		runs = original.runs;
+		size = original.size;
+		shared = true;
+	}
+
+	/**
+	 * @return a dispenser with the same units, which changes independently of
+	 *         this one
+	 */
+	public FifoDispenser<T> fork() {
+		shared = true;															//Neither may write to the arrays now
+		return new FifoDispenser<T>(this);
+	}
+
+	/**
+	 * Adds units to the back of the dispenser.
+	 * 
+	 * @param element
+	 *            the element each unit represents
+	 * @param count
+	 *            the number of units to add; must be non-negative
+	 */
+	public void put(T element, int count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("The number of units cannot be negative.");
+		}
+		if (count == 0) {
+			return;
+		}
+		own();
+		if (runs > 0) {
+			int tail = index(runs - 1);
+			if (same(elements[tail], element)) {
+				counts[tail] += count;												//Extend the newest run instead of starting another
+				size += count;
+				return;
+			}
+		}
+		if (runs == elements.length) {
+			grow();
+		}
+		int tail = index(runs);
+		elements[tail] = element;
+		counts[tail] = count;
+		runs++;
+		size += count;
+	}
+
+	/**
+	 * Removes the unit at the front of the dispenser.
+	 * 
+	 * @return the element of the removed unit
+	 * @throws NoSuchElementException
+	 *             if the dispenser is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public T take() {
+		if (size == 0) {
+			throw new NoSuchElementException("The dispenser is empty.");
+		}
+		own();
+		T element = (T) elements[head];
+		size--;
+		if (--counts[head] == 0) {
+			elements[head] = null;													//Run is used up, move on to the next one
+			head = index(1);
+			runs--;
+		}
+		return element;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the number of runs, oldest first, available through
+	 *         {@link #elementAt(int)} and {@link #countAt(int)}
+	 */
+	public int runs() {
+		return runs;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T elementAt(int run) {
+		checkRun(run);
+		return (T) elements[index(run)];
+	}
+
+	public int countAt(int run) {
+		checkRun(run);
+		return counts[index(run)];
+	}
+
+	public void clear() {
+		if (shared) {
+			elements = new Object[INITIAL_CAPACITY];
+			counts = new int[INITIAL_CAPACITY];
+			shared = false;
+		} else {
+			for (int i = 0; i < runs; i++) {
+				elements[index(i)] = null;
+			}
+		}
+		head = 0;
+		runs = 0;
+		size = 0;
+	}
+
+	private void checkRun(int run) {
+		if (run < 0 || run >= runs) {
+			throw new IndexOutOfBoundsException("Run " + run + " is not in the dispenser.");
+		}
+	}
+
+	/**
+	 * Takes a copy of the arrays if they are shared, before changing them.
+	 */
+	private void own() {
+		if (shared) {
+			elements = elements.clone();
+			counts = counts.clone();
+			shared = false;
+		}
+	}
+
+	private int index(int run) {
+		return (head + run) & (elements.length - 1);							//Capacity is always a power of two
+	}
+
+	private void grow() {
+		int capacity = elements.length << 1;
+		if (capacity < 0) {
+			throw new IllegalStateException("The dispenser cannot hold any more runs.");
+		}
+		Object[] newElements = new Object[capacity];
+		int[] newCounts = new int[capacity];
+		int firstPart = Math.min(runs, elements.length - head);				//Unwrap the circular array into the new one
+		System.arraycopy(elements, head, newElements, 0, firstPart);
+		System.arraycopy(elements, 0, newElements, firstPart, runs - firstPart);
+		System.arraycopy(counts, head, newCounts, 0, firstPart);
+		System.arraycopy(counts, 0, newCounts, firstPart, runs - firstPart);
+		elements = newElements;
+		counts = newCounts;
+		head = 0;
+		shared = false;
+	}
+
+	private static boolean same(Object a, Object b) {
+		return a == b || (a != null && a.equals(b));
+	}
+}
@@ -0,0 +1,386 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ca.ucalgary.seng301.vendingmachine.Pop;
+
+/**
+ * The wire format between a {@link ShardedFleet} and its
+ * {@link FleetWorker}s, built from the same varints as the
+ * {@link CommandLog}.
+ *
+ * <p>
+ * A batch is a count of requests followed by the requests, and its reply is a
+ * count of replies followed by one reply per request, in the same order. A
+ * request is an opcode, the machine ID, and the operands:
+ *
+ * <pre>
+ * CONSTRUCT  id [coin kinds] selectionButtonCount
+ * CONFIGURE  id [pop names] [pop costs]
+ * LOAD       id [coin counts] [pop counts]
+ * UNLOAD     id
+ * EXTRACT    id
+ * INSERT     id value
+ * PRESS      id value
+ * LIST       0
+ * EXPORT     id
+ * IMPORT     id snapshot
+ * DROP       id
+ * </pre>
+ *
+ * A reply is a status, then for {@link #OK} the result: the items of UNLOAD
+ * and EXTRACT as their coins (a list of integers) and their pops (runs of a
+ * name and a count), the machine IDs held by the worker for LIST, and the
+ * {@link MachineSnapshot} for EXPORT. A failure is followed by the message of
+ * the exception. Lengths, counts, opcodes and IDs are unsigned varints; the
+ * values the caller passes in are zigzag encoded, so that a negative coin is
+ * sent to the machine to be refused rather than refused by the protocol.
+ * Strings are their UTF-8 length plus one, 0 for null, and their bytes. Over
+ * a socket, each batch and reply is preceded by its length as a 4-byte
+ * big-endian integer.
+ */
+final class FleetProtocol {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	static final int CONSTRUCT = 1;
+	static final int CONFIGURE = 2;
+	static final int LOAD = 3;
+	static final int UNLOAD = 4;
+	static final int EXTRACT = 5;
+	static final int INSERT = 6;
+	static final int PRESS = 7;
+	static final int LIST = 8;
+	static final int EXPORT = 9;
+	static final int IMPORT = 10;
+	static final int DROP = 11;
+
+	static final int OK = 0;
+	static final int ILLEGAL_ARGUMENT = 1;
+	static final int ILLEGAL_STATE = 2;
+	static final int NULL_POINTER = 3;
+	static final int FAILED = 4;
+
+	static final int MAX_FRAME = 1 << 30;
+
+	private FleetProtocol() {
+	}
+
+	/**
+	 * A growable buffer that requests and replies are written into.
+	 */
+	static final class Encoder {
+		private byte[] bytes = new byte[256];
+		private int size = 0;
+
+		void writeVarint(int value) {
+			if (value < 0) {
+				throw new IllegalArgumentException("Fleet protocol counts cannot be negative: " + value);
+			}
+			writeUnsigned(value);
+		}
+
+		void writeSigned(int value) {
+			writeUnsigned(value << 1 ^ value >> 31);
+		}
+
+		private void writeUnsigned(int value) {
+			ensure(5);
+			while ((value & ~0x7F) != 0) {
+				bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			bytes[size++] = (byte) value;
+		}
+
+		void writeInts(List<Integer> values) {
+			if (values == null) {
+				writeVarint(0);
+				return;
+			}
+			writeVarint(values.size() + 1);
+			for (int value : values) {
+				writeSigned(value);
+			}
+		}
+
+		void writeStrings(List<String> strings) {
+			if (strings == null) {
+				writeVarint(0);
+				return;
+			}
+			writeVarint(strings.size() + 1);
+			for (String string : strings) {
+				writeString(string);
+			}
+		}
+
+		void writeString(String string) {
+			if (string == null) {
+				writeVarint(0);
+				return;
+			}
+			byte[] encoded = string.getBytes(UTF_8);
+			writeVarint(encoded.length + 1);
+			writeBytes(encoded, 0, encoded.length);
+		}
+
+		void writeBytes(byte[] source, int offset, int length) {
+			ensure(length);
+			System.arraycopy(source, offset, bytes, size, length);
+			size += length;
+		}
+
+		int size() {
+			return size;
+		}
+
+		void clear() {
+			size = 0;
+		}
+
+		/**
+		 * Forgets what was written after the given size.
+		 */
+		void truncate(int size) {
+			this.size = size;
+		}
+
+		/**
+		 * @return a copy of what has been written, ready to read
+		 */
+		ByteBuffer toBuffer() {
+			return ByteBuffer.wrap(Arrays.copyOf(bytes, size));
+		}
+
+		/**
+		 * @return a copy of the requests that have been written, with their
+		 *         count in front, ready to send as a batch
+		 */
+		ByteBuffer toBatch(int count) {
+			Encoder batch = new Encoder();
+			batch.bytes = new byte[size + 5];
+			batch.writeVarint(count);
+			batch.writeBytes(bytes, 0, size);
+			return ByteBuffer.wrap(batch.bytes, 0, batch.size);
+		}
+
+		private void ensure(int length) {
+			if (size + length > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+			}
+		}
+	}
+
+	/**
+	 * Writes a batch or reply with its length in front.
+	 */
+	static void writeFrame(SocketChannel channel, ByteBuffer body) throws IOException {
+		ByteBuffer[] frame = { ByteBuffer.allocate(4).putInt(0, body.remaining()), body };
+		while (frame[1].hasRemaining()) {
+			channel.write(frame);
+		}
+	}
+
+	/**
+	 * @return the next batch or reply, or null if the channel was closed
+	 *         between frames
+	 */
+	static ByteBuffer readFrame(SocketChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(4);
+		if (!readFully(channel, header, true)) {
+			return null;
+		}
+		int length = header.getInt(0);
+		if (length < 0 || length > MAX_FRAME) {
+			throw new IOException("Malformed fleet protocol frame of " + length + " bytes.");
+		}
+		ByteBuffer body = ByteBuffer.allocate(length);
+		readFully(channel, body, false);
+		body.flip();
+		return body;
+	}
+
+	private static boolean readFully(SocketChannel channel, ByteBuffer buffer, boolean atFrameStart) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				if (atFrameStart && buffer.position() == 0) {
+					return false;
+				}
+				throw new EOFException("The connection closed in the middle of a frame.");
+			}
+		}
+		return true;
+	}
+
+	static int readVarint(ByteBuffer in) {
+		return CommandLog.readVarint(in);
+	}
+
+	static int readSigned(ByteBuffer in) {
+		int zigzag = CommandLog.readVarint(in);
+		return zigzag >>> 1 ^ -(zigzag & 1);
+	}
+
+	/**
+	 * @return a count of elements still to be read, each taking at least a
+	 *         byte, so that a count the input cannot hold is refused before
+	 *         anything is allocated for it
+	 * @throws BufferUnderflowException
+	 *             if the count is negative or more than the bytes left
+	 */
+	static int readCount(ByteBuffer in) {
+		int count = readVarint(in);
+		if (count < 0 || count > in.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		return count;
+	}
+
+	/**
+	 * @return a length written as one more than the length, 0 for null, as
+	 *         {@link #readCount(ByteBuffer)} checks it
+	 */
+	private static int readLength(ByteBuffer in) {
+		int length = readVarint(in);
+		if (length < 0 || length - 1 > in.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		return length - 1;
+	}
+
+	/**
+	 * @return the list written by {@link Encoder#writeInts(List)}, or null
+	 */
+	static List<Integer> readInts(ByteBuffer in) {
+		int length = readLength(in);
+		if (length < 0) {
+			return null;
+		}
+		List<Integer> values = new ArrayList<Integer>(length);
+		for (int i = 0; i < length; i++) {
+			values.add(readSigned(in));
+		}
+		return values;
+	}
+
+	static String readString(ByteBuffer in) {
+		int length = readLength(in);
+		if (length < 0) {
+			return null;
+		}
+		byte[] encoded = new byte[length];
+		in.get(encoded);
+		return new String(encoded, UTF_8);
+	}
+
+	static List<String> readStrings(ByteBuffer in) {
+		int length = readLength(in);
+		if (length < 0) {
+			return null;
+		}
+		List<String> strings = new ArrayList<String>(length);
+		for (int i = 0; i < length; i++) {
+			strings.add(readString(in));
+		}
+		return strings;
+	}
+
+	/**
+	 * Writes what unload() or extract() returned: the coins in front, then
+	 * the pops a run at a time.
+	 */
+	static void writeItems(Encoder out, List<Object> items) {
+		PopRuns runs = (PopRuns) items;
+		long popCount = 0;
+		for (int run = 0; run < runs.runs(); run++) {
+			popCount += runs.countAt(run);
+		}
+		int coinCount = (int) (items.size() - popCount);
+		out.writeVarint(coinCount);
+		for (int i = 0; i < coinCount; i++) {
+			out.writeSigned((Integer) items.get(i));
+		}
+		out.writeVarint(runs.runs());
+		for (int run = 0; run < runs.runs(); run++) {
+			out.writeString(runs.popAt(run).getName());
+			out.writeVarint(runs.countAt(run));
+		}
+	}
+
+	/**
+	 * @return the items of an extract() reply, with the catalogue's pops
+	 */
+	static List<Object> readDelivery(ByteBuffer in) {
+		int coinCount = readCount(in);
+		List<Object> items = new ArrayList<Object>(coinCount);
+		for (int i = 0; i < coinCount; i++) {
+			items.add(readSigned(in));
+		}
+		int runs = readVarint(in);
+		for (int run = 0; run < runs; run++) {
+			Pop pop = PopCatalog.SHARED.popOf(readString(in));
+			for (int count = readVarint(in); count > 0; count--) {
+				items.add(pop);
+			}
+		}
+		return items;
+	}
+
+	/**
+	 * @return the items of an unload() reply, still in runs
+	 */
+	static UnloadedItems readTeardown(ByteBuffer in) {
+		if (readVarint(in) != 2) {
+			throw new IllegalStateException("An unload reply must start with the change and the payments.");
+		}
+		int coinValue = readSigned(in);
+		int payments = readSigned(in);
+		int runs = readCount(in);
+		Pop[] pops = new Pop[runs];
+		int[] counts = new int[runs];
+		for (int run = 0; run < runs; run++) {
+			pops[run] = PopCatalog.SHARED.popOf(readString(in));
+			counts[run] = readVarint(in);
+		}
+		return new UnloadedItems(coinValue, payments, pops, counts);
+	}
+
+	static void writeFailure(Encoder out, RuntimeException e) {
+		if (e instanceof IllegalArgumentException) {
+			out.writeVarint(ILLEGAL_ARGUMENT);
+		} else if (e instanceof IllegalStateException) {
+			out.writeVarint(ILLEGAL_STATE);
+		} else if (e instanceof NullPointerException) {
+			out.writeVarint(NULL_POINTER);
+		} else {
+			out.writeVarint(FAILED);
+		}
+		out.writeString(e.getMessage() != null ? e.getMessage() : e.toString());
+	}
+
+	/**
+	 * @return the exception a worker sent back in place of a result
+	 */
+	static RuntimeException readFailure(int status, ByteBuffer in) {
+		String message = readString(in);
+		switch (status) {
+		case ILLEGAL_ARGUMENT:
+			return new IllegalArgumentException(message);
+		case ILLEGAL_STATE:
+			return new IllegalStateException(message);
+		case NULL_POINTER:
+			return new NullPointerException(message);
+		default:
+			return new RuntimeException(message);
+		}
+	}
+}
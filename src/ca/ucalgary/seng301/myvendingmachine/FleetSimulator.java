@@ -0,0 +1,601 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ca.ucalgary.seng301.vendingmachine.Pop;
+
+/**
+ * Drives a fleet of vending machines with a generated workload and reports
+ * how they held up. Each machine gets its own stream of transactions from a
+ * random generator seeded by the workload seed and the machine's ID, so a
+ * run is reproducible whatever the number of threads. In a transaction, a
+ * customer picks a button by Zipfian popularity, inserts coins drawn from the
+ * coin mix, with the occasional invalid coin, until the credit covers the
+ * price, presses the button, and extracts whatever is delivered. Every
+ * machine is restocked at a fixed cadence. The same customers can also be
+ * run against forks of a live machine, with
+ * {@link #whatIf(VendingMachineFactory, int, long, int)}, to see how it would
+ * fare without changing it.
+ * 
+ * <p>
+ * Usage:
+ * <code>FleetSimulator [--machines n] [--transactions n] [--threads n] [--seed n] [--coins 5,10,25,100] [--coin-weights 1,1,1,1] [--buttons n] [--zipf s] [--invalid-rate p] [--restock-every n] [--scripts directory]</code>
+ * 
+ * <p>
+ * With <code>--scripts</code>, the workload of each machine is also written
+ * as a script, with a CHECK_DELIVERY after every extraction and a
+ * CHECK_TEARDOWN at the end holding what the machine actually delivered, so
+ * that the scripts can be replayed and checked by the script parser or by
+ * {@link ScriptRunner}.
+ */
+public class FleetSimulator {
+
+	/**
+	 * The shape of the machines and the behaviour of their customers.
+	 */
+	public static class Workload {
+		long seed = 301;
+		int[] coinKinds = { 5, 10, 25, 100 };
+		int[] coinWeights = { 1, 2, 3, 4 };									//Relative frequency of each coin kind
+		int buttonCount = 10;
+		double zipfExponent = 1.0;
+		double invalidCoinRate = 0.02;
+		int minPrice = 50;
+		int maxPrice = 300;
+		int restockInterval = 500;											//Transactions between restocks
+		int restockCoins = 50;												//Coins of each kind loaded per restock
+		int restockPops = 40;												//Pops per slot loaded per restock
+
+		public void setSeed(long seed) {
+			this.seed = seed;
+		}
+
+		/**
+		 * @param coinWeights
+		 *            the relative frequency of each coin kind in customers'
+		 *            payments
+		 */
+		public void setCoins(int[] coinKinds, int[] coinWeights) {
+			if (coinKinds.length == 0 || coinKinds.length != coinWeights.length) {
+				throw new IllegalArgumentException("There must be a weight for each of one or more coin kinds.");
+			}
+			this.coinKinds = coinKinds.clone();
+			this.coinWeights = coinWeights.clone();
+		}
+
+		public void setButtonCount(int buttonCount) {
+			if (buttonCount <= 0) {
+				throw new IllegalArgumentException("The selection button count must be positive.");
+			}
+			this.buttonCount = buttonCount;
+		}
+
+		/**
+		 * @param zipfExponent
+		 *            the skew of button popularity; 0 makes every button
+		 *            equally popular
+		 */
+		public void setZipfExponent(double zipfExponent) {
+			this.zipfExponent = zipfExponent;
+		}
+
+		public void setInvalidCoinRate(double invalidCoinRate) {
+			if (invalidCoinRate < 0 || invalidCoinRate >= 1) {
+				throw new IllegalArgumentException("The invalid coin rate must be at least 0 and less than 1.");
+			}
+			this.invalidCoinRate = invalidCoinRate;
+		}
+
+		/**
+		 * Prices are drawn for each button, in multiples of the smallest coin
+		 * kind.
+		 */
+		public void setPriceRange(int minPrice, int maxPrice) {
+			if (minPrice <= 0 || maxPrice < minPrice) {
+				throw new IllegalArgumentException("The price range must be positive and not empty.");
+			}
+			this.minPrice = minPrice;
+			this.maxPrice = maxPrice;
+		}
+
+		/**
+		 * @param restockInterval
+		 *            the number of transactions between restocks, or 0 to
+		 *            stock the machines only once
+		 */
+		public void setRestock(int restockInterval, int restockCoins, int restockPops) {
+			if (restockInterval < 0 || restockCoins < 0 || restockPops < 0) {
+				throw new IllegalArgumentException("The restock cadence and amounts cannot be negative.");
+			}
+			this.restockInterval = restockInterval;
+			this.restockCoins = restockCoins;
+			this.restockPops = restockPops;
+		}
+	}
+
+	/**
+	 * What a simulation measured.
+	 */
+	public static class Report {
+		int machines;
+		long transactions;
+		long presses;
+		long vends;
+		long soldOut;
+		long changeShortfalls;
+		long invalidCoins;
+		long popsLeft;															//Pops left in the machines at the end
+		long changeLeft;														//Value of the change left at the end
+		double seconds;
+		final long[] latencies = new long[LatencyHistogram.BUCKETS];		//Transaction latency histogram
+
+		public long getTransactions() {
+			return transactions;
+		}
+
+		public double getThroughput() {
+			return transactions / seconds;
+		}
+
+		/**
+		 * @return the fraction of presses that found their slot empty
+		 */
+		public double getSellOutRate() {
+			return presses == 0 ? 0 : (double) soldOut / presses;
+		}
+
+		/**
+		 * @return the fraction of vends whose change could not be paid in full
+		 */
+		public double getNoChangeRate() {
+			return vends == 0 ? 0 : (double) changeShortfalls / vends;
+		}
+
+		/**
+		 * @return the transaction latency in nanoseconds at a percentile
+		 *         between 0 and 100
+		 */
+		public long getLatency(double percentile) {
+			return LatencyHistogram.percentile(latencies, percentile);
+		}
+
+		/**
+		 * @return the mean number of pops left in a machine at the end
+		 */
+		public double getPopsLeft() {
+			return machines == 0 ? 0 : (double) popsLeft / machines;
+		}
+
+		/**
+		 * @return the mean value of the change left in a machine at the end
+		 */
+		public double getChangeLeft() {
+			return machines == 0 ? 0 : (double) changeLeft / machines;
+		}
+
+		public String toText() {
+			return String.format(Locale.ROOT, "%d machines, %,d transactions in %.2f s, %,.0f transactions/s%n"
+					+ "latency p50 %d ns  p90 %d ns  p99 %d ns  p99.9 %d ns  max %d ns%n"
+					+ "sell-out rate %.4f  no-change rate %.4f  invalid coins %,d%n"
+					+ "left per machine: %.1f pops, %.1f in change%n", machines, transactions, seconds,
+					getThroughput(), getLatency(50), getLatency(90), getLatency(99), getLatency(99.9), getLatency(100),
+					getSellOutRate(), getNoChangeRate(), invalidCoins, getPopsLeft(), getChangeLeft());
+		}
+
+		void add(Report report) {
+			machines += report.machines;
+			transactions += report.transactions;
+			presses += report.presses;
+			vends += report.vends;
+			soldOut += report.soldOut;
+			changeShortfalls += report.changeShortfalls;
+			invalidCoins += report.invalidCoins;
+			popsLeft += report.popsLeft;
+			changeLeft += report.changeLeft;
+			for (int i = 0; i < latencies.length; i++) {
+				latencies[i] += report.latencies[i];
+			}
+		}
+	}
+
+	private final Workload workload;
+
+	public FleetSimulator(Workload workload) {
+		this.workload = workload;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Workload workload = new Workload();
+		int machines = 100;
+		long transactions = 1000000;
+		int threads = Runtime.getRuntime().availableProcessors();
+		Path scripts = null;
+		int[] coinKinds = workload.coinKinds;
+		int[] coinWeights = null;
+		for (int i = 0; i < args.length; i++) {
+			if (i + 1 == args.length) {
+				throw new IllegalArgumentException("Unknown option or missing value: " + args[i]);
+			} else if (args[i].equals("--machines")) {
+				machines = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--transactions")) {
+				transactions = Long.parseLong(args[++i]);
+			} else if (args[i].equals("--threads")) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--seed")) {
+				workload.setSeed(Long.parseLong(args[++i]));
+			} else if (args[i].equals("--coins")) {
+				coinKinds = parseInts(args[++i]);
+			} else if (args[i].equals("--coin-weights")) {
+				coinWeights = parseInts(args[++i]);
+			} else if (args[i].equals("--buttons")) {
+				workload.setButtonCount(Integer.parseInt(args[++i]));
+			} else if (args[i].equals("--zipf")) {
+				workload.setZipfExponent(Double.parseDouble(args[++i]));
+			} else if (args[i].equals("--invalid-rate")) {
+				workload.setInvalidCoinRate(Double.parseDouble(args[++i]));
+			} else if (args[i].equals("--restock-every")) {
+				workload.setRestock(Integer.parseInt(args[++i]), workload.restockCoins, workload.restockPops);
+			} else if (args[i].equals("--scripts")) {
+				scripts = Paths.get(args[++i]);
+			} else {
+				throw new IllegalArgumentException("Unknown option: " + args[i]);
+			}
+		}
+		if (coinWeights == null && coinKinds == workload.coinKinds) {
+			coinWeights = workload.coinWeights;
+		} else if (coinWeights == null) {
+			coinWeights = new int[coinKinds.length];
+			Arrays.fill(coinWeights, 1);
+		}
+		workload.setCoins(coinKinds, coinWeights);
+		System.out.print(new FleetSimulator(workload).run(machines, transactions, threads, scripts).toText());
+	}
+
+	/**
+	 * Runs the workload on a fleet of machines, with the transactions shared
+	 * out evenly between them.
+	 * 
+	 * @param scripts
+	 *            the directory to write a script for each machine into, or
+	 *            null for none
+	 */
+	public Report run(int machines, long transactions, int threads, final Path scripts) throws IOException, InterruptedException {
+		if (machines <= 0 || threads <= 0 || transactions < 0) {
+			throw new IllegalArgumentException("The machine and thread counts must be positive.");
+		}
+		if (scripts != null) {
+			Files.createDirectories(scripts);
+		}
+		List<Callable<Report>> tasks = new ArrayList<Callable<Report>>(machines);
+		for (int id = 0; id < machines; id++) {
+			final int machineId = id;
+			final long share = transactions / machines + (id < transactions % machines ? 1 : 0);
+			tasks.add(new Callable<Report>() {
+				@Override
+				public Report call() throws IOException {
+					return simulate(machineId, share, scripts == null ? null : scripts.resolve("machine-" + machineId + "-script"));
+				}
+			});
+		}
+		return runAll(tasks, threads);
+	}
+
+	/**
+	 * Runs the workload's customers against forks of a machine, each with its
+	 * own stream of transactions, and adds up what happened to them, leaving
+	 * the machine itself as it is. The customers pay with the machine's coin
+	 * kinds, weighted as in the workload if it has a weight for each, and
+	 * choose among the machine's buttons by the workload's popularity. The
+	 * machine must not be operated while it is being forked.
+	 * 
+	 * @param forks
+	 *            the number of forks, each of which runs all the
+	 *            transactions
+	 */
+	public Report whatIf(VendingMachineFactory machine, int forks, final long transactions, int threads) throws InterruptedException {
+		if (forks <= 0 || threads <= 0 || transactions < 0) {
+			throw new IllegalArgumentException("The fork and thread counts must be positive.");
+		}
+		List<Callable<Report>> tasks = new ArrayList<Callable<Report>>(forks);
+		for (int i = 0; i < forks; i++) {
+			final VendingMachineFactory fork = machine.fork();						//Forked here, while the machine is idle
+			final Xorshift random = new Xorshift(workload.seed, i);
+			tasks.add(new Callable<Report>() {
+				@Override
+				public Report call() throws IOException {
+					return drive(fork, random, transactions, null);
+				}
+			});
+		}
+		try {
+			return runAll(tasks, threads);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);										//Nothing is written
+		}
+	}
+
+	/**
+	 * Runs tasks on a pool of threads and adds up their reports.
+	 */
+	private static Report runAll(List<Callable<Report>> tasks, int threads) throws IOException, InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		long start = System.nanoTime();
+		Report total = new Report();
+		try {
+			for (Future<Report> future : pool.invokeAll(tasks)) {
+				total.add(future.get());
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException("A simulated machine failed.", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		total.seconds = (System.nanoTime() - start) / 1e9;
+		return total;
+	}
+
+	/**
+	 * Runs one machine's share of the workload.
+	 */
+	Report simulate(int machineId, long transactions, Path script) throws IOException {
+		Xorshift random = new Xorshift(workload.seed, machineId);
+		int unit = Integer.MAX_VALUE;
+		for (int coinKind : workload.coinKinds) {
+			unit = Math.min(unit, coinKind);
+		}
+		List<String> names = new ArrayList<String>();
+		List<Integer> prices = new ArrayList<Integer>();
+		for (int i = 0; i < workload.buttonCount; i++) {
+			names.add("pop" + i);
+			int units = Math.max(1, (workload.maxPrice - workload.minPrice) / unit + 1);
+			prices.add(Math.max(unit, workload.minPrice / unit * unit) + unit * random.nextInt(units));
+		}
+		List<Integer> coinKindList = new ArrayList<Integer>();
+		for (int coinKind : workload.coinKinds) {
+			coinKindList.add(coinKind);
+		}
+		List<Integer> coinCounts = Collections.nCopies(workload.coinKinds.length, workload.restockCoins);
+		List<Integer> popCounts = Collections.nCopies(workload.buttonCount, workload.restockPops);
+
+		VendingMachineFactory factory = new VendingMachineFactory();
+		try (BufferedWriter out = script == null ? null : Files.newBufferedWriter(script, Charset.forName("UTF-8"))) {
+			factory.construct(coinKindList, workload.buttonCount);
+			factory.configure(names, prices);
+			factory.load(coinCounts, popCounts);
+			if (out != null) {
+				out.write("construct(" + join(coinKindList) + "; " + workload.buttonCount + ")\n");
+				out.write("configure(" + quote(names) + "; " + join(prices) + ")\n");
+				out.write("load(" + join(coinCounts) + "; " + join(popCounts) + ")\n");
+			}
+			Report report = drive(factory, random, transactions, out);
+			if (out != null) {
+				UnloadedItems teardown = factory.unload();
+				out.write("unload()\n");
+				out.write("CHECK_TEARDOWN(" + teardown.getCoinValue() + "; " + teardown.getPayments());
+				String pops = expand(teardown);
+				out.write(pops.isEmpty() ? ")\n" : ";" + pops.substring(1) + ")\n");
+			}
+			return report;
+		}
+	}
+
+	/**
+	 * Runs transactions against a machine that is ready to sell, restocking
+	 * it at the workload's cadence.
+	 * 
+	 * @param out
+	 *            receives the transactions as script commands, or is null
+	 */
+	private Report drive(VendingMachineFactory factory, Xorshift random, long transactions, BufferedWriter out) throws IOException {
+		int[] coinKinds = factory.vendingMachine.coinValues;
+		int[] prices = factory.getPriceTable().prices;
+		int[] coinWeights = workload.coinWeights.length == coinKinds.length ? workload.coinWeights : null;
+		double[] coinCdf = cumulative(coinKinds.length, coinWeights, 0);			//Equally likely without weights
+		double[] buttonCdf = cumulative(prices.length, null, workload.zipfExponent);
+		int invalidCoin = invalidCoin(coinKinds);
+		List<Integer> coinCounts = Collections.nCopies(coinKinds.length, workload.restockCoins);
+		List<Integer> popCounts = Collections.nCopies(prices.length, workload.restockPops);
+
+		FactoryMetrics metrics = new FactoryMetrics(1);
+		factory.setMetrics(metrics);
+		LatencyHistogram latency = new LatencyHistogram();
+		long invalidCoins = 0;
+		int credit = factory.vendingMachine.currentPaymentCredit;
+		int[] coins = new int[16];
+		for (long t = 0; t < transactions; t++) {
+			if (workload.restockInterval > 0 && t > 0 && t % workload.restockInterval == 0) {
+				factory.load(coinCounts, popCounts);
+				if (out != null) {
+					out.write("load(" + join(coinCounts) + "; " + join(popCounts) + ")\n");
+				}
+			}
+			int button = search(buttonCdf, random.nextDouble());
+			int price = prices[button];
+			int coinCount = 0;
+			while (credit < price) {												//Draw the coins before timing
+				int value = random.nextDouble() < workload.invalidCoinRate ? invalidCoin
+						: coinKinds[search(coinCdf, random.nextDouble())];
+				if (coinCount == coins.length) {
+					coins = Arrays.copyOf(coins, coinCount * 2);
+				}
+				coins[coinCount++] = value;
+				if (value == invalidCoin) {
+					invalidCoins++;
+				} else {
+					credit += value;
+				}
+			}
+
+			long start = System.nanoTime();
+			for (int i = 0; i < coinCount; i++) {
+				factory.insert(coins[i]);
+			}
+			factory.press(button);
+			DeliveryChute delivered = factory.extract();
+			latency.record(System.nanoTime() - start);
+
+			if (delivered.popCount() > 0) {
+				credit = 0;																//Change was paid out
+			}
+			if (out != null) {
+				for (int i = 0; i < coinCount; i++) {
+					out.write("insert(" + coins[i] + ")\n");
+				}
+				out.write("press(" + button + ")\nextract()\n");
+				out.write("CHECK_DELIVERY(" + delivered.getCoinValue() + expand(delivered) + ")\n");
+			}
+		}
+
+		FactoryMetrics.Snapshot counts = metrics.snapshot();
+		Report report = new Report();
+		report.machines = 1;
+		report.transactions = transactions;
+		report.presses = counts.count(FactoryMetrics.Operation.PRESS);
+		report.vends = counts.get(FactoryMetrics.Event.POP_VENDED);
+		report.soldOut = counts.get(FactoryMetrics.Event.PRESS_SOLD_OUT);
+		report.changeShortfalls = counts.get(FactoryMetrics.Event.CHANGE_SHORTFALL);
+		report.invalidCoins = invalidCoins;
+		report.popsLeft = factory.getPopCount();
+		report.changeLeft = factory.getChangeValue();
+		latency.addTo(report.latencies);
+		return report;
+	}
+
+	/**
+	 * @return the smallest positive value that is not a coin kind
+	 */
+	private static int invalidCoin(int[] coinKinds) {
+		int value = 1;
+		while (true) {
+			boolean taken = false;
+			for (int coinKind : coinKinds) {
+				taken |= coinKind == value;
+			}
+			if (!taken) {
+				return value;
+			}
+			value++;
+		}
+	}
+
+	/**
+	 * @return the cumulative distribution of either the given weights or, if
+	 *         they are null, Zipfian weights 1 / rank^exponent
+	 */
+	private static double[] cumulative(int count, int[] weights, double exponent) {
+		double[] cdf = new double[count];
+		double total = 0;
+		for (int i = 0; i < count; i++) {
+			total += weights != null ? weights[i] : 1 / Math.pow(i + 1, exponent);
+			cdf[i] = total;
+		}
+		for (int i = 0; i < count; i++) {
+			cdf[i] /= total;
+		}
+		return cdf;
+	}
+
+	/**
+	 * @return the index of the first cumulative probability above the sample
+	 */
+	private static int search(double[] cdf, double sample) {
+		int low = 0;
+		int high = cdf.length - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (cdf[middle] <= sample) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	private static String join(List<Integer> values) {
+		StringBuilder text = new StringBuilder();
+		for (int value : values) {
+			text.append(text.length() == 0 ? "" : ", ").append(value);
+		}
+		return text.toString();
+	}
+
+	private static String quote(List<String> names) {
+		StringBuilder text = new StringBuilder();
+		for (String name : names) {
+			text.append(text.length() == 0 ? "\"" : ", \"").append(name).append('"');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * @return ", " and the quoted name of each pop in a delivery chute or
+	 *         teardown, in the form the CHECK commands take
+	 */
+	private static String expand(List<Object> items) {
+		StringBuilder text = new StringBuilder();
+		for (Object item : items) {
+			if (item instanceof Pop) {
+				text.append(", \"").append(((Pop) item).getName()).append('"');
+			}
+		}
+		return text.toString();
+	}
+
+	private static int[] parseInts(String list) {
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			values[i] = Integer.parseInt(parts[i].trim());
+		}
+		return values;
+	}
+
+	/**
+	 * A xorshift64* generator, small and fast enough that generating the
+	 * workload does not hide the cost of the machines.
+	 */
+	private static final class Xorshift {
+		private long state;
+
+		Xorshift(long seed, int stream) {
+			long z = seed + 0x9E3779B97F4A7C15L * (stream + 1);				//SplitMix64 mixes the seed and stream
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			state = (z ^ (z >>> 31)) | 1;
+		}
+
+		long nextLong() {
+			state ^= state >>> 12;
+			state ^= state << 25;
+			state ^= state >>> 27;
+			return state * 0x2545F4914F6CDD1DL;
+		}
+
+		int nextInt(int bound) {
+			return (int) ((nextLong() >>> 33) % bound);
+		}
+
+		double nextDouble() {
+			return (nextLong() >>> 11) * 0x1.0p-53;
+		}
+	}
+}
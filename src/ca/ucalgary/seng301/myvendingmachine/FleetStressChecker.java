@@ -0,0 +1,258 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A stress check for the fleets: many threads operate the same few machines
+ * at once, first through a {@link VendingMachineFleet} and then through an
+ * {@link AsyncVendingMachineFleet}, and afterwards every coin and pop is
+ * accounted for. An operation lost, applied twice or interleaved with another
+ * on the same machine shows up as coins or pops too many or too few.
+ *
+ * <p>
+ * Usage: <code>FleetStressChecker [--threads n] [--operations n]</code>
+ *
+ * <p>
+ * Half of each thread's operations go to machine 0, so that every thread
+ * contends for it. Prints one line per fleet, and exits with status 1 if any
+ * machine's totals are wrong or an operation failed, or 2 for bad arguments.
+ */
+public class FleetStressChecker {
+
+	private static final int MACHINES = 4;									//Few, so that the threads contend for them
+	private static final List<Integer> COIN_KINDS = Arrays.asList(5, 10, 25, 100);
+	private static final List<Integer> COIN_COUNTS = Arrays.asList(100, 100, 100, 0);
+	private static final int LOADED_CHANGE = 100 * (5 + 10 + 25);
+	private static final int POPS_PER_SLOT = 1000;
+	private static final int INVALID_COIN = 3;
+	private static final int WINDOW = 1024;									//Async sends outstanding per thread
+
+	/**
+	 * What the threads put into each machine and got out of it.
+	 */
+	private static final class Tally {
+		final AtomicLongArray accepted = new AtomicLongArray(MACHINES);
+		final AtomicLongArray rejected = new AtomicLongArray(MACHINES);
+		final AtomicLongArray extractedCoins = new AtomicLongArray(MACHINES);
+		final AtomicLongArray extractedPops = new AtomicLongArray(MACHINES);
+
+		void collect(int id, List<?> items) {
+			for (Object item : items) {
+				if (item instanceof Integer) {
+					extractedCoins.addAndGet(id, (Integer) item);
+				} else {
+					extractedPops.incrementAndGet(id);
+				}
+			}
+		}
+
+		/**
+		 * @return what does not add up for a machine that has been extracted
+		 *         and unloaded, or null if everything does
+		 */
+		String check(int id, List<?> teardown) {
+			int changeLeft = (Integer) teardown.get(0);
+			int payments = (Integer) teardown.get(1);
+			long changePaid = LOADED_CHANGE - changeLeft;
+			if (payments != accepted.get(id)) {
+				return "machine " + id + " took " + payments + " in payments but was paid " + accepted.get(id);
+			}
+			if (extractedCoins.get(id) != rejected.get(id) + changePaid) {
+				return "machine " + id + " delivered " + extractedCoins.get(id) + " in coins but rejected " + rejected.get(id)
+						+ " and paid " + changePaid + " in change";
+			}
+			long popsLeft = teardown.size() - 2;
+			if (extractedPops.get(id) + popsLeft != 3 * POPS_PER_SLOT) {
+				return "machine " + id + " delivered " + extractedPops.get(id) + " pops and had " + popsLeft + " left of "
+						+ 3 * POPS_PER_SLOT;
+			}
+			return null;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threadCount = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+		int operations = 200000;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--threads") && i + 1 < args.length) {
+				threadCount = positive(args[++i]);
+			} else if (args[i].equals("--operations") && i + 1 < args.length) {
+				operations = positive(args[++i]);
+			} else {
+				usage();
+			}
+		}
+		boolean passed = checkFleet(threadCount, operations);
+		passed &= checkAsync(threadCount, operations);
+		if (!passed) {
+			System.exit(1);
+		}
+	}
+
+	private static int positive(String arg) {
+		try {
+			int value = Integer.parseInt(arg);
+			if (value > 0) {
+				return value;
+			}
+		} catch (NumberFormatException e) {
+			//Reported below
+		}
+		usage();
+		return 0;
+	}
+
+	private static void usage() {
+		System.err.println("Usage: FleetStressChecker [--threads n] [--operations n]");
+		System.exit(2);
+	}
+
+	/**
+	 * @return the machine for a thread's next operation: machine 0 half the
+	 *         time, otherwise any
+	 */
+	private static int pick(Random random) {
+		return random.nextBoolean() ? 0 : random.nextInt(MACHINES);
+	}
+
+	private static boolean checkFleet(int threadCount, final int operations) throws InterruptedException {
+		final VendingMachineFleet fleet = new VendingMachineFleet(MACHINES);
+		for (int id = 0; id < MACHINES; id++) {
+			fleet.construct(id, COIN_KINDS, 3);
+			fleet.configure(id, Arrays.asList("Coke", "water", "stuff"), Arrays.asList(250, 250, 205));
+			fleet.load(id, COIN_COUNTS, Arrays.asList(POPS_PER_SLOT, POPS_PER_SLOT, POPS_PER_SLOT));
+		}
+		final Tally tally = new Tally();
+		final Throwable[] failure = new Throwable[1];
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			final Random random = new Random(t);
+			threads[t] = new Thread("fleet-stress-" + t) {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < operations; i++) {
+							int id = pick(random);
+							int choice = random.nextInt(100);
+							if (choice < 70) {
+								int value = COIN_KINDS.get(random.nextInt(COIN_KINDS.size()));
+								fleet.insert(id, value);
+								tally.accepted.addAndGet(id, value);
+							} else if (choice < 75) {
+								fleet.insert(id, INVALID_COIN);
+								tally.rejected.addAndGet(id, INVALID_COIN);
+							} else if (choice < 95) {
+								fleet.press(id, random.nextInt(3));
+							} else {
+								tally.collect(id, fleet.extract(id));
+							}
+						}
+					} catch (Throwable e) {
+						failure[0] = e;
+					}
+				}
+			};
+		}
+		long elapsed = runAll(threads);
+
+		String problem = failure[0] != null ? "an operation failed: " + failure[0] : null;
+		for (int id = 0; id < MACHINES && problem == null; id++) {
+			tally.collect(id, fleet.extract(id));
+			problem = tally.check(id, fleet.unload(id));
+		}
+		return report("fleet", threadCount, operations, elapsed, problem);
+	}
+
+	private static boolean checkAsync(int threadCount, final int operations) throws Exception {
+		try (final AsyncVendingMachineFleet fleet = new AsyncVendingMachineFleet(MACHINES, Runtime.getRuntime().availableProcessors())) {
+			List<Future<Void>> ready = new ArrayList<Future<Void>>();
+			for (int id = 0; id < MACHINES; id++) {
+				fleet.construct(id, COIN_KINDS, 3);
+				fleet.configure(id, Arrays.asList("Coke", "water", "stuff"), Arrays.asList(250, 250, 205));
+				ready.add(fleet.load(id, COIN_COUNTS, Arrays.asList(POPS_PER_SLOT, POPS_PER_SLOT, POPS_PER_SLOT)));
+			}
+			for (Future<Void> future : ready) {
+				future.get();
+			}
+			final Tally tally = new Tally();
+			final Throwable[] failure = new Throwable[1];
+			Thread[] threads = new Thread[threadCount];
+			for (int t = 0; t < threadCount; t++) {
+				final Random random = new Random(t);
+				threads[t] = new Thread("async-stress-" + t) {
+					@Override
+					public void run() {
+						List<Future<?>> sent = new ArrayList<Future<?>>(WINDOW);
+						int[] sentTo = new int[WINDOW];
+						try {
+							for (int i = 0; i < operations; i++) {
+								int id = pick(random);
+								int choice = random.nextInt(100);
+								sentTo[sent.size()] = id;
+								if (choice < 70) {
+									int value = COIN_KINDS.get(random.nextInt(COIN_KINDS.size()));
+									sent.add(fleet.insert(id, value));
+									tally.accepted.addAndGet(id, value);
+								} else if (choice < 75) {
+									sent.add(fleet.insert(id, INVALID_COIN));
+									tally.rejected.addAndGet(id, INVALID_COIN);
+								} else if (choice < 95) {
+									sent.add(fleet.press(id, random.nextInt(3)));
+								} else {
+									sent.add(fleet.extract(id));
+								}
+								if (sent.size() == WINDOW || i == operations - 1) {
+									for (int j = 0; j < sent.size(); j++) {
+										Object result = sent.get(j).get();
+										if (result != null) {
+											tally.collect(sentTo[j], (List<?>) result);		//Only extract has a result
+										}
+									}
+									sent.clear();
+								}
+							}
+						} catch (Throwable e) {
+							failure[0] = e;
+						}
+					}
+				};
+			}
+			long elapsed = runAll(threads);
+
+			String problem = failure[0] != null ? "an operation failed: " + failure[0] : null;
+			for (int id = 0; id < MACHINES && problem == null; id++) {
+				tally.collect(id, fleet.extract(id).get());
+				problem = tally.check(id, fleet.unload(id).get());
+			}
+			return report("async", threadCount, operations, elapsed, problem);
+		}
+	}
+
+	/**
+	 * Starts the threads together and waits for all of them.
+	 *
+	 * @return the nanoseconds they took
+	 */
+	private static long runAll(Thread[] threads) throws InterruptedException {
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static boolean report(String fleet, int threadCount, int operations, long elapsed, String problem) {
+		double throughput = (double) threadCount * operations / elapsed * 1e9;
+		System.out.println(String.format("%s: %d threads on %d machines, %,.0f ops/s  %s", fleet, threadCount, MACHINES, throughput,
+				problem == null ? "PASS" : "FAIL " + problem));
+		return problem == null;
+	}
+}
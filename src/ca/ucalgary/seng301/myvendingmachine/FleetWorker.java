@@ -0,0 +1,271 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * One shard of a {@link ShardedFleet}: the machines whose IDs hash to it,
+ * each driven by its own {@link VendingMachineFactory}. A worker carries out
+ * batches of {@link FleetProtocol} requests one batch at a time, either in
+ * process through a {@link LoopbackTransport} or for clients connected over a
+ * socket.
+ *
+ * <p>
+ * Usage: <code>FleetWorker [--port n]</code>
+ *
+ * <p>
+ * Listens on the loopback interface, on an ephemeral port unless one is
+ * given, and prints <code>listening on port n</code> once it is ready.
+ */
+public class FleetWorker {
+
+	private final HashMap<Integer, VendingMachineFactory> machines = new HashMap<Integer, VendingMachineFactory>();
+	private final FleetProtocol.Encoder reply = new FleetProtocol.Encoder();
+
+	public static void main(String[] args) throws IOException {
+		int port = 0;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--port") && i + 1 < args.length) {
+				port = Integer.parseInt(args[++i]);
+			} else {
+				System.err.println("Usage: FleetWorker [--port n]");
+				System.exit(2);
+			}
+		}
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("127.0.0.1", port));
+		System.out.println("listening on port " + ((InetSocketAddress) server.getLocalAddress()).getPort());
+		System.out.flush();
+		new FleetWorker().listen(server);
+	}
+
+	/**
+	 * Serves every client that connects, each on its own thread, until the
+	 * server channel is closed.
+	 */
+	public void listen(ServerSocketChannel server) throws IOException {
+		while (true) {
+			final SocketChannel client = server.accept();
+			client.socket().setTcpNoDelay(true);
+			Thread thread = new Thread("fleet-worker-" + client.getRemoteAddress()) {
+				@Override
+				public void run() {
+					try {
+						serve(client);
+					} catch (IOException e) {
+						System.err.println(getName() + ": " + e.getMessage());
+					}
+				}
+			};
+			thread.start();
+		}
+	}
+
+	/**
+	 * Answers the batches from one client, in the order they arrive, until it
+	 * disconnects. A batch the worker refuses has no reply to send, so the
+	 * connection is closed instead, which fails the client's outstanding
+	 * batches as a lost connection would.
+	 */
+	void serve(SocketChannel client) throws IOException {
+		try {
+			ByteBuffer batch;
+			while ((batch = FleetProtocol.readFrame(client)) != null) {
+				ByteBuffer answer;
+				try {
+					answer = serve(batch);
+				} catch (RuntimeException e) {
+					System.err.println("Closing the connection from " + client.getRemoteAddress() + " after a refused batch: " + e);
+					return;
+				}
+				FleetProtocol.writeFrame(client, answer);
+			}
+		} finally {
+			client.close();
+		}
+	}
+
+	/**
+	 * Carries out a batch of requests.
+	 *
+	 * @return the reply to each of them, in order
+	 * @throws IllegalArgumentException
+	 *             if the batch is malformed, in which case none of it after
+	 *             the malformed request has been carried out
+	 */
+	public synchronized ByteBuffer serve(ByteBuffer batch) {
+		reply.clear();
+		try {
+			int count = FleetProtocol.readVarint(batch);
+			reply.writeVarint(count);
+			for (int i = 0; i < count; i++) {
+				int opcode = FleetProtocol.readVarint(batch);
+				int machineId = FleetProtocol.readVarint(batch);
+				request(opcode, machineId, batch);
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("A fleet protocol batch ended in the middle of a request.");
+		}
+		return reply.toBuffer();
+	}
+
+	/**
+	 * @return the number of machines held by this worker
+	 */
+	public synchronized int size() {
+		return machines.size();
+	}
+
+	private void request(int opcode, int machineId, ByteBuffer in) {
+		switch (opcode) {
+		case FleetProtocol.CONSTRUCT: {
+			List<Integer> coinKinds = FleetProtocol.readInts(in);
+			int selectionButtonCount = FleetProtocol.readSigned(in);
+			VendingMachineFactory machine = machines.get(machineId);
+			if (machine == null) {
+				machine = new VendingMachineFactory();
+			}
+			try {
+				machine.construct(coinKinds, selectionButtonCount);
+			} catch (RuntimeException e) {
+				FleetProtocol.writeFailure(reply, e);
+				return;
+			}
+			machines.put(machineId, machine);
+			reply.writeVarint(FleetProtocol.OK);
+			return;
+		}
+		case FleetProtocol.CONFIGURE: {
+			List<String> popNames = FleetProtocol.readStrings(in);
+			List<Integer> popCosts = FleetProtocol.readInts(in);
+			VendingMachineFactory machine = machine(machineId);
+			if (machine != null) {
+				try {
+					machine.configure(popNames, popCosts);
+					reply.writeVarint(FleetProtocol.OK);
+				} catch (RuntimeException e) {
+					FleetProtocol.writeFailure(reply, e);
+				}
+			}
+			return;
+		}
+		case FleetProtocol.LOAD: {
+			List<Integer> coinCounts = FleetProtocol.readInts(in);
+			List<Integer> popCounts = FleetProtocol.readInts(in);
+			VendingMachineFactory machine = machine(machineId);
+			if (machine != null) {
+				try {
+					machine.load(coinCounts, popCounts);
+					reply.writeVarint(FleetProtocol.OK);
+				} catch (RuntimeException e) {
+					FleetProtocol.writeFailure(reply, e);
+				}
+			}
+			return;
+		}
+		case FleetProtocol.UNLOAD:
+		case FleetProtocol.EXTRACT: {
+			VendingMachineFactory machine = machine(machineId);
+			if (machine != null) {
+				List<Object> items;
+				try {
+					items = opcode == FleetProtocol.UNLOAD ? machine.unload() : machine.extract();
+				} catch (RuntimeException e) {
+					FleetProtocol.writeFailure(reply, e);
+					return;
+				}
+				reply.writeVarint(FleetProtocol.OK);
+				FleetProtocol.writeItems(reply, items);
+			}
+			return;
+		}
+		case FleetProtocol.INSERT:
+		case FleetProtocol.PRESS: {
+			int value = FleetProtocol.readSigned(in);
+			VendingMachineFactory machine = machine(machineId);
+			if (machine != null) {
+				try {
+					if (opcode == FleetProtocol.INSERT) {
+						machine.insert(value);
+					} else {
+						machine.press(value);
+					}
+					reply.writeVarint(FleetProtocol.OK);
+				} catch (RuntimeException e) {
+					FleetProtocol.writeFailure(reply, e);
+				}
+			}
+			return;
+		}
+		case FleetProtocol.LIST: {
+			List<Integer> ids = new ArrayList<Integer>(machines.keySet());
+			Collections.sort(ids);
+			reply.writeVarint(FleetProtocol.OK);
+			reply.writeInts(ids);
+			return;
+		}
+		case FleetProtocol.EXPORT: {
+			VendingMachineFactory machine = machine(machineId);
+			if (machine != null) {
+				ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+				try {
+					MachineSnapshot.write(machine, new DataOutputStream(snapshot));
+				} catch (IOException e) {
+					throw new IllegalStateException(e);							//Memory streams do not throw
+				}
+				reply.writeVarint(FleetProtocol.OK);
+				reply.writeVarint(snapshot.size());
+				reply.writeBytes(snapshot.toByteArray(), 0, snapshot.size());
+			}
+			return;
+		}
+		case FleetProtocol.IMPORT: {
+			byte[] snapshot = new byte[FleetProtocol.readCount(in)];			//A bad length is a malformed batch
+			in.get(snapshot);
+			VendingMachineFactory machine = new VendingMachineFactory();
+			try {
+				MachineSnapshot.read(new DataInputStream(new ByteArrayInputStream(snapshot)), machine);
+			} catch (IOException e) {
+				FleetProtocol.writeFailure(reply, new IllegalArgumentException("Malformed machine snapshot: " + e));
+				return;
+			} catch (RuntimeException e) {
+				FleetProtocol.writeFailure(reply, e);							//A snapshot the machine itself refuses
+				return;
+			}
+			machines.put(machineId, machine);
+			reply.writeVarint(FleetProtocol.OK);
+			return;
+		}
+		case FleetProtocol.DROP:
+			machines.remove(machineId);
+			reply.writeVarint(FleetProtocol.OK);
+			return;
+		default:
+			throw new IllegalArgumentException("Unknown opcode " + opcode + " in a fleet protocol batch.");
+		}
+	}
+
+	/**
+	 * @return the machine with the given ID, or null after replying that it
+	 *         has not been constructed
+	 */
+	private VendingMachineFactory machine(int machineId) {
+		VendingMachineFactory machine = machines.get(machineId);
+		if (machine == null) {
+			FleetProtocol.writeFailure(reply, new IllegalStateException("Machine " + machineId + " has not been constructed."));
+		}
+		return machine;
+	}
+}
@@ -0,0 +1,85 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A consistent hash ring that assigns machine IDs to shards. Each shard owns
+ * the arcs ending at its points on the ring, and a machine belongs to the
+ * shard owning the first point at or after the machine's own hash. Adding a
+ * shard only takes over arcs from the others, so only about 1/n of the
+ * machines move, and only onto the new shard.
+ *
+ * <p>
+ * Rings never change; {@link #withShard()} makes a new one.
+ */
+final class HashRing {
+
+	static final int POINTS_PER_SHARD = 128;								//Enough to keep shards within a few percent of even
+
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;			//Keeps machine keys apart from point keys
+
+	private final long[] points;											//Sorted hashes of the shards' points
+	private final int[] owners;												//Shard owning each point
+	private final int shardCount;
+
+	HashRing(int shardCount) {
+		if (shardCount <= 0) {
+			throw new IllegalArgumentException("A ring must have at least one shard.");
+		}
+		this.shardCount = shardCount;
+		points = new long[shardCount * POINTS_PER_SHARD];
+		owners = new int[points.length];
+		final long[] keyed = new long[points.length];
+		for (int shard = 0, i = 0; shard < shardCount; shard++) {
+			for (int point = 0; point < POINTS_PER_SHARD; point++, i++) {
+				keyed[i] = mix((long) shard << 32 | point);
+			}
+		}
+		Integer[] order = new Integer[keyed.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(keyed[a], keyed[b]);
+			}
+		});
+		for (int i = 0; i < order.length; i++) {
+			points[i] = keyed[order[i]];
+			owners[i] = order[i] / POINTS_PER_SHARD;
+		}
+	}
+
+	int shardCount() {
+		return shardCount;
+	}
+
+	/**
+	 * @return the ring with one more shard, numbered {@link #shardCount()}
+	 */
+	HashRing withShard() {
+		return new HashRing(shardCount + 1);
+	}
+
+	/**
+	 * @return the shard that holds the machine with the given ID
+	 */
+	int shardOf(int machineId) {
+		int i = Arrays.binarySearch(points, mix(machineId + GOLDEN_GAMMA));
+		if (i < 0) {
+			i = -i - 1;
+		}
+		return owners[i == points.length ? 0 : i];
+	}
+
+	/**
+	 * The splitmix64 finalizer, which spreads consecutive IDs around the ring.
+	 */
+	private static long mix(long z) {
+		z = (z ^ z >>> 30) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ z >>> 27) * 0x94D049BB133111EBL;
+		return z ^ z >>> 31;
+	}
+}
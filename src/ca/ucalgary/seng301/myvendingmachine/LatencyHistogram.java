@@ -0,0 +1,94 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds with log-linear buckets, in the
+ * manner of HdrHistogram: values below 32 ns each have their own bucket, and
+ * every doubling above that is split into 16 buckets, so any recorded value
+ * is reported within about 6%. Values above about 68 seconds are counted as
+ * 68 seconds. Recording is one atomic increment, and the buckets are only
+ * allocated when the first value is recorded.
+ */
+public class LatencyHistogram {
+
+	private static final int LINEAR_BITS = 5;
+	private static final int LINEAR = 1 << LINEAR_BITS;						//Values with a bucket each
+	private static final int HALF = LINEAR >> 1;							//Buckets per doubling above them
+	static final long MAX_VALUE = (1L << 36) - 1;
+	static final int BUCKETS = bucketOf(MAX_VALUE) + 1;
+
+	private volatile AtomicLongArray counts;
+
+	public void record(long nanos) {
+		AtomicLongArray buckets = counts;
+		if (buckets == null) {
+			synchronized (this) {
+				if (counts == null) {
+					counts = new AtomicLongArray(BUCKETS);
+				}
+				buckets = counts;
+			}
+		}
+		buckets.incrementAndGet(bucketOf(nanos));
+	}
+
+	/**
+	 * Copies the current bucket counts into an array, adding them to what it
+	 * already holds.
+	 */
+	void addTo(long[] into) {
+		AtomicLongArray buckets = counts;
+		if (buckets != null) {
+			for (int i = 0; i < BUCKETS; i++) {
+				into[i] += buckets.get(i);
+			}
+		}
+	}
+
+	static int bucketOf(long nanos) {
+		long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		int shift = 64 - Long.numberOfLeadingZeros(value) - LINEAR_BITS;
+		int top = (int) (value >>> shift);									//Between HALF and LINEAR - 1
+		return LINEAR + (shift - 1) * HALF + (top - HALF);
+	}
+
+	/**
+	 * @param buckets
+	 *            bucket counts, as filled in by {@link #addTo(long[])}
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the value that the given percentage of the recorded values did
+	 *         not exceed, to within a bucket, or 0 if none were recorded
+	 */
+	static long percentile(long[] buckets, double percentile) {
+		long count = 0;
+		for (long bucket : buckets) {
+			count += bucket;
+		}
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			seen += buckets[i];
+			if (seen >= rank) {
+				return highestValueOf(i);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return the largest value that falls in the bucket
+	 */
+	static long highestValueOf(int bucket) {
+		if (bucket < LINEAR) {
+			return bucket;
+		}
+		int shift = (bucket - LINEAR) / HALF + 1;
+		long top = (bucket - LINEAR) % HALF + HALF;
+		return ((top + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,64 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A transport to a {@link FleetWorker} in the same process, for tests and
+ * for fleets that fit in one JVM. Batches still go through the wire format,
+ * and are carried out in order on a thread of the transport's own, so a
+ * fleet behaves the same over a loopback as over a socket.
+ */
+public class LoopbackTransport implements ShardTransport {
+
+	private final FleetWorker worker;
+	private final ExecutorService thread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "loopback-shard");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	public LoopbackTransport(FleetWorker worker) {
+		this.worker = worker;
+	}
+
+	public FleetWorker getWorker() {
+		return worker;
+	}
+
+	@Override
+	public void send(final ByteBuffer batch, final Listener listener) throws IOException {
+		try {
+			thread.execute(new Runnable() {
+				@Override
+				public void run() {
+					ByteBuffer reply;
+					try {
+						reply = worker.serve(batch);
+					} catch (RuntimeException e) {
+						listener.failed(new IOException("The worker refused a batch.", e));
+						return;
+					}
+					listener.received(reply);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			throw new IOException("The transport has been closed.");
+		}
+	}
+
+	/**
+	 * Stops once the batches already sent have been answered.
+	 */
+	@Override
+	public void close() {
+		thread.shutdown();
+	}
+}
@@ -0,0 +1,399 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes the state of a {@link VendingMachineFactory} durable. Every operation
+ * that changes the machine is appended to a journal, encoded as in
+ * {@link CommandLog}, once it has succeeded; operations that throw are left
+ * out. Records are gathered in memory and written and forced to disk
+ * together, whenever enough bytes have built up or the force interval has
+ * passed, so an operation does not wait for the disk. A crash loses at most
+ * the records of the last interval.
+ * 
+ * <p>
+ * The journal directory holds numbered snapshots, in the format of
+ * {@link MachineSnapshot}, and journal segments. Snapshot <i>n</i> is the
+ * state before the first record of segment <i>n</i>. Opening a journal
+ * restores the factory from the latest snapshot and replays the segments
+ * from there on, then writes a new snapshot and starts a new segment, and
+ * older files are deleted. If the directory is empty, the factory's current
+ * state becomes the first snapshot.
+ * 
+ * <p>
+ * {@link #snapshot()}, and the periodic snapshots set with
+ * {@link #setSnapshotInterval(long)}, read the machine, so they must not run
+ * at the same time as the factory's operations.
+ */
+public class MachineJournal implements Closeable {
+
+	private static final String SNAPSHOT = "snapshot-";
+	private static final String SEGMENT = "journal-";
+
+	private static final StreamingDriver.CheckListener NO_CHECKS = new StreamingDriver.CheckListener() {
+		@Override
+		public void checked(long command, int kind, boolean passed) {
+		}
+	};
+
+	private final Path directory;
+	private final VendingMachineFactory factory;
+	private final int forceBytes;
+	private final Object commitLock = new Object();							//Orders writes to the segment
+	private final ScheduledExecutorService scheduler;
+
+	private long sequence;													//Number of the current segment
+	private FileChannel segment;
+	private final JournalBuffer buffer = new JournalBuffer();				//Records not yet written
+	private byte[] spare = new byte[1 << 16];								//Buffer being written while the other fills
+	private CommandLogWriter writer;
+	private long snapshotInterval = 0;
+	private long recordsSinceSnapshot = 0;
+	private volatile RuntimeException failure;
+
+	/**
+	 * Opens or creates a journal, restores the factory from it, and attaches
+	 * it to the factory.
+	 * 
+	 * @param forceInterval
+	 *            the longest time records wait before they are forced to
+	 *            disk, or 0 to force them only when enough bytes have built up
+	 * @param forceBytes
+	 *            the number of bytes of records that are forced to disk
+	 *            straight away; 0 forces every record
+	 */
+	public MachineJournal(Path directory, VendingMachineFactory factory, long forceInterval, TimeUnit unit, int forceBytes)
+			throws IOException {
+		if (forceInterval < 0 || forceBytes < 0) {
+			throw new IllegalArgumentException("The force interval and byte threshold cannot be negative.");
+		}
+		this.directory = directory;
+		this.factory = factory;
+		this.forceBytes = forceBytes;
+		Files.createDirectories(directory);
+
+		long snapshot = -1;
+		List<Long> segments = new ArrayList<Long>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				long number;
+				if ((number = numberOf(name, SNAPSHOT)) >= 0) {
+					snapshot = Math.max(snapshot, number);
+				} else if ((number = numberOf(name, SEGMENT)) >= 0) {
+					segments.add(number);
+				}
+			}
+		}
+		Collections.sort(segments);
+		sequence = snapshot;
+		if (snapshot >= 0) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file(SNAPSHOT, snapshot))))) {
+				MachineSnapshot.read(in, factory);
+			}
+		}
+		factory.journal = null;
+		for (long number : segments) {
+			if (number >= snapshot) {
+				new CommandLogReplayer(factory).replay(file(SEGMENT, number), NO_CHECKS, true);
+				sequence = number;
+			}
+		}
+		sequence++;
+		startSegment();
+		factory.journal = this;
+
+		if (forceInterval > 0) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "journal-commit");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						commit();
+					} catch (RuntimeException e) {
+						failure = e;
+					}
+				}
+			}, forceInterval, forceInterval, unit);
+		} else {
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Takes a snapshot after every given number of records, or never if it is
+	 * 0, which is the default.
+	 */
+	public void setSnapshotInterval(long records) {
+		if (records < 0) {
+			throw new IllegalArgumentException("The snapshot interval cannot be negative.");
+		}
+		snapshotInterval = records;
+	}
+
+	/**
+	 * Writes and forces every record appended so far.
+	 */
+	public void commit() {
+		synchronized (commitLock) {
+			ByteBuffer pending;
+			synchronized (this) {
+				if (buffer.count == 0) {
+					return;
+				}
+				pending = ByteBuffer.wrap(buffer.bytes, 0, buffer.count);
+				buffer.bytes = spare;
+				buffer.count = 0;
+			}
+			try {
+				while (pending.hasRemaining()) {
+					segment.write(pending);
+				}
+				segment.force(false);
+			} catch (IOException e) {
+				throw new IllegalStateException("The journal could not be written.", e);
+			}
+			synchronized (this) {
+				spare = pending.array();
+			}
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the factory's state, starts a new segment, and
+	 * deletes the files the snapshot replaces.
+	 */
+	public void snapshot() throws IOException {
+		commit();
+		synchronized (commitLock) {
+			synchronized (this) {
+				segment.close();
+				sequence++;
+				startSegment();
+				recordsSinceSnapshot = 0;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (scheduler != null) {
+			scheduler.shutdown();
+		}
+		commit();
+		synchronized (this) {
+			if (factory.journal == this) {
+				factory.journal = null;
+			}
+			segment.close();
+		}
+	}
+
+	void construct(List<Integer> coinKinds, int selectionButtonCount) {
+		synchronized (this) {
+			try {
+				writer.construct(coinKinds, selectionButtonCount);
+			} catch (IOException e) {
+				throw new IllegalStateException("The journal could not be written.", e);
+			}
+		}
+		appended();
+	}
+
+	void configure(List<String> popNames, List<Integer> popCosts) {
+		synchronized (this) {
+			try {
+				writer.configure(popNames, popCosts);
+			} catch (IOException e) {
+				throw new IllegalStateException("The journal could not be written.", e);
+			}
+		}
+		appended();
+	}
+
+	void load(List<Integer> coinCounts, List<Integer> popCounts) {
+		synchronized (this) {
+			try {
+				writer.load(coinCounts, popCounts);
+			} catch (IOException e) {
+				throw new IllegalStateException("The journal could not be written.", e);
+			}
+		}
+		appended();
+	}
+
+	void unload() {
+		synchronized (this) {
+			try {
+				writer.unload();
+			} catch (IOException e) {
+				throw new IllegalStateException("The journal could not be written.", e);
+			}
+		}
+		appended();
+	}
+
+	void extract() {
+		synchronized (this) {
+			try {
+				writer.extract();
+			} catch (IOException e) {
+				throw new IllegalStateException("The journal could not be written.", e);
+			}
+		}
+		appended();
+	}
+
+	void insert(int value) {
+		synchronized (this) {
+			try {
+				writer.insert(value);
+			} catch (IOException e) {
+				throw new IllegalStateException("The journal could not be written.", e);
+			}
+		}
+		appended();
+	}
+
+	void press(int value) {
+		synchronized (this) {
+			try {
+				writer.press(value);
+			} catch (IOException e) {
+				throw new IllegalStateException("The journal could not be written.", e);
+			}
+		}
+		appended();
+	}
+
+	/**
+	 * Commits or snapshots once a record has been appended, if it is due.
+	 */
+	private void appended() {
+		if (failure != null) {
+			throw failure;
+		}
+		if (buffer.count >= forceBytes) {
+			commit();
+		}
+		if (snapshotInterval > 0 && ++recordsSinceSnapshot >= snapshotInterval) {
+			try {
+				snapshot();
+			} catch (IOException e) {
+				throw new IllegalStateException("The journal snapshot could not be written.", e);
+			}
+		}
+	}
+
+	/**
+	 * Snapshots the factory as snapshot number {@link #sequence}, opens the
+	 * segment of the same number, and deletes older files. The snapshot is
+	 * written to a temporary file and renamed, so a crash leaves either the
+	 * old snapshot or the new one.
+	 */
+	private void startSegment() throws IOException {
+		Path temporary = directory.resolve(SNAPSHOT + sequence + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+			MachineSnapshot.write(factory, out);
+			out.flush();
+			channel.force(true);
+		}
+		Files.move(temporary, file(SNAPSHOT, sequence), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		segment = FileChannel.open(file(SEGMENT, sequence), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE);
+		buffer.count = 0;
+		writer = new CommandLogWriter(buffer, false);							//Writes the segment header
+		segment.write(ByteBuffer.wrap(buffer.bytes, 0, buffer.count));
+		segment.force(true);
+		buffer.count = 0;
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				long number = Math.max(numberOf(name, SNAPSHOT), numberOf(name, SEGMENT));
+				if (number >= 0 && number < sequence) {
+					Files.delete(file);
+				}
+			}
+		}
+	}
+
+	private Path file(String prefix, long number) {
+		return directory.resolve(prefix + number);
+	}
+
+	/**
+	 * @return the number of a file named by {@link #file(String, long)} with
+	 *         the given prefix, or -1 for any other name, such as a snapshot
+	 *         still being written or a file that is not the journal's
+	 */
+	private static long numberOf(String name, String prefix) {
+		int digits = name.length() - prefix.length();
+		if (!name.startsWith(prefix) || digits <= 0 || digits > 18) {			//18 digits always fit in a long
+			return -1;
+		}
+		for (int i = prefix.length(); i < name.length(); i++) {
+			if (name.charAt(i) < '0' || name.charAt(i) > '9') {
+				return -1;
+			}
+		}
+		return Long.parseLong(name.substring(prefix.length()));
+	}
+
+	/**
+	 * The records appended since the last commit.
+	 */
+	private static final class JournalBuffer extends OutputStream {
+		byte[] bytes = new byte[1 << 16];
+		int count;
+
+		@Override
+		public void write(int b) {
+			if (count == bytes.length) {
+				bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			}
+			bytes[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			if (count + len > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, count + len));
+			}
+			System.arraycopy(b, off, bytes, count, len);
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ca.ucalgary.seng301.vendingmachine.Pop;
+
+/**
+ * The snapshot format, a compact encoding of the complete state of one
+ * vending machine.
+ * 
+ * <p>
+ * A snapshot starts with the bytes <code>VMSS</code> and a version byte,
+ * followed by a flag saying whether the machine has been constructed. A
+ * constructed machine follows as:
+ * 
+ * <pre>
+ * coin kinds       count values...
+ * buttons          count (name price)...
+ * coin dispenser   count of each coin kind
+ * payments         count of each coin kind
+ * credit totalPayments changeShortfall
+ * slots            (runs (name count)...) for each button
+ * chute            runs (name count)... change of each coin kind, rejected count values...
+ * </pre>
+ * 
+ * Integers are 4-byte big-endian and names are a presence flag followed by
+ * modified UTF-8, as written by {@link DataOutput}. Pops are stored by run,
+ * so a slot of a million identical pops takes a few bytes. Reading checks
+ * everything a machine could not have got into by its operations, such as a
+ * coin kind that is not positive or a negative count, so a damaged snapshot
+ * is refused rather than recovered into a broken machine.
+ */
+final class MachineSnapshot {
+
+	static final byte[] MAGIC = { 'V', 'M', 'S', 'S' };
+	static final int VERSION = 1;
+
+	private MachineSnapshot() {
+	}
+
+	static void write(VendingMachineFactory factory, DataOutput out) throws IOException {
+		out.write(MAGIC);
+		out.writeByte(VERSION);
+		VendingMachine machine = factory.vendingMachine;
+		out.writeBoolean(machine != null);
+		if (machine == null) {
+			return;
+		}
+		writeInts(out, machine.coinValues);
+		out.writeInt(machine.selectionButtonCount);
+		for (SelectionButton button : machine.selectionButtons) {
+			writeName(out, button != null ? button.getName() : null);		//Not configured yet
+			out.writeInt(button != null ? button.getPrice() : 0);
+		}
+		writeCounts(out, machine.coinDispenser);
+		writeCounts(out, machine.loadedCoins);
+		out.writeInt(machine.currentPaymentCredit);
+		out.writeInt(machine.totalPayments);
+		out.writeInt(machine.changeShortfall);
+		for (FifoDispenser<Pop> slot : machine.popDispenser) {
+			if (slot != null) {
+				writePops(out, slot);
+			} else {
+				out.writeInt(0);												//Never loaded, so no runs
+			}
+		}
+		DeliveryChute chute = machine.deliveryChute;
+		writePops(out, chute.pops);
+		writeCounts(out, chute.change);
+		out.writeInt(chute.rejectedCoinCount);
+		for (int i = 0; i < chute.rejectedCoinCount; i++) {
+			out.writeInt(chute.rejectedCoins[i]);
+		}
+	}
+
+	/**
+	 * Replaces the factory's machine with the one in a snapshot. Its change
+	 * tables are those for the factory's current ceiling.
+	 *
+	 * @throws IOException
+	 *             if the snapshot cannot be read or is malformed, in which
+	 *             case the factory's machine is left as it was
+	 */
+	static void read(DataInput in, VendingMachineFactory factory) throws IOException {
+		byte[] magic = new byte[MAGIC.length];
+		in.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC) || in.readUnsignedByte() != VERSION) {
+			throw new IOException("Not a version " + VERSION + " machine snapshot.");
+		}
+		if (!in.readBoolean()) {
+			factory.vendingMachine = null;
+			return;
+		}
+		int[] coinValues = readCoinValues(in);
+		int selectionButtonCount = readCount(in, "the selection button count");
+		if (selectionButtonCount == 0) {
+			throw malformed("a machine needs at least one selection button");
+		}
+		List<String> names = new ArrayList<String>();
+		List<Integer> prices = new ArrayList<Integer>();
+		for (int i = 0; i < selectionButtonCount; i++) {					//Grown as read, so a bad count runs out of input first
+			names.add(readName(in));
+			prices.add(readCount(in, "a price"));								//0 until configured
+		}
+		VendingMachine machine = new VendingMachine(CoinTables.of(coinValues, factory.changeTableCeiling), selectionButtonCount);
+		for (int i = 0; i < selectionButtonCount; i++) {
+			SelectionButton button = machine.button(i);
+			button.setName(names.get(i));
+			button.setPrice(prices.get(i));
+		}
+		machine.priceTable = new PriceTable(1, names, prices);				//Versions restart from the snapshot
+		readCounts(in, machine.coinDispenser, "a coin count");
+		readCounts(in, machine.loadedCoins, "a payment coin count");
+		for (int i = 0; i < coinValues.length; i++) {
+			machine.changeValue += machine.coinDispenser[i] * coinValues[i];	//Running totals are not stored
+		}
+		machine.currentPaymentCredit = readCount(in, "the credit");
+		machine.totalPayments = readCount(in, "the payment total");
+		machine.changeShortfall = readCount(in, "the change shortfall");
+		for (int i = 0; i < selectionButtonCount; i++) {
+			FifoDispenser<Pop> slot = machine.slot(i);
+			readPops(in, slot);
+			machine.stock[i] = slot.size();
+			machine.popCount += slot.size();
+		}
+		DeliveryChute chute = machine.deliveryChute;
+		readPops(in, chute.pops);
+		readCounts(in, chute.change, "a change count");
+		int rejectedCoinCount = readCount(in, "the rejected coin count");
+		for (int i = 0; i < rejectedCoinCount; i++) {
+			int value = in.readInt();
+			if (value <= 0) {
+				throw malformed("a rejected coin must have a positive value");
+			}
+			chute.reject(value);
+		}
+		machine.deliveryChute = chute;
+		factory.vendingMachine = machine;
+	}
+
+	private static void writeInts(DataOutput out, int[] values) throws IOException {
+		out.writeInt(values.length);
+		writeCounts(out, values);
+	}
+
+	private static void writeCounts(DataOutput out, int[] counts) throws IOException {
+		for (int count : counts) {
+			out.writeInt(count);
+		}
+	}
+
+	private static void writePops(DataOutput out, FifoDispenser<Pop> pops) throws IOException {
+		out.writeInt(pops.runs());
+		for (int run = 0; run < pops.runs(); run++) {
+			writeName(out, pops.elementAt(run).getName());
+			out.writeInt(pops.countAt(run));
+		}
+	}
+
+	private static void writeName(DataOutput out, String name) throws IOException {
+		out.writeBoolean(name != null);
+		if (name != null) {
+			out.writeUTF(name);
+		}
+	}
+
+	/**
+	 * @return the coin kinds, which like those given to construct() must be
+	 *         positive and unique
+	 */
+	private static int[] readCoinValues(DataInput in) throws IOException {
+		int count = readCount(in, "the number of coin kinds");
+		List<Integer> values = new ArrayList<Integer>();
+		Set<Integer> seen = new HashSet<Integer>();
+		for (int i = 0; i < count; i++) {
+			int value = in.readInt();
+			if (value <= 0 || !seen.add(value)) {
+				throw malformed("coin kinds must be positive and unique");
+			}
+			values.add(value);
+		}
+		int[] coinValues = new int[values.size()];
+		for (int i = 0; i < coinValues.length; i++) {
+			coinValues[i] = values.get(i);
+		}
+		return coinValues;
+	}
+
+	private static void readCounts(DataInput in, int[] counts, String what) throws IOException {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = readCount(in, what);
+		}
+	}
+
+	private static int readCount(DataInput in, String what) throws IOException {
+		int count = in.readInt();
+		if (count < 0) {
+			throw malformed(what + " cannot be negative");
+		}
+		return count;
+	}
+
+	private static void readPops(DataInput in, FifoDispenser<Pop> pops) throws IOException {
+		int runs = readCount(in, "the number of runs");
+		for (int run = 0; run < runs; run++) {
+			Pop pop = PopCatalog.SHARED.popOf(readName(in));						//Canonical, as loaded pops are
+			pops.put(pop, readCount(in, "a run length"));
+		}
+	}
+
+	private static IOException malformed(String problem) {
+		return new IOException("Malformed machine snapshot: " + problem + ".");
+	}
+
+	private static String readName(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
@@ -0,0 +1,44 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prints a snapshot of a fleet's metrics at a fixed interval from a daemon
+ * thread, as text or as one JSON object per line, until it is closed.
+ */
+public class MetricsReporter implements Closeable {
+
+	private final ScheduledExecutorService scheduler;
+
+	public MetricsReporter(final VendingMachineFleet fleet, final PrintStream out, long interval, TimeUnit unit,
+			final boolean json) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("The reporting interval must be positive.");
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "metrics-reporter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				FactoryMetrics.Snapshot snapshot = fleet.metricsSnapshot();
+				out.println(json ? snapshot.toJson() : snapshot.toText());
+			}
+		}, interval, interval, unit);
+	}
+
+	@Override
+	public void close() {
+		scheduler.shutdown();
+	}
+}
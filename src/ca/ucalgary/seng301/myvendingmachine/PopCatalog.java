@@ -0,0 +1,117 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ca.ucalgary.seng301.vendingmachine.Pop;
+
+/**
+ * A symbol table of pop names shared by every machine in the process. Each
+ * name is given an int ID the first time it is configured, and one
+ * {@link Pop} per ID stands for every can of that name in every machine, so
+ * that pops can be told apart by reference, or by the ID they carry, instead
+ * of by comparing names. ID 0 is the null name of a button that has not been
+ * configured.
+ *
+ * <p>
+ * Names are never forgotten, which suits a catalogue of thousands of pops
+ * rather than names made up on the fly. Looking up a known name takes no
+ * locks; adding a new one is synchronized.
+ */
+public class PopCatalog {
+
+	/** The catalogue shared by every machine. */
+	public static final PopCatalog SHARED = new PopCatalog();
+
+	static final int NULL_ID = 0;
+
+	/**
+	 * The canonical pop of a name, which knows its own ID.
+	 */
+	static final class CataloguedPop extends Pop {
+		final int id;
+
+		CataloguedPop(String name, int id) {
+			super(name);
+			this.id = id;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private volatile Pop[] pops = { new CataloguedPop(null, NULL_ID) };		//Canonical pop of each ID
+	private int size = 1;													//IDs given out, guarded by this
+
+	private PopCatalog() {
+	}
+
+	/**
+	 * @return the ID of a name, giving it the next one if it has none yet
+	 */
+	public int idOf(String name) {
+		if (name == null) {
+			return NULL_ID;
+		}
+		Integer id = ids.get(name);
+		return id != null ? id : add(name);
+	}
+
+	/**
+	 * @return the ID of a name, or -1 if it has never been configured
+	 */
+	public int lookup(String name) {
+		if (name == null) {
+			return NULL_ID;
+		}
+		Integer id = ids.get(name);
+		return id != null ? id : -1;
+	}
+
+	/**
+	 * @return the ID of a pop's name, read from the pop itself if it is
+	 *         canonical, or -1 if the name has never been configured
+	 */
+	public int lookup(Pop pop) {
+		return pop instanceof CataloguedPop ? ((CataloguedPop) pop).id : lookup(pop.getName());
+	}
+
+	/**
+	 * @return the pop that stands for every can with an ID
+	 */
+	public Pop popOf(int id) {
+		return pops[id];
+	}
+
+	/**
+	 * @return the pop that stands for every can with a name
+	 */
+	public Pop popOf(String name) {
+		int id = idOf(name);
+		return pops[id];													//Read after idOf, which may have grown them
+	}
+
+	public String nameOf(int id) {
+		return pops[id].getName();
+	}
+
+	/**
+	 * @return the number of IDs given out, including the null name's
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	private synchronized int add(String name) {
+		Integer id = ids.get(name);
+		if (id != null) {
+			return id;															//Added by another thread meanwhile
+		}
+		Pop[] grown = pops;
+		if (size == grown.length) {
+			grown = Arrays.copyOf(grown, size * 2);
+		}
+		grown[size] = new CataloguedPop(name, size);
+		pops = grown;															//Publish the pop before its ID
+		ids.put(name, size);
+		return size++;
+	}
+}
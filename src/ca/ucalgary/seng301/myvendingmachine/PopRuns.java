@@ -0,0 +1,16 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import ca.ucalgary.seng301.vendingmachine.Pop;
+
+/**
+ * Pops held as runs of identical cans, oldest first, such as the pops in a
+ * {@link DeliveryChute} or in {@link UnloadedItems}.
+ */
+interface PopRuns {
+
+	int runs();
+
+	Pop popAt(int run);
+
+	int countAt(int run);
+}
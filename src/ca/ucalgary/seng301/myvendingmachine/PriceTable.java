@@ -0,0 +1,86 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The prices and pop names of a machine's selection buttons, compiled by
+ * {@link VendingMachineFactory#configure(List, List)} into flat arrays indexed
+ * by button so that a press reads its price from one array. A table never
+ * changes once built; configuring builds a new one with the next version and
+ * swaps it in whole, so a reader sees either the old configuration or the new
+ * one and never a mixture.
+ */
+public class PriceTable {
+
+	private final int version;
+	final int[] prices;														//Price of each button
+	private final int[] nameIds;											//Catalogue ID of each button's name
+	private final int nameCount;											//Number of distinct names
+
+	/**
+	 * The table of a machine that has not been configured, with every price 0
+	 * and no names.
+	 */
+	PriceTable(int selectionButtonCount) {
+		version = 0;
+		prices = new int[selectionButtonCount];
+		nameIds = new int[selectionButtonCount];								//All the null name
+		nameCount = 1;
+	}
+
+	/**
+	 * @param popNames
+	 *            the pop name of each button, given its ID in
+	 *            {@link PopCatalog#SHARED} if it has none yet
+	 */
+	PriceTable(int version, List<String> popNames, List<Integer> popCosts) {
+		this.version = version;
+		prices = new int[popCosts.size()];
+		nameIds = new int[popNames.size()];
+		for (int i = 0; i < prices.length; i++) {
+			prices[i] = popCosts.get(i);
+			nameIds[i] = PopCatalog.SHARED.idOf(popNames.get(i));
+		}
+		int[] sorted = nameIds.clone();
+		Arrays.sort(sorted);
+		int distinct = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (i == 0 || sorted[i] != sorted[i - 1]) {
+				distinct++;
+			}
+		}
+		nameCount = distinct;
+	}
+
+	/**
+	 * @return the number of times the machine had been configured when this
+	 *         table was built
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	public int getPrice(int button) {
+		return prices[button];
+	}
+
+	public String getName(int button) {
+		return PopCatalog.SHARED.nameOf(nameIds[button]);
+	}
+
+	/**
+	 * @return the ID of a button's pop name in {@link PopCatalog#SHARED},
+	 *         shared by every button of every machine whose name is equal
+	 */
+	public int getNameId(int button) {
+		return nameIds[button];
+	}
+
+	/**
+	 * @return the number of distinct pop names
+	 */
+	public int nameCount() {
+		return nameCount;
+	}
+}
@@ -0,0 +1,125 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import ca.ucalgary.seng301.vendingmachine.Pop;
+
+/**
+ * The CHECK_DELIVERY and CHECK_TEARDOWN checks, with the same meaning as in
+ * the script parser, for front ends that run scripts without it.
+ */
+final class ScriptChecker {
+
+	private ScriptChecker() {
+	}
+
+	/**
+	 * @param extraction
+	 *            what the last extract() returned
+	 * @return whether it held exactly the given change and pops
+	 */
+	static boolean checkDelivery(List<Object> extraction, int change, List<String> pops) {
+		if (extraction instanceof DeliveryChute) {
+			DeliveryChute chute = (DeliveryChute) extraction;					//Totals and whole runs at a time
+			return chute.getCoinValue() == change && matches(chute, pops);
+		}
+		HashMap<String, Integer> expected = count(pops);
+		boolean result = true;
+		for (Object item : extraction) {
+			if (item instanceof Integer) {
+				change -= (Integer) item;
+			} else {
+				result &= remove(expected, ((Pop) item).getName(), 1);
+			}
+		}
+		return result && change == 0 && expected.isEmpty();
+	}
+
+	/**
+	 * @param teardown
+	 *            what the last unload() returned
+	 * @return whether it held exactly the given change, payments and pops
+	 */
+	static boolean checkTeardown(List<Object> teardown, int change, int payments, List<String> pops) {
+		if (teardown.size() < 2) {
+			return false;
+		}
+		boolean result = Integer.valueOf(change).equals(teardown.get(0)) && Integer.valueOf(payments).equals(teardown.get(1));
+		if (teardown instanceof UnloadedItems) {
+			return result && matches((UnloadedItems) teardown, pops);
+		}
+		HashMap<String, Integer> expected = count(pops);
+		for (int i = 2; i < teardown.size(); i++) {
+			result &= remove(expected, ((Pop) teardown.get(i)).getName(), 1);
+		}
+		return result && expected.isEmpty();
+	}
+
+	/**
+	 * Compares runs of pops with the expected names by catalogue ID, which
+	 * canonical pops carry, so no name is hashed or compared per run.
+	 *
+	 * @return whether the runs held exactly the pops named
+	 */
+	private static boolean matches(PopRuns runs, List<String> pops) {
+		int[] ids = new int[pops.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = PopCatalog.SHARED.lookup(pops.get(i));
+			if (ids[i] < 0) {
+				return false;													//No machine has ever held it
+			}
+		}
+		Arrays.sort(ids);
+		int[] left = new int[ids.length];
+		int distinct = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (i == 0 || ids[i] != ids[i - 1]) {
+				ids[distinct++] = ids[i];
+			}
+			left[distinct - 1]++;
+		}
+		int remaining = ids.length;
+		for (int run = 0; run < runs.runs(); run++) {
+			int found = Arrays.binarySearch(ids, 0, distinct, PopCatalog.SHARED.lookup(runs.popAt(run)));
+			int count = runs.countAt(run);
+			if (found < 0 || left[found] < count) {
+				return false;
+			}
+			left[found] -= count;
+			remaining -= count;
+		}
+		return remaining == 0;
+	}
+
+	/**
+	 * @return the number of pops expected by name
+	 */
+	private static HashMap<String, Integer> count(List<String> pops) {
+		HashMap<String, Integer> expected = new HashMap<String, Integer>();
+		for (String pop : pops) {
+			Integer count = expected.get(pop);
+			expected.put(pop, count == null ? 1 : count + 1);
+		}
+		return expected;
+	}
+
+	/**
+	 * Takes pops from the expected counts.
+	 *
+	 * @return whether that many were expected
+	 */
+	private static boolean remove(HashMap<String, Integer> expected, String name, int count) {
+		Integer left = expected.get(name);
+		if (left == null || left < count) {
+			return false;
+		}
+		if (left == count) {
+			expected.remove(name);
+		} else {
+			expected.put(name, left - count);
+		}
+		return true;
+	}
+}
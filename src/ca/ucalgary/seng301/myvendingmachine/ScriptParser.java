@@ -0,0 +1,528 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import ca.ucalgary.seng301.vendingmachine.IVendingMachineFactory;
+import ca.ucalgary.seng301.vendingmachine.parser.ParseException;
+import ca.ucalgary.seng301.vendingmachine.parser.ParserConstants;
+
+/**
+ * Runs a script with a hand-written lexer and parser instead of the generated
+ * one, accepting exactly the grammar in the {@link VendingMachineFactory}
+ * documentation: the same tokens, comments and string escapes, and the same
+ * commands dispatched to the factory with the same arguments. String literals
+ * are passed on with their quotation marks and escapes as written, as the
+ * generated parser does.
+ *
+ * <p>
+ * The lexer works directly on the bytes of the script, UTF-8 encoded, so
+ * nothing is decoded or buffered as characters. Integers are decoded as they
+ * are scanned, tokens are offsets into the buffer rather than objects, and
+ * pop names are decoded once and then looked up by their bytes. A command is
+ * parsed whole before it is dispatched, so a syntax error leaves it unrun.
+ * Lexical errors are reported as {@link ParseException}s too, as
+ * {@link CommandLogConverter} does.
+ */
+public class ScriptParser {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int NAME_CACHE_SIZE = 256;						//Decoded pop names, a power of 2
+
+	private final IVendingMachineFactory factory;
+
+	//The bytes of the script and the current token
+	private byte[] buf;
+	private int pos;
+	private int limit;
+	private ReadableByteChannel channel;									//Where more bytes come from, or null
+	private int tokenStart;
+	private int integer;													//Value of the current integer token
+	private boolean overflow;												//Whether it was too large for an int
+	private int line;
+	private int lineStart;													//Offset in buf of the current line
+	private int tokenLine;
+	private int tokenColumn;
+
+	private final byte[][] nameBytes = new byte[NAME_CACHE_SIZE][];
+	private final String[] names = new String[NAME_CACHE_SIZE];
+	private final ArrayList<String> expectedPops = new ArrayList<String>();
+	private List<Object> extraction = Collections.emptyList();				//What the last extract() returned
+	private List<Object> teardown = Collections.emptyList();				//What the last unload() returned
+
+	public ScriptParser(IVendingMachineFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Runs a script held whole in a buffer, from its position to its limit.
+	 *
+	 * @return the number of commands run
+	 */
+	public long run(ByteBuffer script, StreamingDriver.CheckListener listener) throws ParseException {
+		if (script.hasArray()) {
+			buf = script.array();
+			pos = script.arrayOffset() + script.position();
+			limit = script.arrayOffset() + script.limit();
+		} else {
+			buf = new byte[script.remaining()];
+			script.duplicate().get(buf);
+			pos = 0;
+			limit = buf.length;
+		}
+		channel = null;
+		try {
+			return runCommands(listener);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);									//Nothing is read
+		}
+	}
+
+	/**
+	 * Runs a script read from a channel, a buffer at a time.
+	 *
+	 * @return the number of commands run
+	 */
+	public long run(ReadableByteChannel script, StreamingDriver.CheckListener listener) throws IOException, ParseException {
+		buf = new byte[1 << 16];
+		pos = 0;
+		limit = 0;
+		channel = script;
+		return runCommands(listener);
+	}
+
+	private long runCommands(StreamingDriver.CheckListener listener) throws IOException, ParseException {
+		line = 1;
+		lineStart = pos;
+		extraction = Collections.emptyList();
+		teardown = Collections.emptyList();
+		long command = 0;
+		int kind;
+		while ((kind = next()) != ParserConstants.EOF) {
+			switch (kind) {
+			case ParserConstants.CONSTRUCT: {
+				ArrayList<Integer> coinKinds = new ArrayList<Integer>();
+				expect(ParserConstants.LPAREN);
+				integers(coinKinds, ParserConstants.SEMICOLON);
+				int selectionButtonCount = integer();
+				expect(ParserConstants.RPAREN);
+				factory.construct(coinKinds, selectionButtonCount);
+				break;
+			}
+			case ParserConstants.CONFIGURE: {
+				ArrayList<String> popNames = new ArrayList<String>();
+				ArrayList<Integer> popCosts = new ArrayList<Integer>();
+				expect(ParserConstants.LPAREN);
+				strings(popNames);
+				integers(popCosts, ParserConstants.RPAREN);
+				factory.configure(popNames, popCosts);
+				break;
+			}
+			case ParserConstants.LOAD: {
+				ArrayList<Integer> coinCounts = new ArrayList<Integer>();
+				ArrayList<Integer> popCounts = new ArrayList<Integer>();
+				expect(ParserConstants.LPAREN);
+				integers(coinCounts, ParserConstants.SEMICOLON);
+				integers(popCounts, ParserConstants.RPAREN);
+				factory.load(coinCounts, popCounts);
+				break;
+			}
+			case ParserConstants.UNLOAD: {
+				expect(ParserConstants.LPAREN);
+				expect(ParserConstants.RPAREN);
+				List<Object> items = factory.unload();
+				teardown = items instanceof UnloadedItems ? items : new ArrayList<Object>(items);	//Others may change later
+				break;
+			}
+			case ParserConstants.EXTRACT: {
+				expect(ParserConstants.LPAREN);
+				expect(ParserConstants.RPAREN);
+				List<Object> items = factory.extract();
+				extraction = items instanceof DeliveryChute ? items : new ArrayList<Object>(items);
+				break;
+			}
+			case ParserConstants.INSERT: {
+				expect(ParserConstants.LPAREN);
+				int value = integer();
+				expect(ParserConstants.RPAREN);
+				factory.insert(value);
+				break;
+			}
+			case ParserConstants.PRESS: {
+				expect(ParserConstants.LPAREN);
+				int value = integer();
+				expect(ParserConstants.RPAREN);
+				factory.press(value);
+				break;
+			}
+			case ParserConstants.CHECK_DELIVERY: {
+				expectedPops.clear();
+				expect(ParserConstants.LPAREN);
+				int change = integer();
+				int separator = next();
+				while (separator == ParserConstants.COMMA) {
+					expectedPops.add(string());
+					separator = next();
+				}
+				if (separator != ParserConstants.RPAREN) {
+					throw unexpected("\",\" or \")\"");
+				}
+				listener.checked(command, kind, ScriptChecker.checkDelivery(extraction, change, expectedPops));
+				break;
+			}
+			case ParserConstants.CHECK_TEARDOWN: {
+				expectedPops.clear();
+				expect(ParserConstants.LPAREN);
+				int change = integer();
+				expect(ParserConstants.SEMICOLON);
+				int payments = integer();
+				int separator = next();
+				if (separator == ParserConstants.SEMICOLON) {						//Optional, and the pops after it too
+					separator = next();
+					if (separator == ParserConstants.STRING_LITERAL) {
+						expectedPops.add(name());
+						separator = next();
+						while (separator == ParserConstants.COMMA) {
+							expectedPops.add(string());
+							separator = next();
+						}
+					}
+				}
+				if (separator != ParserConstants.RPAREN) {
+					throw unexpected("\")\"");
+				}
+				listener.checked(command, kind, ScriptChecker.checkTeardown(teardown, change, payments, expectedPops));
+				break;
+			}
+			default:
+				throw unexpected("a command");
+			}
+			command++;
+		}
+		return command;
+	}
+
+	/**
+	 * Reads one or more integers separated by commas, and the token after
+	 * them.
+	 */
+	private void integers(List<Integer> into, int terminator) throws IOException, ParseException {
+		into.add(integer());
+		int separator;
+		while ((separator = next()) == ParserConstants.COMMA) {
+			into.add(integer());
+		}
+		if (separator != terminator) {
+			throw unexpected("\",\" or \"" + ParserConstants.tokenImage[terminator].replace("\"", "") + "\"");
+		}
+	}
+
+	/**
+	 * Reads one or more strings separated by commas, and the semicolon after
+	 * them.
+	 */
+	private void strings(List<String> into) throws IOException, ParseException {
+		into.add(string());
+		int separator;
+		while ((separator = next()) == ParserConstants.COMMA) {
+			into.add(string());
+		}
+		if (separator != ParserConstants.SEMICOLON) {
+			throw unexpected("\",\" or \";\"");
+		}
+	}
+
+	private void expect(int kind) throws IOException, ParseException {
+		if (next() != kind) {
+			throw unexpected(ParserConstants.tokenImage[kind]);
+		}
+	}
+
+	private int integer() throws IOException, ParseException {
+		if (next() != ParserConstants.INTEGER_LITERAL) {
+			throw unexpected("an integer");
+		}
+		if (overflow) {
+			throw new NumberFormatException("For input string: \"" + text() + "\"");	//As Integer.parseInt reports it
+		}
+		return integer;
+	}
+
+	private String string() throws IOException, ParseException {
+		if (next() != ParserConstants.STRING_LITERAL) {
+			throw unexpected("a string");
+		}
+		return name();
+	}
+
+	/**
+	 * @return the current string token, quotation marks and all, decoded the
+	 *         first time its bytes are seen
+	 */
+	private String name() {
+		int length = pos - tokenStart;
+		int hash = length;
+		for (int i = tokenStart; i < pos; i++) {
+			hash = 31 * hash + buf[i];
+		}
+		int slot = (hash ^ (hash >>> 16)) & (NAME_CACHE_SIZE - 1);
+		byte[] cached = nameBytes[slot];
+		if (cached != null && cached.length == length) {
+			int i = 0;
+			while (i < length && cached[i] == buf[tokenStart + i]) {
+				i++;
+			}
+			if (i == length) {
+				return names[slot];
+			}
+		}
+		nameBytes[slot] = Arrays.copyOfRange(buf, tokenStart, pos);
+		names[slot] = new String(buf, tokenStart, length, UTF8);
+		return names[slot];
+	}
+
+	private String text() {
+		return new String(buf, tokenStart, pos - tokenStart, UTF8);
+	}
+
+	private ParseException unexpected(String expected) {
+		String found = pos == tokenStart ? "<EOF>" : "\"" + text() + "\"";
+		return new ParseException("Encountered " + found + " at line " + tokenLine + ", column " + tokenColumn
+				+ ". Was expecting " + expected + ".");
+	}
+
+	private ParseException lexicalError(String problem) {
+		return new ParseException("Lexical error at line " + line + ", column " + (pos - lineStart + 1) + ": " + problem + ".");
+	}
+
+	/**
+	 * Scans the next token, skipping whitespace and comments before it.
+	 *
+	 * @return its kind, one of the {@link ParserConstants}
+	 */
+	private int next() throws IOException, ParseException {
+		while (true) {
+			tokenStart = pos;
+			if (pos == limit && !fill()) {
+				tokenLine = line;
+				tokenColumn = pos - lineStart + 1;
+				return ParserConstants.EOF;
+			}
+			byte c = buf[pos];
+			if (c == ' ' || c == '\t' || c == '\f') {
+				pos++;
+			} else if (c == '\n' || c == '\r') {
+				pos++;
+				if (c == '\r' && require(1) && buf[pos] == '\n') {
+					pos++;
+				}
+				line++;
+				lineStart = pos;
+			} else if (c == '/') {
+				skipComment();
+			} else {
+				break;
+			}
+		}
+
+		tokenLine = line;
+		tokenColumn = pos - lineStart + 1;
+		byte c = buf[pos];
+		switch (c) {
+		case '(':
+			pos++;
+			return ParserConstants.LPAREN;
+		case ')':
+			pos++;
+			return ParserConstants.RPAREN;
+		case ',':
+			pos++;
+			return ParserConstants.COMMA;
+		case ';':
+			pos++;
+			return ParserConstants.SEMICOLON;
+		case '"':
+			scanString();
+			return ParserConstants.STRING_LITERAL;
+		case 'c':
+			return keyword("construct", ParserConstants.CONSTRUCT, "configure", ParserConstants.CONFIGURE);
+		case 'e':
+			return keyword("extract", ParserConstants.EXTRACT, null, 0);
+		case 'p':
+			return keyword("press", ParserConstants.PRESS, null, 0);
+		case 'i':
+			return keyword("insert", ParserConstants.INSERT, null, 0);
+		case 'l':
+			return keyword("load", ParserConstants.LOAD, null, 0);
+		case 'u':
+			return keyword("unload", ParserConstants.UNLOAD, null, 0);
+		case 'C':
+			return keyword("CHECK_DELIVERY", ParserConstants.CHECK_DELIVERY, "CHECK_TEARDOWN", ParserConstants.CHECK_TEARDOWN);
+		default:
+			if (c >= '0' && c <= '9') {
+				scanInteger();
+				return ParserConstants.INTEGER_LITERAL;
+			}
+			throw lexicalError("unexpected character " + describe(c));
+		}
+	}
+
+	/**
+	 * Skips a comment that starts at the current slash.
+	 */
+	private void skipComment() throws IOException, ParseException {
+		if (!require(2) || (buf[pos + 1] != '/' && buf[pos + 1] != '*')) {
+			throw lexicalError("unexpected character \"/\"");
+		}
+		boolean block = buf[pos + 1] == '*';
+		pos += 2;
+		while (true) {
+			tokenStart = pos;													//Nothing in a comment needs keeping
+			if (pos == limit && !fill()) {
+				if (block) {
+					throw lexicalError("unterminated comment");
+				}
+				return;
+			}
+			byte c = buf[pos];
+			if (!block) {
+				if (c == '\n' || c == '\r') {
+					return;															//The line break is whitespace
+				}
+				pos++;
+			} else if (c == '*' && require(2) && buf[pos + 1] == '/') {
+				pos += 2;
+				return;
+			} else {
+				pos++;
+				if (c == '\n' || (c == '\r' && !(require(1) && buf[pos] == '\n'))) {
+					line++;
+					lineStart = pos;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Scans "0" or a numeral without leading zeros, decoding its value.
+	 */
+	private void scanInteger() throws IOException {
+		long value = buf[pos++] - '0';
+		if (value != 0) {
+			while ((pos < limit || fill()) && buf[pos] >= '0' && buf[pos] <= '9') {
+				value = Math.min(value * 10 + buf[pos++] - '0', Integer.MAX_VALUE + 1L);	//Saturates rather than wraps
+			}
+		}
+		integer = (int) value;
+		overflow = value > Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Scans a string literal, checking its escapes.
+	 */
+	private void scanString() throws IOException, ParseException {
+		pos++;
+		while (true) {
+			if (pos == limit && !fill()) {
+				throw lexicalError("unterminated string");
+			}
+			byte c = buf[pos];
+			if (c == '"') {
+				pos++;
+				return;
+			} else if (c == '\n' || c == '\r') {
+				throw lexicalError("line break in string");
+			} else if (c == '\\') {
+				if (!require(2) || "ntbrf\\'\"01234567".indexOf(buf[pos + 1]) < 0) {	//Octal digits after the first are plain characters
+					pos++;
+					throw lexicalError("invalid escape in string");
+				}
+				pos += 2;
+			} else {
+				pos++;
+			}
+		}
+	}
+
+	/**
+	 * Scans one of up to two keywords that start with the current byte.
+	 */
+	private int keyword(String first, int firstKind, String second, int secondKind) throws IOException, ParseException {
+		if (matches(first)) {
+			return firstKind;
+		}
+		if (second != null && matches(second)) {
+			return secondKind;
+		}
+		throw lexicalError("unexpected character " + describe(buf[pos]));
+	}
+
+	private boolean matches(String keyword) throws IOException {
+		int length = keyword.length();
+		if (!require(length)) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (buf[pos + i] != keyword.charAt(i)) {
+				return false;
+			}
+		}
+		pos += length;
+		return true;
+	}
+
+	private static String describe(byte c) {
+		return c >= ' ' && c < 127 ? "\"" + (char) c + "\"" : String.format("0x%02x", c & 0xff);
+	}
+
+	/**
+	 * @return whether at least the given number of bytes are left from the
+	 *         current position, reading more if need be
+	 */
+	private boolean require(int count) throws IOException {
+		while (limit - pos < count) {
+			if (!fill()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads more of the script, keeping the bytes from the start of the
+	 * current token and growing the buffer if the token fills it.
+	 *
+	 * @return whether any more bytes were read
+	 */
+	private boolean fill() throws IOException {
+		if (channel == null) {
+			return false;
+		}
+		if (tokenStart > 0) {
+			System.arraycopy(buf, tokenStart, buf, 0, limit - tokenStart);
+			pos -= tokenStart;
+			limit -= tokenStart;
+			lineStart -= tokenStart;
+			tokenStart = 0;
+		}
+		if (limit == buf.length) {
+			buf = Arrays.copyOf(buf, buf.length * 2);
+		}
+		int read;
+		do {
+			read = channel.read(ByteBuffer.wrap(buf, limit, buf.length - limit));
+		} while (read == 0);
+		if (read < 0) {
+			channel = null;
+			return false;
+		}
+		limit += read;
+		return true;
+	}
+}
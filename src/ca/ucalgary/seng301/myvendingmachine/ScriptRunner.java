@@ -0,0 +1,347 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ca.ucalgary.seng301.vendingmachine.parser.ParseException;
+import ca.ucalgary.seng301.vendingmachine.parser.TokenMgrError;
+
+/**
+ * Runs a batch of scripts in parallel, each against its own
+ * {@link VendingMachineFactory}, and prints a single report of the
+ * CHECK_DELIVERY and CHECK_TEARDOWN results and of any script that could not
+ * be run to the end.
+ * 
+ * <p>
+ * Usage: <code>ScriptRunner [--fail-fast] [--fast-parser] [--shard i/n] [--threads n] path...</code>
+ * 
+ * <p>
+ * Each path is a script, a directory whose files (recursively) are all
+ * scripts, or a glob such as <code>scripts/**&#47;*-script</code>. Scripts
+ * are run in order of their paths. With <code>--shard i/n</code>, only every
+ * n-th script starting from the i-th (counting from 0) is run, so that n
+ * runners together cover the batch once. With <code>--fail-fast</code>, no
+ * further scripts are started once one has failed. With
+ * <code>--fast-parser</code>, scripts are run by {@link ScriptParser}
+ * instead of the script parser. A malformed or missing option value prints
+ * the usage line and exits with status 2.
+ */
+public class ScriptRunner {
+
+	/**
+	 * The outcome of running one script.
+	 */
+	public static class Result {
+		final String script;
+		int checksPassed = 0;
+		int checksFailed = 0;
+		String error;															//Why the script stopped early, or null
+
+		Result(String script) {
+			this.script = script;
+		}
+
+		public String getScript() {
+			return script;
+		}
+
+		public int getChecksPassed() {
+			return checksPassed;
+		}
+
+		public int getChecksFailed() {
+			return checksFailed;
+		}
+
+		public String getError() {
+			return error;
+		}
+
+		public boolean passed() {
+			return checksFailed == 0 && error == null;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		boolean failFast = false;
+		boolean fastParser = false;
+		int shard = 0;
+		int shards = 1;
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<Path> scripts = new ArrayList<Path>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--fail-fast")) {
+				failFast = true;
+			} else if (args[i].equals("--fast-parser")) {
+				fastParser = true;
+			} else if (args[i].equals("--shard")) {
+				String[] parts = i + 1 < args.length ? args[++i].split("/") : new String[0];
+				boolean wellFormed = parts.length == 2;
+				if (wellFormed) {
+					try {
+						shard = Integer.parseInt(parts[0]);
+						shards = Integer.parseInt(parts[1]);
+					} catch (NumberFormatException e) {
+						wellFormed = false;
+					}
+				}
+				if (!wellFormed || shards <= 0 || shard < 0 || shard >= shards) {
+					usage("--shard must be i/n with 0 <= i < n.");
+				}
+			} else if (args[i].equals("--threads")) {
+				threads = 0;
+				if (i + 1 < args.length) {
+					try {
+						threads = Integer.parseInt(args[++i]);
+					} catch (NumberFormatException e) {
+						//Reported below
+					}
+				}
+				if (threads <= 0) {
+					usage("--threads must be a positive number.");
+				}
+			} else if (args[i].startsWith("--")) {
+				usage("Unknown option " + args[i] + ".");
+			} else {
+				scripts.addAll(findScripts(args[i]));
+			}
+		}
+		Collections.sort(scripts);
+
+		List<Path> shardScripts = new ArrayList<Path>();
+		for (int i = shard; i < scripts.size(); i += shards) {
+			shardScripts.add(scripts.get(i));
+		}
+
+		long start = System.nanoTime();
+		List<Result> results = runAll(shardScripts, threads, failFast, fastParser);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		int checksPassed = 0, checksFailed = 0, errors = 0, failedScripts = 0;
+		for (Result result : results) {
+			checksPassed += result.checksPassed;
+			checksFailed += result.checksFailed;
+			if (result.error != null) {
+				errors++;
+				System.out.println("ERROR " + result.script + ": " + result.error);
+			} else if (result.checksFailed > 0) {
+				System.out.println("FAIL  " + result.script + ": " + result.checksFailed + " of "
+						+ (result.checksPassed + result.checksFailed) + " checks failed");
+			}
+			if (!result.passed()) {
+				failedScripts++;
+			}
+		}
+		System.out.println();
+		System.out.println(String.format("%d scripts run, %d skipped, %d failed, %d with errors", results.size(),
+				shardScripts.size() - results.size(), failedScripts, errors));
+		System.out.println(String.format("%d checks passed, %d failed", checksPassed, checksFailed));
+		System.out.println(String.format("%.2f s, %.1f scripts/s", seconds, results.size() / seconds));
+		if (failedScripts > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static void usage(String problem) {
+		System.err.println(problem);
+		System.err.println("Usage: ScriptRunner [--fail-fast] [--fast-parser] [--shard i/n] [--threads n] path...");
+		System.exit(2);
+	}
+
+	/**
+	 * Runs the scripts on a fork-join pool, each against a fresh factory.
+	 * 
+	 * @return the result of each script that was run, in the order given;
+	 *         with failFast, scripts not started after a failure are left out
+	 */
+	public static List<Result> runAll(List<Path> scripts, int threads, boolean failFast) {
+		return runAll(scripts, threads, failFast, false);
+	}
+
+	/**
+	 * Runs the scripts as {@link #runAll(List, int, boolean)} does, with the
+	 * hand-written {@link ScriptParser} if fastParser is set.
+	 */
+	public static List<Result> runAll(List<Path> scripts, int threads, final boolean failFast, final boolean fastParser) {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		try {
+			List<Future<Result>> futures = new ArrayList<Future<Result>>(scripts.size());
+			for (final Path script : scripts) {
+				futures.add(pool.submit(new Callable<Result>() {
+					@Override
+					public Result call() {
+						if (failFast && failed.get()) {
+							return null;
+						}
+						Result result = runScript(script, fastParser);
+						if (!result.passed()) {
+							failed.set(true);
+						}
+						return result;
+					}
+				}));
+			}
+			List<Result> results = new ArrayList<Result>(scripts.size());
+			for (Future<Result> future : futures) {
+				Result result = future.get();
+				if (result != null) {
+					results.add(result);
+				}
+			}
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public static Result runScript(Path script) {
+		try (BufferedReader reader = Files.newBufferedReader(script, Charset.defaultCharset())) {
+			return runScript(script.toString(), reader);
+		} catch (IOException e) {
+			Result result = new Result(script.toString());
+			result.error = e.toString();
+			return result;
+		}
+	}
+
+	/**
+	 * Runs a script against a fresh factory, counting the result of each
+	 * check.
+	 */
+	public static Result runScript(String name, Reader script) {
+		return runScript(name, script, new VendingMachineFactory());
+	}
+
+	/**
+	 * Runs a script against the given factory, counting the result of each
+	 * check.
+	 */
+	static Result runScript(String name, Reader script, VendingMachineFactory factory) {
+		Result result = new Result(name);
+		try {
+			new StreamingDriver(factory).run(script, counter(result));
+		} catch (ParseException e) {
+			result.error = "parse error: " + e.getMessage();
+		} catch (TokenMgrError e) {
+			result.error = "parse error: " + e.getMessage();
+		} catch (RuntimeException e) {
+			result.error = e.toString();
+		}
+		return result;
+	}
+
+	/**
+	 * Runs a script file against a fresh factory, with either the script
+	 * parser or the hand-written {@link ScriptParser}, which reads the file as
+	 * UTF-8.
+	 */
+	public static Result runScript(Path script, boolean fastParser) {
+		if (!fastParser) {
+			return runScript(script);
+		}
+		Result result = new Result(script.toString());
+		try (FileChannel channel = FileChannel.open(script)) {
+			new ScriptParser(new VendingMachineFactory()).run(channel, counter(result));
+		} catch (IOException e) {
+			result.error = e.toString();
+		} catch (ParseException e) {
+			result.error = "parse error: " + e.getMessage();
+		} catch (RuntimeException e) {
+			result.error = e.toString();
+		}
+		return result;
+	}
+
+	/**
+	 * @return a listener that counts each check in a result
+	 */
+	private static StreamingDriver.CheckListener counter(final Result result) {
+		return new StreamingDriver.CheckListener() {
+			@Override
+			public void checked(long command, int kind, boolean passed) {
+				if (passed) {
+					result.checksPassed++;
+				} else {
+					result.checksFailed++;
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return the scripts named by a path, directory or glob
+	 */
+	static List<Path> findScripts(String pattern) throws IOException {
+		final List<Path> scripts = new ArrayList<Path>();
+		int glob = firstGlobCharacter(pattern);
+		if (glob < 0) {
+			Path path = Paths.get(pattern);
+			if (!Files.isDirectory(path)) {
+				scripts.add(path);
+				return scripts;
+			}
+			Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+					if (attributes.isRegularFile()) {
+						scripts.add(file);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			return scripts;
+		}
+
+		int separator = pattern.lastIndexOf('/', glob);
+		Path base = Paths.get(separator < 0 ? "." : separator == 0 ? "/" : pattern.substring(0, separator));
+		final boolean relativeToDot = separator < 0;
+		final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+		if (Files.isDirectory(base)) {
+			Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+					Path candidate = relativeToDot ? file.subpath(1, file.getNameCount()) : file;		//Drop the leading "."
+					if (attributes.isRegularFile() && matcher.matches(candidate)) {
+						scripts.add(candidate);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		return scripts;
+	}
+
+	private static int firstGlobCharacter(String pattern) {
+		for (int i = 0; i < pattern.length(); i++) {
+			if ("*?[{".indexOf(pattern.charAt(i)) >= 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -1,14 +1,18 @@
 package ca.ucalgary.seng301.myvendingmachine;
 
+import ca.ucalgary.seng301.vendingmachine.Pop;
+
 public class SelectionButton {
 
 	private String name; 
 	private int price;  
+	private int popId = PopCatalog.NULL_ID;								//Catalogue ID of the current name
 	
 	public String getName() {
 		return name;
 	}
 	public void setName(String name) {
+		this.popId = PopCatalog.SHARED.idOf(name);
 		this.name = name;
 	}
 	public int getPrice() {
@@ -17,5 +21,25 @@ public class SelectionButton {
 	public void setPrice(int price) {
 		this.price = price;
 	} 
+	/**
+	 * @return a button with the same name, price and pop
+	 */
+	SelectionButton copy() {
+		SelectionButton copy = new SelectionButton();
+		copy.name = name;
+		copy.price = price;
+		copy.popId = popId;
+		return copy;
+	}
+	public int getPopId() {
+		return popId;
+	}
+	/**
+	 * @return the catalogue's pop for the current name, shared by every can
+	 *         of that name
+	 */
+	public Pop getPop() {
+		return PopCatalog.SHARED.popOf(popId);
+	}
 	
 }
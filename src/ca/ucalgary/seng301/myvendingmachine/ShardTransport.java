@@ -0,0 +1,33 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Carries batches of {@link FleetProtocol} requests from a
+ * {@link ShardedFleet} to one {@link FleetWorker} and their replies back.
+ * Batches may be sent before the replies to earlier ones arrive, and each
+ * reply is handed to the listener of its batch in the order the batches were
+ * sent.
+ */
+public interface ShardTransport extends Closeable {
+
+	/**
+	 * Receives the reply to one batch, on a thread of the transport's own.
+	 */
+	interface Listener {
+		void received(ByteBuffer reply);
+
+		/**
+		 * Called instead of {@link #received(ByteBuffer)} if the batch was
+		 * lost, in which case it may or may not have been carried out.
+		 */
+		void failed(IOException e);
+	}
+
+	/**
+	 * Sends a batch without waiting for its reply.
+	 */
+	void send(ByteBuffer batch, Listener listener) throws IOException;
+}
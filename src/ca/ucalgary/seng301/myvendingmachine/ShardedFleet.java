@@ -0,0 +1,605 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import ca.ucalgary.seng301.vendingmachine.IVendingMachineFactory;
+
+/**
+ * A fleet of vending machines addressed by ID and spread over
+ * {@link FleetWorker}s, usually in other processes. Machine IDs are assigned
+ * to workers by a consistent {@link HashRing}, so adding a worker with
+ * {@link #addShard(ShardTransport)} moves only the machines that now hash to
+ * it, handed over as {@link MachineSnapshot}s.
+ *
+ * <p>
+ * Like those of an {@link AsyncVendingMachineFleet}, operations return at once
+ * with a {@link Future} of their result, and take effect on each machine in
+ * the order they were sent. Operations are gathered into one batch per
+ * worker, which is sent once it holds {@value #BATCH} operations, when
+ * {@link #flush()} is called, or when the result of one of its operations is
+ * waited for. Batches are pipelined: a worker may be sent any number of them
+ * before it has answered the first.
+ *
+ * <p>
+ * Operations that throw on the worker complete their future with an
+ * exception of the same type. Operations in a batch that was lost with its
+ * connection complete with the IOException, and may or may not have taken
+ * effect.
+ */
+public class ShardedFleet implements Closeable {
+
+	static final int BATCH = 256;											//Operations gathered before a batch is sent
+
+	private static final Callable<Object> NEVER_RUN = new Callable<Object>() {
+		@Override
+		public Object call() {
+			throw new IllegalStateException("Replies are completed by their batch.");
+		}
+	};
+
+	private final ReentrantReadWriteLock routing = new ReentrantReadWriteLock();	//Writers move machines between shards
+	private final List<Shard> shards = new ArrayList<Shard>();				//Guarded by routing
+	private HashRing ring;													//Guarded by routing
+
+	/**
+	 * @param transports
+	 *            a transport to each of the workers, which must start out
+	 *            empty
+	 */
+	public ShardedFleet(List<? extends ShardTransport> transports) {
+		if (transports.isEmpty()) {
+			throw new IllegalArgumentException("A fleet needs at least one shard.");
+		}
+		for (ShardTransport transport : transports) {
+			shards.add(new Shard(transport));
+		}
+		ring = new HashRing(shards.size());
+	}
+
+	public int shardCount() {
+		routing.readLock().lock();
+		try {
+			return shards.size();
+		} finally {
+			routing.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the shard that holds the machine with the given ID, counting
+	 *         shards in the order they were added
+	 */
+	public int shardOf(int machineId) {
+		routing.readLock().lock();
+		try {
+			return ring.shardOf(machineId);
+		} finally {
+			routing.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Constructs the machine with the given ID, replacing it if it already
+	 * exists.
+	 */
+	public Future<Void> construct(int machineId, List<Integer> coinKinds, int selectionButtonCount) {
+		if (machineId < 0) {
+			return notInFleet(machineId);
+		}
+		Shard shard = begin(machineId, FleetProtocol.CONSTRUCT);
+		try {
+			shard.batch.writeInts(coinKinds);
+			shard.batch.writeSigned(selectionButtonCount);
+			return shard.end();
+		} finally {
+			release(shard);
+		}
+	}
+
+	public Future<Void> configure(int machineId, List<String> popNames, List<Integer> popCosts) {
+		if (machineId < 0) {
+			return notInFleet(machineId);
+		}
+		Shard shard = begin(machineId, FleetProtocol.CONFIGURE);
+		try {
+			shard.batch.writeStrings(popNames);
+			shard.batch.writeInts(popCosts);
+			return shard.end();
+		} finally {
+			release(shard);
+		}
+	}
+
+	public Future<Void> load(int machineId, List<Integer> coinCounts, List<Integer> popCounts) {
+		if (machineId < 0) {
+			return notInFleet(machineId);
+		}
+		Shard shard = begin(machineId, FleetProtocol.LOAD);
+		try {
+			shard.batch.writeInts(coinCounts);
+			shard.batch.writeInts(popCounts);
+			return shard.end();
+		} finally {
+			release(shard);
+		}
+	}
+
+	/**
+	 * @return the future of what the machine's unload() returned, with the
+	 *         pops still in runs
+	 */
+	public Future<List<Object>> unload(int machineId) {
+		if (machineId < 0) {
+			return notInFleet(machineId);
+		}
+		Shard shard = begin(machineId, FleetProtocol.UNLOAD);
+		try {
+			return shard.end();
+		} finally {
+			release(shard);
+		}
+	}
+
+	public Future<List<Object>> extract(int machineId) {
+		if (machineId < 0) {
+			return notInFleet(machineId);
+		}
+		Shard shard = begin(machineId, FleetProtocol.EXTRACT);
+		try {
+			return shard.end();
+		} finally {
+			release(shard);
+		}
+	}
+
+	public Future<Void> insert(int machineId, int value) {
+		if (machineId < 0) {
+			return notInFleet(machineId);
+		}
+		Shard shard = begin(machineId, FleetProtocol.INSERT);
+		try {
+			shard.batch.writeSigned(value);
+			return shard.end();
+		} finally {
+			release(shard);
+		}
+	}
+
+	public Future<Void> press(int machineId, int value) {
+		if (machineId < 0) {
+			return notInFleet(machineId);
+		}
+		Shard shard = begin(machineId, FleetProtocol.PRESS);
+		try {
+			shard.batch.writeSigned(value);
+			return shard.end();
+		} finally {
+			release(shard);
+		}
+	}
+
+	/**
+	 * @return a view of one machine that waits for each operation, for code
+	 *         written against a single factory, such as the script runners
+	 */
+	public IVendingMachineFactory machine(final int machineId) {
+		return new IVendingMachineFactory() {
+			@Override
+			public void construct(List<Integer> coinKinds, int selectionButtonCount) {
+				join(ShardedFleet.this.construct(machineId, coinKinds, selectionButtonCount));
+			}
+
+			@Override
+			public void configure(List<String> popNames, List<Integer> popCosts) {
+				join(ShardedFleet.this.configure(machineId, popNames, popCosts));
+			}
+
+			@Override
+			public void load(List<Integer> coinCounts, List<Integer> popCounts) {
+				join(ShardedFleet.this.load(machineId, coinCounts, popCounts));
+			}
+
+			@Override
+			public List<Object> unload() {
+				return join(ShardedFleet.this.unload(machineId));
+			}
+
+			@Override
+			public List<Object> extract() {
+				return join(ShardedFleet.this.extract(machineId));
+			}
+
+			@Override
+			public void insert(int value) {
+				join(ShardedFleet.this.insert(machineId, value));
+			}
+
+			@Override
+			public void press(int value) {
+				join(ShardedFleet.this.press(machineId, value));
+			}
+		};
+	}
+
+	/**
+	 * Sends the operations gathered so far without waiting for them.
+	 */
+	public void flush() {
+		routing.readLock().lock();
+		try {
+			for (Shard shard : shards) {
+				shard.flushLocked();
+			}
+		} finally {
+			routing.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds a worker, which must start out empty, and moves onto it the
+	 * machines that now hash to it. Each machine is copied to the new worker
+	 * as a snapshot before it is dropped from its old one, so a failed hand-off
+	 * loses nothing. Operations sent meanwhile wait for the move to finish.
+	 *
+	 * @return the number of machines moved
+	 * @throws IOException
+	 *             if a worker could not be reached, in which case the new
+	 *             worker has not been added, and machines copied to it are
+	 *             still served by their old workers
+	 */
+	public int addShard(ShardTransport transport) throws IOException {
+		routing.writeLock().lock();
+		try {
+			Shard added = new Shard(transport);
+			HashRing grown = ring.withShard();
+			List<Future<List<Integer>>> held = new ArrayList<Future<List<Integer>>>();
+			for (Shard shard : shards) {
+				held.add(shard.<List<Integer>> send(FleetProtocol.LIST, 0));	//Answered after everything sent before
+			}
+			List<List<Integer>> moving = new ArrayList<List<Integer>>();
+			List<Future<Void>> imported = new ArrayList<Future<Void>>();
+			for (int s = 0; s < shards.size(); s++) {
+				List<Integer> ids = new ArrayList<Integer>();
+				List<Future<byte[]>> snapshots = new ArrayList<Future<byte[]>>();
+				for (int id : await(held.get(s))) {
+					if (grown.shardOf(id) == shards.size()) {
+						ids.add(id);
+						snapshots.add(shards.get(s).<byte[]> send(FleetProtocol.EXPORT, id));
+					}
+				}
+				shards.get(s).flushLocked();
+				for (int i = 0; i < ids.size(); i++) {
+					byte[] snapshot = await(snapshots.get(i));
+					added.lock.lock();
+					try {
+						added.begin(FleetProtocol.IMPORT, ids.get(i));
+						added.batch.writeVarint(snapshot.length);
+						added.batch.writeBytes(snapshot, 0, snapshot.length);
+						imported.add(added.<Void> end());
+					} finally {
+						added.release();
+					}
+				}
+				moving.add(ids);
+			}
+			added.flushLocked();
+			for (Future<Void> future : imported) {
+				await(future);
+			}
+			int moved = 0;
+			for (int s = 0; s < shards.size(); s++) {
+				for (int id : moving.get(s)) {
+					shards.get(s).send(FleetProtocol.DROP, id);
+					moved++;
+				}
+				shards.get(s).flushLocked();
+			}
+			shards.add(added);
+			ring = grown;
+			return moved;
+		} finally {
+			routing.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Waits for the operations sent so far and closes every transport.
+	 */
+	@Override
+	public void close() throws IOException {
+		routing.writeLock().lock();
+		try {
+			List<Future<List<Integer>>> barriers = new ArrayList<Future<List<Integer>>>();
+			for (Shard shard : shards) {
+				barriers.add(shard.<List<Integer>> send(FleetProtocol.LIST, 0));
+				shard.flushLocked();
+			}
+			IOException failure = null;
+			for (int s = 0; s < shards.size(); s++) {
+				try {
+					await(barriers.get(s));
+				} catch (IOException e) {
+					failure = e;
+				}
+				try {
+					shards.get(s).transport.close();
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		} finally {
+			routing.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Locks the shard of a machine and starts a request to it. The caller
+	 * must {@link #release(Shard)} it.
+	 */
+	private Shard begin(int machineId, int opcode) {
+		routing.readLock().lock();
+		try {
+			Shard shard = shards.get(ring.shardOf(machineId));
+			shard.lock.lock();
+			shard.begin(opcode, machineId);
+			return shard;
+		} catch (RuntimeException e) {
+			routing.readLock().unlock();
+			throw e;
+		}
+	}
+
+	private void release(Shard shard) {
+		shard.release();
+		routing.readLock().unlock();
+	}
+
+	/**
+	 * @return the result of an operation, with the exception it threw on the
+	 *         worker thrown again here
+	 */
+	private static <T> T join(Future<T> future) {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("A worker failed to hand over a machine.", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	private static <T> Future<T> notInFleet(int machineId) {
+		final IllegalArgumentException e = new IllegalArgumentException("Machine " + machineId + " is not in the fleet.");
+		FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+			@Override
+			public T call() {
+				throw e;
+			}
+		});
+		task.run();
+		return task;
+	}
+
+	/**
+	 * One worker, and the batch of operations gathered for it.
+	 */
+	private static final class Shard {
+		final ShardTransport transport;
+		final ReentrantLock lock = new ReentrantLock();
+		final FleetProtocol.Encoder batch = new FleetProtocol.Encoder();	//Requests of the batch, guarded by lock
+		private List<Reply<?>> replies = new ArrayList<Reply<?>>();			//Their replies, guarded by lock
+		private int opcode;													//Of the request being written
+		private int requestStart = -1;										//Where it starts in the batch, or -1 if none is
+
+		Shard(ShardTransport transport) {
+			this.transport = transport;
+		}
+
+		void begin(int opcode, int machineId) {
+			this.opcode = opcode;
+			requestStart = batch.size();
+			batch.writeVarint(opcode);
+			batch.writeVarint(machineId);
+		}
+
+		/**
+		 * Adds the request written since {@link #begin(int, int)} to the
+		 * batch, sending it if it is full.
+		 */
+		<T> Reply<T> end() {
+			Reply<T> reply = new Reply<T>(opcode, this);
+			requestStart = -1;
+			replies.add(reply);
+			if (replies.size() == BATCH) {
+				flush();
+			}
+			return reply;
+		}
+
+		/**
+		 * Unlocks the shard, first taking back a request that was not ended
+		 * because writing it threw.
+		 */
+		void release() {
+			if (requestStart >= 0) {
+				batch.truncate(requestStart);
+				requestStart = -1;
+			}
+			lock.unlock();
+		}
+
+		/**
+		 * Sends a request that has no operands.
+		 */
+		<T> Reply<T> send(int opcode, int machineId) {
+			lock.lock();
+			try {
+				begin(opcode, machineId);
+				return end();
+			} finally {
+				release();
+			}
+		}
+
+		void flushLocked() {
+			lock.lock();
+			try {
+				flush();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void flush() {
+			if (replies.isEmpty()) {
+				return;
+			}
+			ByteBuffer sending = batch.toBatch(replies.size());
+			Batch sent = new Batch(replies);
+			replies = new ArrayList<Reply<?>>();
+			batch.clear();
+			for (Reply<?> reply : sent.replies) {
+				reply.sent = true;
+			}
+			try {
+				transport.send(sending, sent);
+			} catch (IOException e) {
+				sent.failed(e);
+			}
+		}
+	}
+
+	/**
+	 * The replies awaited from one batch.
+	 */
+	private static final class Batch implements ShardTransport.Listener {
+		final List<Reply<?>> replies;
+
+		Batch(List<Reply<?>> replies) {
+			this.replies = replies;
+		}
+
+		@Override
+		public void received(ByteBuffer in) {
+			int i = 0;
+			try {
+				if (FleetProtocol.readVarint(in) != replies.size()) {
+					throw new IllegalStateException("A worker answered a different number of requests than it was sent.");
+				}
+				for (; i < replies.size(); i++) {
+					replies.get(i).complete(in);
+				}
+			} catch (RuntimeException e) {
+				for (; i < replies.size(); i++) {
+					replies.get(i).fail(new IOException("A worker sent a malformed reply.", e));
+				}
+			}
+		}
+
+		@Override
+		public void failed(IOException e) {
+			for (Reply<?> reply : replies) {
+				reply.fail(e);
+			}
+		}
+	}
+
+	/**
+	 * The future result of one operation, completed when the reply to its
+	 * batch arrives. Waiting for it sends its batch if that has not been sent.
+	 */
+	private static final class Reply<T> extends FutureTask<T> {
+		private final int opcode;
+		private final Shard shard;
+		volatile boolean sent;
+
+		@SuppressWarnings("unchecked")
+		Reply(int opcode, Shard shard) {
+			super((Callable<T>) NEVER_RUN);
+			this.opcode = opcode;
+			this.shard = shard;
+		}
+
+		@SuppressWarnings("unchecked")
+		void complete(ByteBuffer in) {
+			int status = FleetProtocol.readVarint(in);
+			if (status != FleetProtocol.OK) {
+				setException(FleetProtocol.readFailure(status, in));
+				return;
+			}
+			switch (opcode) {
+			case FleetProtocol.UNLOAD:
+				set((T) FleetProtocol.readTeardown(in));
+				return;
+			case FleetProtocol.EXTRACT:
+				set((T) FleetProtocol.readDelivery(in));
+				return;
+			case FleetProtocol.LIST:
+				set((T) FleetProtocol.readInts(in));
+				return;
+			case FleetProtocol.EXPORT:
+				byte[] snapshot = new byte[FleetProtocol.readVarint(in)];
+				in.get(snapshot);
+				set((T) snapshot);
+				return;
+			default:
+				set(null);
+			}
+		}
+
+		void fail(Exception e) {
+			setException(e);
+		}
+
+		@Override
+		public T get() throws InterruptedException, ExecutionException {
+			send();
+			return super.get();
+		}
+
+		@Override
+		public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			send();
+			return super.get(timeout, unit);
+		}
+
+		private void send() {
+			if (!sent) {
+				shard.flushLocked();
+			}
+		}
+	}
+}
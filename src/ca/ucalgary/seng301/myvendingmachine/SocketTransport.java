@@ -0,0 +1,93 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * A transport to a {@link FleetWorker} over a socket channel. Senders write
+ * whole batches in turn and return at once, so any number of batches can be
+ * in flight; a reader thread takes the replies off the channel and hands them
+ * to the listeners in the order the batches were sent.
+ */
+public class SocketTransport implements ShardTransport {
+
+	private final SocketChannel channel;
+	private final ArrayDeque<Listener> waiting = new ArrayDeque<Listener>();	//Listeners of batches in flight, guarded by itself
+	private IOException failure;											//Why the connection ended, guarded by waiting
+
+	public SocketTransport(InetSocketAddress address) throws IOException {
+		channel = SocketChannel.open(address);
+		channel.socket().setTcpNoDelay(true);
+		Thread reader = new Thread("shard-reader-" + address) {
+			@Override
+			public void run() {
+				receive();
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	@Override
+	public void send(ByteBuffer batch, Listener listener) throws IOException {
+		synchronized (this) {													//One batch on the wire at a time
+			synchronized (waiting) {
+				if (failure != null) {
+					throw failure;
+				}
+				waiting.add(listener);											//Before the reply can possibly arrive
+			}
+			try {
+				FleetProtocol.writeFrame(channel, batch);
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Closes the connection. Batches still in flight fail.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private void receive() {
+		IOException ended;
+		try {
+			ByteBuffer reply;
+			while ((reply = FleetProtocol.readFrame(channel)) != null) {
+				Listener listener;
+				synchronized (waiting) {
+					listener = waiting.poll();
+				}
+				if (listener == null) {
+					throw new IOException("The worker sent a reply to no batch.");
+				}
+				listener.received(reply);
+			}
+			ended = new IOException("The worker closed the connection.");
+		} catch (IOException e) {
+			ended = e;
+		}
+		ArrayDeque<Listener> lost;
+		synchronized (waiting) {
+			failure = ended;
+			lost = new ArrayDeque<Listener>(waiting);
+			waiting.clear();
+		}
+		for (Listener listener : lost) {
+			listener.failed(ended);
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			//Already failed
+		}
+	}
+}
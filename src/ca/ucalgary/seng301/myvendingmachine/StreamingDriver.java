@@ -0,0 +1,121 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+
+import ca.ucalgary.seng301.vendingmachine.IVendingMachineFactory;
+import ca.ucalgary.seng301.vendingmachine.parser.ParseException;
+import ca.ucalgary.seng301.vendingmachine.parser.Parser;
+import ca.ucalgary.seng301.vendingmachine.parser.ParserConstants;
+
+/**
+ * Runs a script from any stream, dispatching each command to the factory as
+ * soon as it has been parsed and reporting each check as soon as it has been
+ * made. Unlike {@link ca.ucalgary.seng301.vendingmachine.Driver}, which only
+ * takes a file path, the script can come from standard input or a gzip
+ * stream, and nothing is kept from one command to the next, so memory stays
+ * constant however long the script is. (A single token, including a comment,
+ * is still buffered whole by the parser.)
+ * 
+ * <p>
+ * Usage: <code>StreamingDriver [path | -]...</code>, where <code>-</code> or
+ * no arguments at all reads standard input. Gzip input is detected by its
+ * magic number.
+ */
+public class StreamingDriver {
+
+	/**
+	 * Receives the result of each CHECK_DELIVERY and CHECK_TEARDOWN command.
+	 */
+	public interface CheckListener {
+		/**
+		 * @param command
+		 *            the number of the command in the script, from 0
+		 * @param kind
+		 *            {@link ParserConstants#CHECK_DELIVERY} or
+		 *            {@link ParserConstants#CHECK_TEARDOWN}
+		 * @param passed
+		 *            whether the check passed
+		 */
+		void checked(long command, int kind, boolean passed);
+	}
+
+	private static final int GZIP_MAGIC = 0x8b1f;
+
+	private final IVendingMachineFactory factory;
+
+	public StreamingDriver(IVendingMachineFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Runs a script read from a stream, which may be gzip compressed.
+	 * 
+	 * @return the number of commands run
+	 */
+	public long run(InputStream script, CheckListener listener) throws IOException, ParseException {
+		return run(new InputStreamReader(decompress(script), Charset.forName("UTF-8")), listener);
+	}
+
+	/**
+	 * Runs a script read from a reader.
+	 * 
+	 * @return the number of commands run
+	 */
+	public long run(Reader script, CheckListener listener) throws ParseException {
+		Parser parser = new Parser(script);
+		parser.register(factory);
+		parser.setDebug(false);
+		long command = 0;
+		int kind;
+		while ((kind = parser.getToken(1).kind) != ParserConstants.EOF) {
+			boolean passed = parser.Command();
+			if (kind == ParserConstants.CHECK_DELIVERY || kind == ParserConstants.CHECK_TEARDOWN) {
+				listener.checked(command, kind, passed);
+			}
+			command++;
+		}
+		return command;
+	}
+
+	/**
+	 * @return the stream, decompressed if it starts with the gzip magic number
+	 */
+	static InputStream decompress(InputStream in) throws IOException {
+		InputStream buffered = in.markSupported() ? in : new BufferedInputStream(in);
+		buffered.mark(2);
+		int magic = buffered.read() | (buffered.read() << 8);
+		buffered.reset();
+		return magic == GZIP_MAGIC ? new GZIPInputStream(buffered) : buffered;
+	}
+
+	public static void main(String[] args) throws IOException, ParseException {
+		final PrintStream out = System.out;
+		CheckListener printer = new CheckListener() {
+			@Override
+			public void checked(long command, int kind, boolean passed) {
+				out.println("Command #" + command + ": " + (passed ? "PASS" : "FAIL"));
+			}
+		};
+		String[] scripts = args.length == 0 ? new String[] { "-" } : args;
+		for (String script : scripts) {
+			out.println("Script: " + script);
+			InputStream in = script.equals("-") ? System.in : new FileInputStream(script);
+			try {
+				new StreamingDriver(new VendingMachineFactory()).run(in, printer);
+			} finally {
+				if (in != System.in) {
+					in.close();
+				}
+			}
+			out.println();
+		}
+	}
+}
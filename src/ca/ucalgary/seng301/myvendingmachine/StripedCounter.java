@@ -0,0 +1,48 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to without contending on one memory
+ * location. Each thread adds to one of several stripes, picked by its ID and
+ * padded apart so that they do not share a cache line, and reading the
+ * counter sums the stripes.
+ */
+public class StripedCounter {
+
+	private static final int PADDING = 8;									//Longs per 64-byte cache line
+
+	private final AtomicLongArray cells;
+	private final int mask;
+
+	/**
+	 * @param stripes
+	 *            the number of stripes, rounded up to a power of two; use 1
+	 *            when only one thread at a time adds to the counter
+	 */
+	public StripedCounter(int stripes) {
+		int size = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+		mask = size - 1;
+		cells = new AtomicLongArray(size == 1 ? 1 : size * PADDING);
+	}
+
+	public void add(long delta) {
+		if (mask == 0) {
+			cells.addAndGet(0, delta);
+		} else {
+			cells.addAndGet(((int) Thread.currentThread().getId() & mask) * PADDING, delta);
+		}
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < cells.length(); i += mask == 0 ? 1 : PADDING) {
+			sum += cells.get(i);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,259 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import ca.ucalgary.seng301.vendingmachine.Pop;
+
+/**
+ * Checks the running totals of {@link VendingMachineFactory} against full
+ * recounts. Every script given, and a number of random histories of
+ * operations, are run twice: once with
+ * {@link VendingMachineFactory#setCheckingTotals(boolean)} on, so that the
+ * totals are recounted after every operation, and once with it off. Totals
+ * that drift make the checked run throw where the other does not, and the
+ * two must otherwise have the same outcome at every step.
+ *
+ * <p>
+ * Usage: <code>TotalsChecker [--histories n] [--operations n] [path...]</code>
+ *
+ * <p>
+ * Paths are taken as by {@link ScriptRunner}; without any, the bundled
+ * good-script, bad-script1 and bad-script2 are run. Prints one line for the
+ * scripts and one for the histories, and exits with status 1 if any run did
+ * not match, or 2 for bad arguments.
+ */
+public class TotalsChecker {
+
+	private static final List<String> BUNDLED_SCRIPTS = Arrays.asList("good-script", "bad-script1", "bad-script2");
+
+	private static final List<List<Integer>> COIN_KIND_SETS = Arrays.asList(Arrays.asList(5, 10, 25, 100), Arrays.asList(1, 3, 4),
+			Arrays.asList(2, 7));
+	private static final List<String> NAMES = Arrays.asList("Coke", "water", "stuff", null);
+
+	public static void main(String[] args) throws IOException {
+		int histories = 200;
+		int operations = 2000;
+		List<Path> scripts = new ArrayList<Path>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--histories") && i + 1 < args.length) {
+				histories = positive(args[++i]);
+			} else if (args[i].equals("--operations") && i + 1 < args.length) {
+				operations = positive(args[++i]);
+			} else if (args[i].startsWith("--")) {
+				usage();
+			} else {
+				scripts.addAll(ScriptRunner.findScripts(args[i]));
+			}
+		}
+		if (args.length == 0 || scripts.isEmpty()) {
+			for (String script : BUNDLED_SCRIPTS) {
+				scripts.addAll(ScriptRunner.findScripts(script));
+			}
+		}
+		Collections.sort(scripts);
+
+		boolean passed = true;
+		String problem = null;
+		for (Path script : scripts) {
+			String mismatch = checkScript(script);
+			if (mismatch != null) {
+				System.out.println("MISMATCH " + mismatch);
+				problem = "FAIL";
+			}
+		}
+		System.out.println("scripts: " + scripts.size() + " replayed with the totals checked  " + (problem == null ? "PASS" : problem));
+		passed &= problem == null;
+
+		problem = null;
+		for (int seed = 0; seed < histories; seed++) {
+			String mismatch = checkHistory(seed, operations);
+			if (mismatch != null) {
+				System.out.println("MISMATCH history " + seed + ": " + mismatch);
+				problem = "FAIL";
+			}
+		}
+		System.out.println("histories: " + histories + " of " + operations + " operations with the totals checked  "
+				+ (problem == null ? "PASS" : problem));
+		passed &= problem == null;
+		if (!passed) {
+			System.exit(1);
+		}
+	}
+
+	private static int positive(String arg) {
+		try {
+			int value = Integer.parseInt(arg);
+			if (value > 0) {
+				return value;
+			}
+		} catch (NumberFormatException e) {
+			//Reported below
+		}
+		usage();
+		return 0;
+	}
+
+	private static void usage() {
+		System.err.println("Usage: TotalsChecker [--histories n] [--operations n] [path...]");
+		System.exit(2);
+	}
+
+	/**
+	 * @return how the checked run of a script differed from the unchecked
+	 *         one, or null if it did not
+	 */
+	static String checkScript(Path script) throws IOException {
+		VendingMachineFactory checked = new VendingMachineFactory();
+		checked.setCheckingTotals(true);
+		VendingMachineFactory plain = new VendingMachineFactory();
+		plain.setCheckingTotals(false);
+		ScriptRunner.Result expected;
+		ScriptRunner.Result actual;
+		try (BufferedReader reader = Files.newBufferedReader(script, Charset.defaultCharset())) {
+			expected = ScriptRunner.runScript(script.toString(), reader, plain);
+		}
+		try (BufferedReader reader = Files.newBufferedReader(script, Charset.defaultCharset())) {
+			actual = ScriptRunner.runScript(script.toString(), reader, checked);
+		}
+		String outcome = describe(actual);
+		if (!outcome.equals(describe(expected))) {
+			return script + ": " + outcome + " with the totals checked, but " + describe(expected) + " without";
+		}
+		if (checked.vendingMachine != null) {
+			try {
+				checked.verifyTotals();
+			} catch (IllegalStateException e) {
+				return script + ": " + e.getMessage();
+			}
+		}
+		return null;
+	}
+
+	private static String describe(ScriptRunner.Result result) {
+		return result.getChecksPassed() + " passed, " + result.getChecksFailed() + " failed"
+				+ (result.getError() != null ? ", " + result.getError() : "");
+	}
+
+	/**
+	 * Runs a random history of operations, valid and not, on a machine whose
+	 * shape, coin kinds and settings are also random.
+	 *
+	 * @return the first step at which the checked run differed from the
+	 *         unchecked one, or null if none did
+	 */
+	static String checkHistory(long seed, int operations) {
+		Random random = new Random(seed);
+		VendingMachineFactory checked = new VendingMachineFactory();
+		checked.setCheckingTotals(true);
+		VendingMachineFactory plain = new VendingMachineFactory();
+		plain.setCheckingTotals(false);
+		boolean refusing = random.nextBoolean();
+		int ceiling = random.nextInt(3) == 0 ? random.nextInt(50) : ChangeMaker.DEFAULT_TABLE_CEILING;
+		for (VendingMachineFactory factory : Arrays.asList(checked, plain)) {
+			factory.setRefusingSalesWithoutChange(refusing);
+			factory.setChangeTableCeiling(ceiling);
+		}
+
+		List<Integer> coinKinds = COIN_KIND_SETS.get(random.nextInt(COIN_KIND_SETS.size()));
+		int buttons = 1 + random.nextInt(4);
+		for (int step = 0; step < operations; step++) {
+			int kind = step == 0 ? 0 : random.nextInt(100);
+			List<Integer> first = new ArrayList<Integer>();
+			List<Integer> second = new ArrayList<Integer>();
+			List<String> names = new ArrayList<String>();
+			int value = 0;
+			if (kind == 0) {													//construct, now and then with a new shape
+				coinKinds = COIN_KIND_SETS.get(random.nextInt(COIN_KIND_SETS.size()));
+				buttons = 1 + random.nextInt(4);
+				first.addAll(coinKinds);
+				value = buttons;
+			} else if (kind < 3) {												//configure
+				for (int i = 0; i < buttons; i++) {
+					names.add(NAMES.get(random.nextInt(NAMES.size())));
+					first.add(random.nextInt(40) == 0 ? 0 : 1 + random.nextInt(300));
+				}
+			} else if (kind < 8) {												//load
+				for (int i = 0; i < coinKinds.size(); i++) {
+					first.add(random.nextInt(40) == 0 ? -1 : random.nextInt(20));
+				}
+				for (int i = 0; i < buttons; i++) {
+					second.add(random.nextInt(40) == 0 ? -1 : random.nextInt(20));
+				}
+			} else if (kind < 55) {												//insert
+				value = random.nextInt(10) == 0 ? random.nextInt(12) - 2 : coinKinds.get(random.nextInt(coinKinds.size()));
+			} else if (kind < 80) {												//press
+				value = random.nextInt(buttons + 2) - 1;
+			} else if (kind < 90) {												//purchase
+				for (int i = random.nextInt(5); i > 0; i--) {
+					first.add(coinKinds.get(random.nextInt(coinKinds.size())));
+				}
+				value = random.nextInt(buttons + 1);
+			}
+			String expected = apply(plain, kind, first, second, names, value);
+			String actual = apply(checked, kind, first, second, names, value);
+			if (!actual.equals(expected)) {
+				return "step " + step + ": " + actual + " with the totals checked, but " + expected + " without";
+			}
+		}
+		try {
+			checked.verifyTotals();
+		} catch (IllegalStateException e) {
+			return "at the end: " + e.getMessage();
+		}
+		return null;
+	}
+
+	/**
+	 * Carries out one step of a history.
+	 *
+	 * @return what the step returned or threw
+	 */
+	private static String apply(VendingMachineFactory factory, int kind, List<Integer> first, List<Integer> second, List<String> names,
+			int value) {
+		try {
+			if (kind == 0) {
+				factory.construct(first, value);
+			} else if (kind < 3) {
+				factory.configure(names, first);
+			} else if (kind < 8) {
+				factory.load(first, second);
+			} else if (kind < 55) {
+				factory.insert(value);
+			} else if (kind < 80) {
+				factory.press(value);
+			} else if (kind < 90) {
+				int[] coins = new int[first.size()];
+				for (int i = 0; i < coins.length; i++) {
+					coins[i] = first.get(i);
+				}
+				TransactionResults results = new TransactionResults();
+				factory.purchase(coins, value, results);
+				return "vended " + results.vendedSlot(0) + " short " + results.shortfall(0);
+			} else if (kind < 98) {
+				return describe(factory.extract());
+			} else {
+				return describe(factory.unload());
+			}
+			return "done";
+		} catch (RuntimeException e) {
+			return e.toString();
+		}
+	}
+
+	private static String describe(List<Object> items) {
+		StringBuilder description = new StringBuilder("[");
+		for (Object item : items) {
+			description.append(item instanceof Pop ? ((Pop) item).getName() : item).append(',');
+		}
+		return description.append(']').toString();
+	}
+}
@@ -0,0 +1,85 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.util.Arrays;
+
+/**
+ * The outcomes of a batch of transactions passed to
+ * {@link VendingMachineFactory#purchase(int[], int[], int[], int, TransactionResults)}:
+ * for each transaction, the slot it vended from and the change it paid, by
+ * coin kind. A buffer can be reused for any number of batches, and only
+ * grows when a batch is larger than any before it.
+ */
+public class TransactionResults {
+
+	private int size;
+	private int coinKindCount;
+	private int[] vendedSlots = new int[16];								//Slot of each transaction, or -1
+	private int[] change = new int[0];										//Change coins of each kind for each transaction
+	private int[] shortfalls = new int[16];									//Change owed that could not be paid
+
+	/**
+	 * @return the number of transactions in the last batch
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the slot a transaction vended a pop from, or -1 if it vended
+	 *         nothing because the slot was empty or the credit too low
+	 */
+	public int vendedSlot(int transaction) {
+		checkTransaction(transaction);
+		return vendedSlots[transaction];
+	}
+
+	/**
+	 * @return the number of coins of a kind paid as change by a transaction
+	 */
+	public int changeCount(int transaction, int coinKind) {
+		checkTransaction(transaction);
+		if (coinKind < 0 || coinKind >= coinKindCount) {
+			throw new IndexOutOfBoundsException("Coin kind " + coinKind + " is not in the machine.");
+		}
+		return change[transaction * coinKindCount + coinKind];
+	}
+
+	/**
+	 * @return the change owed by a transaction that could not be paid
+	 */
+	public int shortfall(int transaction) {
+		checkTransaction(transaction);
+		return shortfalls[transaction];
+	}
+
+	/**
+	 * Empties the buffer and makes room for a batch, with nothing vended.
+	 */
+	void reset(int size, int coinKindCount) {
+		if (vendedSlots.length < size) {
+			int capacity = Math.max(size, vendedSlots.length * 2);
+			vendedSlots = new int[capacity];
+			shortfalls = new int[capacity];
+		}
+		if (change.length < size * coinKindCount) {
+			change = new int[Math.max(size * coinKindCount, change.length * 2)];
+		}
+		this.size = size;
+		this.coinKindCount = coinKindCount;
+		Arrays.fill(vendedSlots, 0, size, -1);
+		Arrays.fill(change, 0, size * coinKindCount, 0);
+		Arrays.fill(shortfalls, 0, size, 0);
+	}
+
+	void vended(int transaction, int slot, int[] changeTaken, int shortfall) {
+		vendedSlots[transaction] = slot;
+		System.arraycopy(changeTaken, 0, change, transaction * coinKindCount, coinKindCount);
+		shortfalls[transaction] = shortfall;
+	}
+
+	private void checkTransaction(int transaction) {
+		if (transaction < 0 || transaction >= size) {
+			throw new IndexOutOfBoundsException("Transaction " + transaction + " is not in the results.");
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+import ca.ucalgary.seng301.vendingmachine.Pop;
+
+/**
+ * What {@link VendingMachineFactory#unload()} returns: the value of the coins
+ * left in the machine, the total payments, and the pops that were in the
+ * slots. The pops are held as runs of identical pops, the way the slots hold
+ * them, so unloading costs the same however many pops there are. As a list,
+ * it reads as the value, the payments, and then one entry per pop, oldest
+ * first within each slot, with the entries expanded from the runs as they are
+ * read.
+ */
+public class UnloadedItems extends AbstractList<Object> implements RandomAccess, PopRuns {
+
+	private final int coinValue;
+	private final int payments;
+	private final Pop[] pops;												//Pop of each run
+	private final int[] counts;												//Number of pops in each run
+	private final long[] ends;												//Number of pops up to the end of each run
+
+	UnloadedItems(int coinValue, int payments, Pop[] pops, int[] counts) {
+		this.coinValue = coinValue;
+		this.payments = payments;
+		this.pops = pops;
+		this.counts = counts;
+		ends = new long[counts.length];
+		long total = 0;
+		for (int run = 0; run < counts.length; run++) {
+			total += counts[run];
+			ends[run] = total;
+		}
+	}
+
+	/**
+	 * @return the value of the coins that were in the coin dispenser
+	 */
+	public int getCoinValue() {
+		return coinValue;
+	}
+
+	public int getPayments() {
+		return payments;
+	}
+
+	public int runs() {
+		return pops.length;
+	}
+
+	public Pop popAt(int run) {
+		return pops[run];
+	}
+
+	public int countAt(int run) {
+		return counts[run];
+	}
+
+	/**
+	 * @return the number of pops, which unlike {@link #size()} cannot
+	 *         overflow
+	 */
+	public long popCount() {
+		return ends.length == 0 ? 0 : ends[ends.length - 1];
+	}
+
+	@Override
+	public int size() {
+		return (int) Math.min(Integer.MAX_VALUE, 2 + popCount());
+	}
+
+	@Override
+	public Object get(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("Index " + index + " is not in the unloaded items.");
+		}
+		if (index == 0) {
+			return coinValue;
+		}
+		if (index == 1) {
+			return payments;
+		}
+		long pop = index - 2;
+		int low = 0;
+		int high = ends.length - 1;
+		while (low < high) {													//Find the first run that ends after the pop
+			int middle = (low + high) >>> 1;
+			if (ends[middle] <= pop) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return pops[low];
+	}
+}
@@ -1,26 +1,143 @@
 package ca.ucalgary.seng301.myvendingmachine;
 
 import java.util.ArrayList;
-import ca.ucalgary.seng301.vendingmachine.Coin;
+import java.util.List;
+
 import ca.ucalgary.seng301.vendingmachine.Pop;
 
 public class VendingMachine {
 	
 	int selectionButtonCount;
-	ArrayList<SelectionButton> selectionButtons = new ArrayList<SelectionButton>(selectionButtonCount);  
-	ArrayList<Integer> coinDenominations = new ArrayList<Integer>(); 						//List of coin kinds 
-	ArrayList<ArrayList<Coin>> coinDispenser = new ArrayList<ArrayList<Coin>>();			//Coin types and their loaded coin objects
-	ArrayList<Coin> loadedCoins = new ArrayList<Coin>();									//Payment coins 
+	SelectionButton[] selectionButtons;														//Name and price of each button, or null until configured
+	List<Integer> coinDenominations = new ArrayList<Integer>(); 							//List of coin kinds 
+	int[] coinValues;																		//Value of each coin kind
+	CoinKindIndex coinKindIndex;															//Coin kind of each coin value
+	int[] coinDispenser;																	//Number of loaded coins for each coin kind
+	int[] loadedCoins;																		//Number of payment coins for each coin kind
+	int changeValue = 0;																	//Total value of the coins in the coin dispenser
 	int currentPaymentCredit = 0;															//Current money for current purchase
-	int totalPayments = 0;																	//Total value of money loaded into the machine
-	ArrayList<ArrayList<Pop>> popDispenser = new ArrayList<ArrayList<Pop>>(); 				//Pop kinds and their loaded pop objects
+	int totalPayments = 0;																	//Total value of the payment coins in the machine
+	int changeShortfall = 0;																//Total change owed that could not be paid
+	ChangeMaker changeMaker;																//Change tables for the coin kinds
+	ChangeAvailability changeAvailability;													//Amounts of change the coin dispenser can pay
+	int[] changeTaken;																		//Coins of each kind chosen for the current change
+	FifoDispenser<Pop>[] popDispenser;														//Loaded pops of each slot under their loaded names, oldest first, or null
+	volatile PriceTable priceTable;															//Price of each selection button, swapped whole by configure
+	int[] stock;																			//Number of pops in each slot
+	int popCount = 0;																		//Total number of pops in the slots
 	
-	//Delivery chute items
-	ArrayList<Pop> unextractedPop = new ArrayList<Pop>(); 
-	ArrayList<Coin> change = new ArrayList<Coin>();
+	DeliveryChute deliveryChute;															//Delivery chute items, handed over whole by extract
+	DeliveryChute spareChute;																//Chute handed over by the last extract, reused by the next, or null
 	
-	public VendingMachine(int selectionButtonCount) { 
+	public VendingMachine(int coinKindCount, int selectionButtonCount) { 
 		this.selectionButtonCount = selectionButtonCount;
+		this.selectionButtons = new SelectionButton[selectionButtonCount];
+		this.popDispenser = newSlots(selectionButtonCount);
+		this.coinDispenser = new int[coinKindCount];
+		this.loadedCoins = new int[coinKindCount];
+		this.changeTaken = new int[coinKindCount];
+		this.priceTable = new PriceTable(selectionButtonCount);
+		this.stock = new int[selectionButtonCount];
+	}
+
+	/**
+	 * A machine with the coin kinds of shared tables, whose change tables are
+	 * copied rather than built. Buttons and slots are left to be made when
+	 * they are first configured or loaded, so this is O(coin kinds) apart
+	 * from zeroing the per-button arrays.
+	 */
+	VendingMachine(CoinTables tables, int selectionButtonCount) {
+		this(tables.coinValues.length, selectionButtonCount);
+		this.coinDenominations = tables.coinDenominations;
+		this.coinValues = tables.coinValues;
+		this.coinKindIndex = tables.coinKindIndex;
+		this.changeMaker = tables.newChangeMaker();
+		this.changeAvailability = tables.newChangeAvailability();
+		this.deliveryChute = new DeliveryChute(coinValues);
+	}
+
+	/**
+	 * A copy of another machine that changes independently of it. What never
+	 * changes after construction or configuration is shared, the pops are
+	 * shared until either machine changes them, and the rest is copied, so
+	 * this is O(coin kinds + selection buttons) however much is loaded.
+	 */
+	VendingMachine(VendingMachine original) {
+		this.selectionButtonCount = original.selectionButtonCount;
+		this.selectionButtons = new SelectionButton[selectionButtonCount];
+		this.popDispenser = newSlots(selectionButtonCount);
+		for (int i = 0; i < selectionButtonCount; i++) {
+			SelectionButton selectionButton = original.selectionButtons[i];
+			this.selectionButtons[i] = selectionButton == null ? null : selectionButton.copy();
+			FifoDispenser<Pop> slot = original.popDispenser[i];
+			this.popDispenser[i] = slot == null ? null : slot.fork();
+		}
+		this.coinDenominations = original.coinDenominations;
+		this.coinValues = original.coinValues;
+		this.coinKindIndex = original.coinKindIndex;
+		this.coinDispenser = original.coinDispenser.clone();
+		this.loadedCoins = original.loadedCoins.clone();
+		this.changeValue = original.changeValue;
+		this.currentPaymentCredit = original.currentPaymentCredit;
+		this.totalPayments = original.totalPayments;
+		this.changeShortfall = original.changeShortfall;
+		this.changeMaker = new ChangeMaker(original.changeMaker);
+		this.changeTaken = new int[original.changeTaken.length];
+		this.changeAvailability = new ChangeAvailability(original.changeAvailability);
+		this.priceTable = original.priceTable;
+		this.stock = original.stock.clone();
+		this.popCount = original.popCount;
+		this.deliveryChute = new DeliveryChute(original.deliveryChute);
+	}
+
+	/**
+	 * @return the button, made the first time it is configured
+	 */
+	SelectionButton button(int i) {
+		SelectionButton button = selectionButtons[i];
+		if (button == null) {
+			button = new SelectionButton();
+			selectionButtons[i] = button;
+		}
+		return button;
+	}
+
+	/**
+	 * @return room for the given number of slots, none of them made yet
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static FifoDispenser<Pop>[] newSlots(int count) {
+		return new FifoDispenser[count];								//Generic arrays cannot be created directly
+	}
+
+	/**
+	 * @return the slot, made the first time pops are put in it
+	 */
+	FifoDispenser<Pop> slot(int i) {
+		FifoDispenser<Pop> slot = popDispenser[i];
+		if (slot == null) {
+			slot = new FifoDispenser<Pop>();
+			popDispenser[i] = slot;
+		}
+		return slot;
+	}
+
+	/**
+	 * @return the pop loaded into a slot: that of its button's name, or of
+	 *         the null name if it has not been configured
+	 */
+	Pop popOf(int i) {
+		SelectionButton button = selectionButtons[i];
+		return button != null ? button.getPop() : PopCatalog.SHARED.popOf(PopCatalog.NULL_ID);
+	}
+
+	/**
+	 * @return the number of pops in a slot, which is 0 until pops are first
+	 *         put in it
+	 */
+	int slotSize(int i) {
+		FifoDispenser<Pop> slot = popDispenser[i];
+		return slot == null ? 0 : slot.size();
 	}
 		
 }
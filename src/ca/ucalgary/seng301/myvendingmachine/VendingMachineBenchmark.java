@@ -0,0 +1,1341 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ca.ucalgary.seng301.vendingmachine.IVendingMachineFactory;
+import ca.ucalgary.seng301.vendingmachine.parser.ParserConstants;
+import ca.ucalgary.seng301.vendingmachine.parser.ParserTokenManager;
+import ca.ucalgary.seng301.vendingmachine.parser.SimpleCharStream;
+
+/**
+ * Benchmarks for the vending machine backend. Each benchmark warms up before
+ * it is timed and prints one line per configuration, and its median score is
+ * recorded.
+ * 
+ * <p>
+ * Usage:
+ * <code>VendingMachineBenchmark [--json file] [--baseline file] [--threshold percent] [benchmark...]</code>
+ * 
+ * <p>
+ * With no benchmark names, all of them are run; an unknown name or option
+ * exits with status 2. <code>--json</code> writes the recorded scores to a
+ * file. <code>--baseline</code> compares them with a file written earlier by
+ * <code>--json</code> and exits with status 1 if any score is worse by more
+ * than the threshold (10% by default), or if a score in the baseline was not
+ * recorded again, so the same benchmarks must be run as for the baseline.
+ */
+public class VendingMachineBenchmark {
+
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int MEASURED_ROUNDS = 5;
+
+	private static final Pattern SCORE_LINE = Pattern
+			.compile("\\{\"benchmark\": \"(.*?)\", \"params\": \"(.*?)\", \"score\": ([-+0-9.Ee]+), \"unit\": \"(.*?)\"\\}");
+
+	/**
+	 * The median score of one benchmark configuration.
+	 */
+	static class Score {
+		final String benchmark;
+		final String params;
+		final double value;
+		final String unit;
+
+		Score(String benchmark, String params, double value, String unit) {
+			this.benchmark = benchmark;
+			this.params = params;
+			this.value = value;
+			this.unit = unit;
+		}
+
+		String key() {
+			return benchmark + " " + params;
+		}
+
+		boolean higherIsBetter() {
+			return unit.endsWith("/s");
+		}
+	}
+
+	private static final List<Score> scores = new ArrayList<Score>();
+
+	private static final List<String> BENCHMARKS = Arrays.asList("operations", "vend-depth", "change", "allocation",
+			"press-lookup", "batch", "metrics", "fleet", "async", "shard", "replay", "parse", "fork", "startup", "journal");
+
+	public static void main(String[] args) throws Exception {
+		String json = null;
+		String baseline = null;
+		double threshold = 10;
+		List<String> only = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--json") && i + 1 < args.length) {
+				json = args[++i];
+			} else if (args[i].equals("--baseline") && i + 1 < args.length) {
+				baseline = args[++i];
+			} else if (args[i].equals("--threshold") && i + 1 < args.length) {
+				try {
+					threshold = Double.parseDouble(args[++i]);
+				} catch (NumberFormatException e) {
+					usage();
+				}
+			} else if (BENCHMARKS.contains(args[i])) {
+				only.add(args[i]);
+			} else {
+				usage();
+			}
+		}
+
+		if (only.isEmpty() || only.contains("operations")) {
+			factoryOperations();
+		}
+		if (only.isEmpty() || only.contains("vend-depth")) {
+			vendLatencyByDepth();
+		}
+		if (only.isEmpty() || only.contains("change")) {
+			changeMaking();
+		}
+		if (only.isEmpty() || only.contains("allocation")) {
+			hotPathAllocation();
+		}
+		if (only.isEmpty() || only.contains("press-lookup")) {
+			pressLookup();
+		}
+		if (only.isEmpty() || only.contains("batch")) {
+			batchPurchases();
+		}
+		if (only.isEmpty() || only.contains("metrics")) {
+			metricsOverhead();
+		}
+		if (only.isEmpty() || only.contains("fleet")) {
+			fleetThroughput();
+		}
+		if (only.isEmpty() || only.contains("async")) {
+			asyncThroughput();
+		}
+		if (only.isEmpty() || only.contains("shard")) {
+			shardedThroughput();
+		}
+		if (only.isEmpty() || only.contains("replay")) {
+			scriptReplay();
+		}
+		if (only.isEmpty() || only.contains("parse")) {
+			parsing();
+		}
+		if (only.isEmpty() || only.contains("fork")) {
+			forking();
+		}
+		if (only.isEmpty() || only.contains("startup")) {
+			startup();
+		}
+		if (only.isEmpty() || only.contains("journal")) {
+			journaling();
+		}
+
+		if (json != null) {
+			writeScores(Paths.get(json));
+		}
+		if (baseline != null && !compareWithBaseline(Paths.get(baseline), threshold)) {
+			System.exit(1);
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: VendingMachineBenchmark [--json file] [--baseline file] [--threshold percent] [benchmark...]");
+		System.err.println("Benchmarks: " + BENCHMARKS);
+		System.exit(2);
+	}
+
+	/**
+	 * One timed operation of a benchmark, with optional untimed set up before
+	 * each round.
+	 */
+	abstract static class Operation {
+		void setUp() {
+		}
+
+		abstract void run(int i);
+	}
+
+	/**
+	 * The factory operations on machines of different shapes: number of
+	 * selection buttons, number of coin kinds, and number of pops loaded into
+	 * each slot. Each operation is timed on a machine that has just been
+	 * constructed, configured and loaded.
+	 */
+	static void factoryOperations() {
+		System.out.println("operations: ns per factory operation by machine shape");
+		int[][] shapes = { { 1, 1, 10 }, { 10, 5, 10000 }, { 100, 10, 10000 }, { 1000, 50, 10000 }, { 1000, 50, 10000000 } };
+		for (int[] shape : shapes) {
+			final int buttons = shape[0];
+			final int kinds = shape[1];
+			final int depth = shape[2];
+			String params = "buttons=" + buttons + " kinds=" + kinds + " depth=" + depth;
+			System.out.println("  " + params);
+			final List<Integer> coinKinds = new ArrayList<Integer>();
+			final List<Integer> coinCounts = new ArrayList<Integer>();
+			for (int i = 0; i < kinds; i++) {
+				coinKinds.add(5 * (i + 1));
+				coinCounts.add(depth);
+			}
+			final List<String> names = new ArrayList<String>();
+			final List<Integer> prices = new ArrayList<Integer>();
+			final List<Integer> popCounts = new ArrayList<Integer>();
+			for (int i = 0; i < buttons; i++) {
+				names.add("pop" + i);
+				prices.add(5 * (i % 40 + 10));
+				popCounts.add(depth);
+			}
+			final VendingMachineFactory factory = new VendingMachineFactory();
+			abstract class MachineOperation extends Operation {
+				@Override
+				void setUp() {
+					factory.construct(coinKinds, buttons);
+					factory.configure(names, prices);
+					factory.load(coinCounts, popCounts);
+				}
+			}
+
+			measure("insert", params, 1000000, new MachineOperation() {
+				@Override
+				void run(int i) {
+					factory.insert(coinKinds.get(i % kinds));
+				}
+			});
+			measure("press", params, 1000000, new MachineOperation() {
+				@Override
+				void run(int i) {
+					factory.vendingMachine.currentPaymentCredit = 500;
+					factory.press(i % buttons);
+				}
+			});
+			measure("makeChange", params, 1000000, new MachineOperation() {
+				@Override
+				void run(int i) {
+					factory.makeChange(i % 500);
+				}
+			});
+			measure("load", params, 100000, new MachineOperation() {
+				@Override
+				void run(int i) {
+					factory.load(coinCounts, popCounts);
+				}
+			});
+			measure("extract", params, 10000, new MachineOperation() {
+				@Override
+				void run(int i) {
+					factory.vendingMachine.currentPaymentCredit = 500;
+					factory.press(i % buttons);
+					factory.extract();
+				}
+			});
+			measure("unload", params, 10000, new MachineOperation() {
+				@Override
+				void run(int i) {
+					factory.load(coinCounts, popCounts);
+					factory.unload();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Times an operation and records its median time per call.
+	 */
+	static void measure(String benchmark, String params, int operations, Operation operation) {
+		long[] samples = new long[MEASURED_ROUNDS];
+		for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+			operation.setUp();
+			long start = System.nanoTime();
+			for (int i = 0; i < operations; i++) {
+				operation.run(i);
+			}
+			if (round >= WARMUP_ROUNDS) {
+				samples[round - WARMUP_ROUNDS] = (System.nanoTime() - start) / operations;
+			}
+		}
+		System.out.println(String.format("    %-12s %s", benchmark, record(benchmark, params, samples, "ns/op")));
+	}
+
+	/**
+	 * Vend latency as the depth of the slot grows from 10 to 10^7 pops. The
+	 * slot is loaded with alternating names so that every pop is its own run,
+	 * which is the worst case for the dispenser, and each vended pop is put
+	 * back so that the depth stays constant while it is measured.
+	 */
+	static void vendLatencyByDepth() {
+		System.out.println("vend-depth: ns per vend by slot depth");
+		for (int depth = 10; depth <= 10000000; depth *= 10) {
+			FifoDispenser<String> slot = new FifoDispenser<String>();
+			for (int i = 0; i < depth; i++) {
+				slot.put(i % 2 == 0 ? "Coke" : "water", 1);
+			}
+			int vends = 1000000;
+			long[] samples = new long[MEASURED_ROUNDS];
+			for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+				long start = System.nanoTime();
+				for (int i = 0; i < vends; i++) {
+					slot.put(slot.take(), 1);
+				}
+				if (round >= WARMUP_ROUNDS) {
+					samples[round - WARMUP_ROUNDS] = (System.nanoTime() - start) / vends;
+				}
+			}
+			System.out.println(String.format("  depth %,12d  %s", depth, record("vend-depth", "depth=" + depth, samples, "ns/op")));
+		}
+	}
+
+	/**
+	 * Change making with {@link ChangeMaker} against the greedy loop that
+	 * makeChange used before it, which walks the coin kinds from last to
+	 * first and so is only right for canonical kinds constructed in ascending
+	 * order, and the bitset check of whether each request can be paid
+	 * exactly.
+	 */
+	static void changeMaking() {
+		System.out.println("change: ns per change request, and requests paid exactly");
+		int[][] shapes = { { 5, 10, 25, 100 }, { 10, 1, 3 }, { 1, 3, 4 }, { 1, 7, 23, 52, 101, 250 } };
+		int requests = 200000;
+		Random random = new Random(301);
+		int[] amounts = new int[requests];
+		for (int i = 0; i < requests; i++) {
+			amounts[i] = random.nextInt(500);
+		}
+		for (int[] values : shapes) {
+			int[] counts = new int[values.length];
+			Arrays.fill(counts, 20);
+			int[] taken = new int[values.length];
+			ChangeMaker changeMaker = new ChangeMaker(values, ChangeMaker.DEFAULT_TABLE_CEILING);
+			ChangeAvailability availability = new ChangeAvailability(values, ChangeMaker.DEFAULT_TABLE_CEILING);
+			long[] greedySamples = new long[MEASURED_ROUNDS];
+			long[] engineSamples = new long[MEASURED_ROUNDS];
+			long[] availabilitySamples = new long[MEASURED_ROUNDS];
+			int greedyExact = 0;
+			int engineExact = 0;
+			int availableExact = 0;
+			for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+				greedyExact = 0;
+				long start = System.nanoTime();
+				for (int amount : amounts) {
+					if (legacyGreedy(values, counts, amount, taken) == amount) {
+						greedyExact++;
+					}
+				}
+				long greedyTime = (System.nanoTime() - start) / requests;
+				engineExact = 0;
+				start = System.nanoTime();
+				for (int amount : amounts) {
+					if (changeMaker.makeChange(amount, counts, taken) == amount) {
+						engineExact++;
+					}
+				}
+				long engineTime = (System.nanoTime() - start) / requests;
+				availableExact = 0;
+				start = System.nanoTime();
+				for (int amount : amounts) {
+					if (availability.canPay(amount, counts)) {						//Built once, as the counts do not change
+						availableExact++;
+					}
+				}
+				long availabilityTime = (System.nanoTime() - start) / requests;
+				if (round >= WARMUP_ROUNDS) {
+					greedySamples[round - WARMUP_ROUNDS] = greedyTime;
+					engineSamples[round - WARMUP_ROUNDS] = engineTime;
+					availabilitySamples[round - WARMUP_ROUNDS] = availabilityTime;
+				}
+			}
+			System.out.println(String.format("  %-24s canonical %-5b", Arrays.toString(values), changeMaker.isCanonical()));
+			String params = Arrays.toString(values).replace(" ", "");
+			System.out.println(String.format("    greedy       %s  exact %6d", record("change-greedy", params, greedySamples, "ns/op"), greedyExact));
+			System.out.println(String.format("    ChangeMaker  %s  exact %6d", record("change", params, engineSamples, "ns/op"), engineExact));
+			System.out.println(String.format("    bitset check %s  exact %6d", record("change-available", params, availabilitySamples, "ns/op"), availableExact));
+		}
+	}
+
+	private static int legacyGreedy(int[] values, int[] counts, int amount, int[] taken) {
+		int paid = 0;
+		for (int i = values.length - 1; i >= 0; i--) {
+			taken[i] = Math.min(counts[i], (amount - paid) / values[i]);
+			paid += taken[i] * values[i];
+		}
+		return paid;
+	}
+
+	/**
+	 * Bytes allocated per insert and per press once the machine has warmed
+	 * up. Presses pay change into the delivery chute, which is only extracted
+	 * between rounds, so anything it holds per item would show up here. The
+	 * last case extracts after every sale, so a chute that is not reused
+	 * shows up there.
+	 */
+	static void hotPathAllocation() {
+		System.out.println("allocation: bytes allocated per operation");
+		VendingMachineFactory factory = new VendingMachineFactory();
+		factory.construct(Arrays.asList(5, 10, 25, 100), 3);
+		factory.configure(Arrays.asList("Coke", "water", "stuff"), Arrays.asList(250, 250, 205));
+		factory.load(Arrays.asList(1000000, 1000000, 1000000, 0), Arrays.asList(5000000, 5000000, 5000000));
+		int operations = 1000000;
+		double[] insertBytes = new double[MEASURED_ROUNDS];
+		double[] pressBytes = new double[MEASURED_ROUNDS];
+		double[] saleBytes = new double[MEASURED_ROUNDS];
+		for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+			long before = allocatedBytes();
+			for (int i = 0; i < operations; i++) {
+				factory.insert(100);
+			}
+			long afterInserts = allocatedBytes();
+			for (int i = 0; i < operations / 3; i++) {
+				factory.press(i % 3);
+				factory.insert(100);
+				factory.insert(100);
+				factory.insert(100);
+			}
+			long afterPresses = allocatedBytes();
+			factory.extract();
+			long beforeSales = allocatedBytes();
+			for (int i = 0; i < operations / 4; i++) {
+				factory.insert(100);
+				factory.insert(100);
+				factory.insert(100);
+				factory.press(i % 3);
+				factory.extract();
+			}
+			long afterSales = allocatedBytes();
+			if (round >= WARMUP_ROUNDS) {
+				insertBytes[round - WARMUP_ROUNDS] = (double) (afterInserts - before) / operations;
+				pressBytes[round - WARMUP_ROUNDS] = (double) (afterPresses - afterInserts) / (operations / 3);
+				saleBytes[round - WARMUP_ROUNDS] = (double) (afterSales - beforeSales) / (operations / 4);
+			}
+		}
+		Arrays.sort(insertBytes);
+		Arrays.sort(pressBytes);
+		Arrays.sort(saleBytes);
+		scores.add(new Score("allocation-insert", "", insertBytes[MEASURED_ROUNDS / 2], "B/op"));
+		scores.add(new Score("allocation-press", "", pressBytes[MEASURED_ROUNDS / 2], "B/op"));
+		scores.add(new Score("allocation-extract", "", saleBytes[MEASURED_ROUNDS / 2], "B/op"));
+		System.out.println(String.format("  insert %.3f B/op  press+3 inserts %.3f B/op  3 inserts+press+extract %.3f B/op",
+				insertBytes[MEASURED_ROUNDS / 2], pressBytes[MEASURED_ROUNDS / 2], saleBytes[MEASURED_ROUNDS / 2]));
+	}
+
+	/**
+	 * Presses that vend nothing, because the slot is empty or the credit too
+	 * low, spread over machines of 10 to 10^6 buttons, so that the time is
+	 * spent looking up the price and stock rather than making change.
+	 */
+	static void pressLookup() {
+		System.out.println("press-lookup: ns per press that vends nothing, by button count");
+		for (int buttons = 10; buttons <= 1000000; buttons *= 10) {
+			final int buttonCount = buttons;
+			List<String> names = new ArrayList<String>();
+			List<Integer> prices = new ArrayList<Integer>();
+			List<Integer> popCounts = new ArrayList<Integer>();
+			for (int i = 0; i < buttons; i++) {
+				names.add("pop" + i);
+				prices.add(5 * (i % 40 + 10));
+				popCounts.add(i % 2 * 10);
+			}
+			final VendingMachineFactory factory = new VendingMachineFactory();
+			factory.construct(Arrays.asList(5, 10, 25, 100), buttons);
+			factory.configure(names, prices);
+			factory.load(Arrays.asList(0, 0, 0, 0), popCounts);
+			measure("press", "buttons=" + buttons, 1000000, new Operation() {
+				@Override
+				void run(int i) {
+					factory.press((int) ((i * 2654435761L) % buttonCount));	//Scattered over the buttons
+				}
+			});
+		}
+	}
+
+	/**
+	 * Purchases of three coins and a press, made one call at a time and in
+	 * batches of 1024 transactions.
+	 */
+	static void batchPurchases() {
+		System.out.println("batch: ns per purchase, one call at a time and batched");
+		final int batchSize = 1024;
+		final int[] coins = new int[3 * batchSize];
+		final int[] coinOffsets = new int[batchSize + 1];
+		final int[] buttons = new int[batchSize];
+		Arrays.fill(coins, 100);
+		for (int t = 0; t <= batchSize; t++) {
+			coinOffsets[t] = 3 * t;
+		}
+		for (int t = 0; t < batchSize; t++) {
+			buttons[t] = t % 3;
+		}
+		final TransactionResults results = new TransactionResults();
+		final VendingMachineFactory factory = new VendingMachineFactory();
+		abstract class PurchaseOperation extends Operation {
+			@Override
+			void setUp() {
+				factory.construct(Arrays.asList(5, 10, 25, 100), 3);
+				factory.configure(Arrays.asList("Coke", "water", "stuff"), Arrays.asList(250, 250, 205));
+				factory.load(Arrays.asList(1000000, 1000000, 1000000, 0), Arrays.asList(1000000, 1000000, 1000000));
+			}
+		}
+		measure("purchase", "batch=1", 1000000, new PurchaseOperation() {
+			@Override
+			void run(int i) {
+				factory.insert(100);
+				factory.insert(100);
+				factory.insert(100);
+				factory.press(i % 3);
+				if ((i & 1023) == 1023) {
+					factory.extract();
+				}
+			}
+		});
+		final int batches = 1000;
+		long[] samples = new long[MEASURED_ROUNDS];
+		Operation batched = new PurchaseOperation() {
+			@Override
+			void run(int i) {
+				factory.purchase(coins, coinOffsets, buttons, batchSize, results);
+				factory.extract();
+			}
+		};
+		for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+			batched.setUp();
+			long start = System.nanoTime();
+			for (int i = 0; i < batches; i++) {
+				batched.run(i);
+			}
+			if (round >= WARMUP_ROUNDS) {
+				samples[round - WARMUP_ROUNDS] = (System.nanoTime() - start) / ((long) batches * batchSize);
+			}
+		}
+		System.out.println(String.format("    %-12s %s", "batched", record("purchase", "batch=" + batchSize, samples, "ns/op")));
+	}
+
+	/**
+	 * The cost of recording metrics: a purchase of three inserts and a press,
+	 * with metrics disabled and enabled.
+	 */
+	static void metricsOverhead() {
+		System.out.println("metrics: ns per purchase with metrics disabled and enabled");
+		FactoryMetrics[] settings = { FactoryMetrics.DISABLED, new FactoryMetrics(1) };
+		for (final FactoryMetrics metrics : settings) {
+			final VendingMachineFactory factory = new VendingMachineFactory();
+			measure(metrics.isEnabled() ? "metrics-on" : "metrics-off", "", 1000000, new Operation() {
+				@Override
+				void setUp() {
+					factory.setMetrics(metrics);
+					factory.construct(Arrays.asList(5, 10, 25, 100), 3);
+					factory.configure(Arrays.asList("Coke", "water", "stuff"), Arrays.asList(250, 250, 205));
+					factory.load(Arrays.asList(1000000, 1000000, 1000000, 0), Arrays.asList(1000000, 1000000, 1000000));
+				}
+
+				@Override
+				void run(int i) {
+					factory.insert(100);
+					factory.insert(100);
+					factory.insert(100);
+					factory.press(i % 3);
+					if ((i & 1023) == 1023) {
+						factory.extract();
+					}
+				}
+			});
+		}
+		System.out.println(settings[1].snapshot().toText());
+	}
+
+	/**
+	 * Throughput of a fleet driven by 1 to 64 threads, each sending a random
+	 * mix of inserts, presses and extracts to random machines. Afterwards
+	 * every machine is unloaded and checked against what the threads put in
+	 * and took out, so a lost or torn update fails the benchmark.
+	 */
+	static void fleetThroughput() {
+		System.out.println("fleet: operations per second by thread count, 4096 machines");
+		runFleet(4);															//Warm up
+		for (int threadCount = 1; threadCount <= 64; threadCount *= 2) {
+			double throughput = runFleet(threadCount);
+			scores.add(new Score("fleet", "threads=" + threadCount, throughput, "ops/s"));
+			System.out.println(String.format("  %2d threads  %,12.0f ops/s", threadCount, throughput));
+		}
+	}
+
+	private static double runFleet(int threadCount) {
+		final int machineCount = 4096;
+		final int operationsPerThread = 500000;
+		final List<Integer> coinKinds = Arrays.asList(5, 10, 25, 100);
+		final VendingMachineFleet fleet = new VendingMachineFleet(machineCount);
+		for (int id = 0; id < machineCount; id++) {
+			fleet.construct(id, coinKinds, 3);
+			fleet.configure(id, Arrays.asList("Coke", "water", "stuff"), Arrays.asList(250, 250, 205));
+			fleet.load(id, Arrays.asList(100, 100, 100, 0), Arrays.asList(1000, 1000, 1000));
+		}
+		final AtomicLongArray accepted = new AtomicLongArray(machineCount);
+		final AtomicLongArray rejected = new AtomicLongArray(machineCount);
+		final AtomicLongArray extractedCoins = new AtomicLongArray(machineCount);
+		final AtomicLongArray extractedPops = new AtomicLongArray(machineCount);
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			final Random random = new Random(t);
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < operationsPerThread; i++) {
+						int id = random.nextInt(machineCount);
+						int choice = random.nextInt(100);
+						if (choice < 70) {
+							int value = coinKinds.get(random.nextInt(coinKinds.size()));
+							fleet.insert(id, value);
+							accepted.addAndGet(id, value);
+						} else if (choice < 75) {
+							fleet.insert(id, 3);
+							rejected.addAndGet(id, 3);
+						} else if (choice < 95) {
+							fleet.press(id, random.nextInt(3));
+						} else {
+							collect(fleet.extract(id), id, extractedCoins, extractedPops);
+						}
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+
+		for (int id = 0; id < machineCount; id++) {
+			collect(fleet.extract(id), id, extractedCoins, extractedPops);
+			List<Object> teardown = fleet.unload(id);
+			int changeLeft = (Integer) teardown.get(0);
+			int payments = (Integer) teardown.get(1);
+			long changePaid = 100 * (5 + 10 + 25) - changeLeft;
+			if (payments != accepted.get(id) || extractedCoins.get(id) != rejected.get(id) + changePaid
+					|| extractedPops.get(id) + teardown.size() - 2 != 3000) {
+				throw new IllegalStateException("Machine " + id + " lost an update.");
+			}
+		}
+		return (double) threadCount * operationsPerThread / elapsed * 1e9;
+	}
+
+	/**
+	 * Throughput of an asynchronous fleet by number of machines, with four
+	 * threads sending purchases to random machines and one worker per
+	 * processor. Each sender waits for its operations every 4096 sends, so
+	 * that the mailboxes stay bounded.
+	 */
+	static void asyncThroughput() throws Exception {
+		int workerCount = Runtime.getRuntime().availableProcessors();
+		System.out.println("async: operations per second by machine count, 4 senders, " + workerCount + " workers");
+		runAsync(64, workerCount);												//Warm up
+		for (int machineCount = 1; machineCount <= 4096; machineCount *= 4) {
+			double throughput = runAsync(machineCount, workerCount);
+			scores.add(new Score("async", "machines=" + machineCount, throughput, "ops/s"));
+			System.out.println(String.format("  %4d machines  %,12.0f ops/s", machineCount, throughput));
+		}
+	}
+
+	private static double runAsync(final int machineCount, int workerCount) throws Exception {
+		final int senderCount = 4;
+		final int operationsPerSender = 250000;
+		final int window = 4096;
+		try (final AsyncVendingMachineFleet fleet = new AsyncVendingMachineFleet(machineCount, workerCount)) {
+			List<Future<Void>> ready = new ArrayList<Future<Void>>();
+			for (int id = 0; id < machineCount; id++) {
+				fleet.construct(id, Arrays.asList(5, 10, 25, 100), 3);
+				fleet.configure(id, Arrays.asList("Coke", "water", "stuff"), Arrays.asList(250, 250, 205));
+				ready.add(fleet.load(id, Arrays.asList(100000, 100000, 100000, 0), Arrays.asList(100000, 100000, 100000)));
+			}
+			for (Future<Void> future : ready) {
+				future.get();
+			}
+			Thread[] senders = new Thread[senderCount];
+			final Exception[] failure = new Exception[1];
+			for (int s = 0; s < senderCount; s++) {
+				final Random random = new Random(s);
+				senders[s] = new Thread() {
+					@Override
+					public void run() {
+						List<Future<?>> sent = new ArrayList<Future<?>>(window);
+						try {
+							for (int i = 0; i < operationsPerSender; i++) {
+								int id = random.nextInt(machineCount);
+								int choice = i & 7;
+								if (choice < 6) {
+									sent.add(fleet.insert(id, 100));
+								} else if (choice == 6) {
+									sent.add(fleet.press(id, random.nextInt(3)));
+								} else {
+									sent.add(fleet.extract(id));
+								}
+								if (sent.size() == window) {
+									for (Future<?> future : sent) {
+										future.get();
+									}
+									sent.clear();
+								}
+							}
+							for (Future<?> future : sent) {
+								future.get();
+							}
+						} catch (Exception e) {
+							failure[0] = e;
+						}
+					}
+				};
+			}
+			long start = System.nanoTime();
+			for (Thread sender : senders) {
+				sender.start();
+			}
+			for (Thread sender : senders) {
+				sender.join();
+			}
+			long elapsed = System.nanoTime() - start;
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+			return (double) senderCount * operationsPerSender / elapsed * 1e9;
+		}
+	}
+
+	/**
+	 * Aggregate throughput of a sharded fleet of 1024 machines by number of
+	 * worker processes on this host, with four threads sending purchases to
+	 * random machines as in the async benchmark. Each worker is a separate
+	 * JVM reached over a loopback socket, and a few more machines are handed
+	 * over each time a worker is added.
+	 */
+	static void shardedThroughput() throws Exception {
+		System.out.println("shard: operations per second by worker processes, 1024 machines, 4 senders");
+		List<Process> processes = new ArrayList<Process>();
+		List<ShardTransport> transports = new ArrayList<ShardTransport>();
+		try {
+			transports.add(startWorker(processes));
+			try (ShardedFleet fleet = new ShardedFleet(transports)) {
+				int machineCount = 1024;
+				List<Future<Void>> ready = new ArrayList<Future<Void>>();
+				for (int id = 0; id < machineCount; id++) {
+					fleet.construct(id, Arrays.asList(5, 10, 25, 100), 3);
+					fleet.configure(id, Arrays.asList("Coke", "water", "stuff"), Arrays.asList(250, 250, 205));
+					ready.add(fleet.load(id, Arrays.asList(100000, 100000, 100000, 0), Arrays.asList(100000, 100000, 100000)));
+				}
+				for (Future<Void> future : ready) {
+					future.get();
+				}
+				runSharded(fleet, machineCount);										//Warm up
+				for (int workers = 1; workers <= 8; workers *= 2) {
+					int moved = 0;
+					long start = System.nanoTime();
+					while (fleet.shardCount() < workers) {
+						moved += fleet.addShard(startWorker(processes));
+					}
+					long rebalancing = System.nanoTime() - start;
+					double throughput = runSharded(fleet, machineCount);
+					scores.add(new Score("shard", "workers=" + workers, throughput, "ops/s"));
+					System.out.println(String.format("  %d workers  %,12.0f ops/s   %4d machines moved in %.1f ms", workers, throughput, moved,
+							rebalancing / 1e6));
+				}
+			}
+		} finally {
+			for (Process process : processes) {
+				process.destroy();
+			}
+		}
+	}
+
+	/**
+	 * Starts a worker process on this host and connects to it.
+	 */
+	private static ShardTransport startWorker(List<Process> processes) throws IOException {
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), FleetWorker.class.getName());
+		builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		Process process = builder.start();
+		processes.add(process);
+		String line = new BufferedReader(new InputStreamReader(process.getInputStream(), Charset.forName("UTF-8"))).readLine();
+		if (line == null || !line.startsWith("listening on port ")) {
+			throw new IOException("The worker did not start: " + line);
+		}
+		int port = Integer.parseInt(line.substring("listening on port ".length()));
+		return new SocketTransport(new InetSocketAddress("127.0.0.1", port));
+	}
+
+	private static double runSharded(final ShardedFleet fleet, final int machineCount) throws Exception {
+		final int senderCount = 4;
+		final int operationsPerSender = 500000;
+		final int window = 4096;
+		Thread[] senders = new Thread[senderCount];
+		final Exception[] failure = new Exception[1];
+		for (int s = 0; s < senderCount; s++) {
+			final Random random = new Random(s);
+			senders[s] = new Thread() {
+				@Override
+				public void run() {
+					List<Future<?>> sent = new ArrayList<Future<?>>(window);
+					try {
+						for (int i = 0; i < operationsPerSender; i++) {
+							int id = random.nextInt(machineCount);
+							int choice = i & 7;
+							if (choice < 6) {
+								sent.add(fleet.insert(id, 100));
+							} else if (choice == 6) {
+								sent.add(fleet.press(id, random.nextInt(3)));
+							} else {
+								sent.add(fleet.extract(id));
+							}
+							if (sent.size() == window) {
+								for (Future<?> future : sent) {
+									future.get();
+								}
+								sent.clear();
+							}
+						}
+						for (Future<?> future : sent) {
+							future.get();
+						}
+					} catch (Exception e) {
+						failure[0] = e;
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread sender : senders) {
+			sender.start();
+		}
+		for (Thread sender : senders) {
+			sender.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		return (double) senderCount * operationsPerSender / elapsed * 1e9;
+	}
+
+	/**
+	 * Commands per second replaying the same generated script from text,
+	 * through the script parser, and from a binary command log.
+	 */
+	static void scriptReplay() throws Exception {
+		System.out.println("replay: commands per second, text script against binary command log");
+		Path script = Files.createTempFile("replay", ".script");
+		Path log = Files.createTempFile("replay", ".vmcl");
+		try {
+			writeScript(script, 200000);
+			try (Reader reader = Files.newBufferedReader(script, Charset.forName("UTF-8"));
+					CommandLogWriter writer = new CommandLogWriter(new FileOutputStream(log.toFile()))) {
+				new CommandLogConverter(reader, writer).convert();
+			}
+			StreamingDriver.CheckListener ignore = new StreamingDriver.CheckListener() {
+				@Override
+				public void checked(long command, int kind, boolean passed) {
+					if (!passed) {
+						throw new IllegalStateException("Check at command " + command + " failed.");
+					}
+				}
+			};
+			long[] textSamples = new long[MEASURED_ROUNDS];
+			long[] binarySamples = new long[MEASURED_ROUNDS];
+			for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+				long start = System.nanoTime();
+				long commands;
+				try (Reader reader = Files.newBufferedReader(script, Charset.forName("UTF-8"))) {
+					commands = new StreamingDriver(new VendingMachineFactory()).run(reader, ignore);
+				}
+				long text = (long) (commands / ((System.nanoTime() - start) / 1e9));
+				start = System.nanoTime();
+				commands = new CommandLogReplayer(new VendingMachineFactory()).replay(log, ignore);
+				long binary = (long) (commands / ((System.nanoTime() - start) / 1e9));
+				if (round >= WARMUP_ROUNDS) {
+					textSamples[round - WARMUP_ROUNDS] = text;
+					binarySamples[round - WARMUP_ROUNDS] = binary;
+				}
+			}
+			System.out.println(String.format("  %,d bytes of text, %,d bytes of log", Files.size(script), Files.size(log)));
+			System.out.println("  text    " + record("replay-text", "", textSamples, "commands/s"));
+			System.out.println("  binary  " + record("replay-binary", "", binarySamples, "commands/s"));
+		} finally {
+			Files.delete(script);
+			Files.delete(log);
+		}
+	}
+
+	/**
+	 * Tokens per second parsing the same generated script with the script
+	 * parser and with {@link ScriptParser}, both dispatching to a factory that
+	 * does nothing, so that only parsing is timed.
+	 */
+	static void parsing() throws Exception {
+		System.out.println("parse: tokens per second, script parser against hand-written parser");
+		Path script = Files.createTempFile("parse", ".script");
+		try {
+			writeScript(script, 200000);
+			byte[] bytes = Files.readAllBytes(script);
+			long tokens = 0;
+			ParserTokenManager lexer = new ParserTokenManager(new SimpleCharStream(
+					new InputStreamReader(new ByteArrayInputStream(bytes), Charset.forName("UTF-8"))));
+			while (lexer.getNextToken().kind != ParserConstants.EOF) {
+				tokens++;
+			}
+			IVendingMachineFactory idle = new IVendingMachineFactory() {
+				@Override
+				public void construct(List<Integer> coinKinds, int selectionButtonCount) {
+				}
+
+				@Override
+				public void configure(List<String> popNames, List<Integer> popCosts) {
+				}
+
+				@Override
+				public void load(List<Integer> coinCounts, List<Integer> popCounts) {
+				}
+
+				@Override
+				public List<Object> unload() {
+					return Collections.emptyList();
+				}
+
+				@Override
+				public List<Object> extract() {
+					return Collections.emptyList();
+				}
+
+				@Override
+				public void insert(int value) {
+				}
+
+				@Override
+				public void press(int value) {
+				}
+			};
+			StreamingDriver.CheckListener ignore = new StreamingDriver.CheckListener() {
+				@Override
+				public void checked(long command, int kind, boolean passed) {
+				}
+			};
+			long[] generatedSamples = new long[MEASURED_ROUNDS];
+			long[] handWrittenSamples = new long[MEASURED_ROUNDS];
+			for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+				long start = System.nanoTime();
+				new StreamingDriver(idle).run(new InputStreamReader(new ByteArrayInputStream(bytes), Charset.forName("UTF-8")), ignore);
+				long generated = (long) (tokens / ((System.nanoTime() - start) / 1e9));
+				start = System.nanoTime();
+				new ScriptParser(idle).run(ByteBuffer.wrap(bytes), ignore);
+				long handWritten = (long) (tokens / ((System.nanoTime() - start) / 1e9));
+				if (round >= WARMUP_ROUNDS) {
+					generatedSamples[round - WARMUP_ROUNDS] = generated;
+					handWrittenSamples[round - WARMUP_ROUNDS] = handWritten;
+				}
+			}
+			System.out.println(String.format("  %,d tokens in %,d bytes", tokens, bytes.length));
+			System.out.println("  JavaCC        " + record("parse-javacc", "", generatedSamples, "tokens/s"));
+			System.out.println("  hand-written  " + record("parse-handwritten", "", handWrittenSamples, "tokens/s"));
+		} finally {
+			Files.delete(script);
+		}
+	}
+
+	/**
+	 * Copying a machine by forking it against a snapshot round trip, as the
+	 * machine is loaded in more and more runs of 100 pops per slot, and
+	 * what-if runs of a thousand forks.
+	 */
+	static void forking() throws Exception {
+		System.out.println("fork: ns per copy of a machine with 10 buttons, by loads of 100 pops per slot");
+		List<String> names = new ArrayList<String>();
+		List<String> otherNames = new ArrayList<String>();
+		List<Integer> prices = new ArrayList<Integer>();
+		for (int i = 0; i < 10; i++) {
+			names.add("pop" + i);
+			otherNames.add("other" + i);
+			prices.add(75 + 25 * (i % 4));
+		}
+		for (int loads = 1; loads <= 10000; loads *= 100) {
+			final VendingMachineFactory factory = new VendingMachineFactory();
+			factory.construct(Arrays.asList(5, 10, 25, 100), 10);
+			for (int i = 0; i < loads; i++) {
+				factory.configure(i % 2 == 0 ? names : otherNames, prices);			//Every load is a run of its own
+				factory.load(Arrays.asList(100, 100, 100, 100), Collections.nCopies(10, 100));
+			}
+			System.out.println(String.format("  %,d pops in %,d runs per slot", factory.getStock(0), loads));
+			measure("fork", "loads=" + loads, 10000, new Operation() {
+				@Override
+				void run(int i) {
+					factory.fork();
+				}
+			});
+			measure("fork-snapshot", "loads=" + loads, loads < 10000 ? 1000 : 10, new Operation() {
+				@Override
+				void run(int i) {
+					try {
+						ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+						MachineSnapshot.write(factory, new DataOutputStream(bytes));
+						MachineSnapshot.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), new VendingMachineFactory());
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			});
+		}
+
+		VendingMachineFactory factory = new VendingMachineFactory();
+		factory.construct(Arrays.asList(5, 10, 25, 100), 10);
+		factory.configure(names, prices);
+		factory.load(Arrays.asList(20, 20, 20, 20), Collections.nCopies(10, 30));
+		FleetSimulator.Workload workload = new FleetSimulator.Workload();
+		workload.setRestock(0, 0, 0);
+		FleetSimulator simulator = new FleetSimulator(workload);
+		int threads = Runtime.getRuntime().availableProcessors();
+		long[] samples = new long[MEASURED_ROUNDS];
+		FleetSimulator.Report report = null;
+		for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+			report = simulator.whatIf(factory, 1000, 1000, threads);
+			if (round >= WARMUP_ROUNDS) {
+				samples[round - WARMUP_ROUNDS] = (long) report.getThroughput();
+			}
+		}
+		System.out.println(String.format("  what-if, 1000 forks of 1000 transactions on %d threads", threads));
+		System.out.println("    what-if      " + record("what-if", "forks=1000", samples, "transactions/s"));
+		System.out.println(String.format("    sell-out rate %.4f  no-change rate %.4f  %.1f pops left", report.getSellOutRate(),
+				report.getNoChangeRate(), report.getPopsLeft()));
+	}
+
+	/**
+	 * Machines brought up per second, as when a simulation starts tens of
+	 * thousands of them, by machine shape: constructing them with the same
+	 * coin kinds, which share their change tables, or with coin kinds that
+	 * differ from the last machine's, which build their own; and forking a
+	 * configured and loaded template. Every machine is kept until the round
+	 * ends. Then the time from a new factory to its first pop vended.
+	 */
+	static void startup() {
+		System.out.println("startup: machines per second by machine shape, and ns from a new factory to its first vend");
+		int[][] shapes = { { 10, 4 }, { 100, 10 }, { 1000, 50 } };
+		for (int[] shape : shapes) {
+			final int buttons = shape[0];
+			final int kinds = shape[1];
+			String params = "buttons=" + buttons + " kinds=" + kinds;
+			System.out.println("  " + params);
+			final List<Integer> coinKinds = new ArrayList<Integer>();
+			final List<Integer> otherCoinKinds = new ArrayList<Integer>();
+			final List<Integer> coinCounts = new ArrayList<Integer>();
+			for (int i = 0; i < kinds; i++) {
+				coinKinds.add(5 * (i + 1));
+				otherCoinKinds.add(5 * (i + 1) + (i == kinds - 1 ? 1 : 0));
+				coinCounts.add(100);
+			}
+			final List<String> names = new ArrayList<String>();
+			final List<Integer> prices = new ArrayList<Integer>();
+			final List<Integer> popCounts = new ArrayList<Integer>();
+			for (int i = 0; i < buttons; i++) {
+				names.add("pop" + i);
+				prices.add(5 * (i % 40 + 10));
+				popCounts.add(10);
+			}
+			final int largest = coinKinds.get(kinds - 1);
+			final int machines = 100000 / buttons;
+			final VendingMachineFactory[] kept = new VendingMachineFactory[machines];
+			bringUp("construct", params, kept, new Operation() {
+				@Override
+				void run(int i) {
+					kept[i] = new VendingMachineFactory();
+					kept[i].construct(coinKinds, buttons);
+				}
+			});
+			bringUp("construct-new", params, kept, new Operation() {
+				@Override
+				void run(int i) {
+					kept[i] = new VendingMachineFactory();
+					kept[i].construct((i & 1) == 0 ? coinKinds : otherCoinKinds, buttons);	//Never the last machine's tables
+				}
+			});
+			final VendingMachineFactory template = new VendingMachineFactory();
+			template.construct(coinKinds, buttons);
+			template.configure(names, prices);
+			template.load(coinCounts, popCounts);
+			bringUp("template", params, kept, new Operation() {
+				@Override
+				void run(int i) {
+					kept[i] = template.fork();
+				}
+			});
+			measure("first-vend", params, machines, new Operation() {
+				@Override
+				void run(int i) {
+					VendingMachineFactory factory = new VendingMachineFactory();
+					factory.construct(coinKinds, buttons);
+					factory.configure(names, prices);
+					factory.load(coinCounts, popCounts);
+					for (int paid = 0; paid < 250; paid += largest) {
+						factory.insert(largest);
+					}
+					factory.press(i % buttons);
+					if (factory.extract().runs() != 1) {
+						throw new IllegalStateException("No pop was vended.");
+					}
+				}
+			});
+			Arrays.fill(kept, null);
+		}
+	}
+
+	/**
+	 * Times bringing up one machine per element of an array, keeping each
+	 * until the round is over.
+	 */
+	private static void bringUp(String benchmark, String params, VendingMachineFactory[] kept, Operation operation) {
+		long[] samples = new long[MEASURED_ROUNDS];
+		for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+			Arrays.fill(kept, null);
+			long start = System.nanoTime();
+			for (int i = 0; i < kept.length; i++) {
+				operation.run(i);
+			}
+			if (round >= WARMUP_ROUNDS) {
+				samples[round - WARMUP_ROUNDS] = (long) (kept.length / ((System.nanoTime() - start) / 1e9));
+			}
+		}
+		System.out.println(String.format("    %-12s %s machines/s", benchmark, record(benchmark, params, samples, "machines/s")));
+	}
+
+	/**
+	 * The cost of journaling a purchase, with forces every 10 ms or 64 KB,
+	 * and the time to recover a machine from a journal of 10 million
+	 * operations.
+	 */
+	static void journaling() throws Exception {
+		System.out.println("journal: ns per purchase with journaling off and on, and recovery time");
+		final Path directory = Files.createTempDirectory("journal");
+		Path copy = Files.createTempDirectory("journal-copy");
+		try {
+			for (final boolean journaled : new boolean[] { false, true }) {
+				final VendingMachineFactory factory = new VendingMachineFactory();
+				final MachineJournal[] journal = new MachineJournal[1];
+				measure(journaled ? "journal-on" : "journal-off", "", 1000000, new Operation() {
+					@Override
+					void setUp() {
+						try {
+							if (journal[0] != null) {
+								journal[0].close();
+							}
+							if (journaled) {
+								journal[0] = new MachineJournal(directory, factory, 10, TimeUnit.MILLISECONDS, 1 << 16);
+							}
+						} catch (IOException e) {
+							throw new IllegalStateException(e);
+						}
+						factory.construct(Arrays.asList(5, 10, 25, 100), 3);
+						factory.configure(Arrays.asList("Coke", "water", "stuff"), Arrays.asList(250, 250, 205));
+						factory.load(Arrays.asList(1000000, 1000000, 1000000, 0), Arrays.asList(1000000, 1000000, 1000000));
+					}
+
+					@Override
+					void run(int i) {
+						factory.insert(100);
+						factory.insert(100);
+						factory.insert(100);
+						factory.press(i % 3);
+						if ((i & 1023) == 1023) {
+							factory.extract();
+						}
+					}
+				});
+				if (journal[0] != null) {
+					journal[0].close();
+				}
+			}
+
+			deleteFiles(directory);
+			VendingMachineFactory factory = new VendingMachineFactory();
+			MachineJournal journal = new MachineJournal(directory, factory, 0, TimeUnit.MILLISECONDS, 1 << 20);
+			factory.construct(Arrays.asList(5, 10, 25, 100), 3);
+			factory.configure(Arrays.asList("Coke", "water", "stuff"), Arrays.asList(250, 250, 205));
+			factory.load(Arrays.asList(2500000, 2500000, 2500000, 0), Arrays.asList(2500000, 2500000, 2500000));
+			for (int i = 0; i < 2500000; i++) {
+				factory.insert(100);
+				factory.insert(100);
+				factory.insert(100);
+				factory.press(i % 3);
+			}
+			journal.close();
+			long bytes = 0;
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+				for (Path file : files) {
+					bytes += Files.size(file);
+				}
+			}
+			long[] samples = new long[MEASURED_ROUNDS];
+			for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+				deleteFiles(copy);
+				try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+					for (Path file : files) {
+						Files.copy(file, copy.resolve(file.getFileName()));
+					}
+				}
+				long start = System.nanoTime();
+				new MachineJournal(copy, new VendingMachineFactory(), 0, TimeUnit.MILLISECONDS, 1 << 20).close();
+				if (round >= WARMUP_ROUNDS) {
+					samples[round - WARMUP_ROUNDS] = (System.nanoTime() - start) / 1000000;
+				}
+			}
+			System.out.println(String.format("  recovery of 10,000,003 operations, %,d bytes", bytes));
+			System.out.println("  recovery     " + record("journal-recovery", "operations=10000003", samples, "ms"));
+		} finally {
+			deleteFiles(directory);
+			deleteFiles(copy);
+			Files.delete(directory);
+			Files.delete(copy);
+		}
+	}
+
+	private static void deleteFiles(Path directory) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+	}
+
+	/**
+	 * Writes a good-script style workload with the given number of purchases.
+	 */
+	static void writeScript(Path script, int purchases) throws IOException {
+		try (BufferedWriter out = Files.newBufferedWriter(script, Charset.forName("UTF-8"))) {
+			out.write("construct(5, 10, 25, 100; 3)\n");
+			out.write("configure(\"Coke\", \"water\", \"stuff\"; 250, 250, 205)\n");
+			out.write("load(" + purchases + ", " + purchases + ", " + 3 * purchases + ", 0; " + purchases + ", " + purchases + ", " + purchases + ")\n");
+			String[] names = { "\"Coke\"", "\"water\"", "\"stuff\"" };
+			for (int i = 0; i < purchases; i++) {
+				int button = i % 3;
+				out.write("insert(100)\ninsert(100)\ninsert(100) // three dollars\n");
+				out.write("press(" + button + ")\nextract()\n");
+				out.write("CHECK_DELIVERY(" + (button == 2 ? 95 : 50) + ", " + names[button] + ")\n");
+			}
+		}
+	}
+
+	private static void collect(List<Object> items, int id, AtomicLongArray coins, AtomicLongArray pops) {
+		for (Object item : items) {
+			if (item instanceof Integer) {
+				coins.addAndGet(id, (Integer) item);
+			} else {
+				pops.incrementAndGet(id);
+			}
+		}
+	}
+
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Records the median of the samples as a score.
+	 * 
+	 * @return a summary of the samples
+	 */
+	static String record(String benchmark, String params, long[] samples, String unit) {
+		long[] sorted = samples.clone();
+		Arrays.sort(sorted);
+		scores.add(new Score(benchmark, params, sorted[sorted.length / 2], unit));
+		return summary(samples);
+	}
+
+	static void writeScores(Path file) throws IOException {
+		try (BufferedWriter out = Files.newBufferedWriter(file, Charset.forName("UTF-8"))) {
+			out.write("[\n");
+			for (int i = 0; i < scores.size(); i++) {
+				Score score = scores.get(i);
+				out.write(String.format("  {\"benchmark\": \"%s\", \"params\": \"%s\", \"score\": %s, \"unit\": \"%s\"}%s\n", score.benchmark,
+						score.params, Double.toString(score.value), score.unit, i + 1 < scores.size() ? "," : ""));
+			}
+			out.write("]\n");
+		}
+	}
+
+	/**
+	 * Compares the recorded scores with those in a file written by
+	 * {@link #writeScores(Path)}, printing every regression.
+	 * 
+	 * @return whether no score is worse than its baseline by more than the
+	 *         threshold percentage
+	 */
+	static boolean compareWithBaseline(Path file, double threshold) throws IOException {
+		Map<String, Score> baseline = new HashMap<String, Score>();
+		for (String line : Files.readAllLines(file, Charset.forName("UTF-8"))) {
+			Matcher matcher = SCORE_LINE.matcher(line);
+			if (matcher.find()) {
+				Score score = new Score(matcher.group(1), matcher.group(2), Double.parseDouble(matcher.group(3)), matcher.group(4));
+				baseline.put(score.key(), score);
+			}
+		}
+		if (baseline.isEmpty()) {
+			System.out.println("MISSING every score: " + file + " has none to compare with");
+			return false;
+		}
+		boolean passed = true;
+		Map<String, Score> current = new HashMap<String, Score>();
+		for (Score score : scores) {
+			current.put(score.key(), score);
+		}
+		for (String key : baseline.keySet()) {
+			if (!current.containsKey(key)) {
+				System.out.println("MISSING " + key + ": in the baseline but not recorded by this run");
+				passed = false;
+			}
+		}
+		for (Score score : scores) {
+			Score base = baseline.get(score.key());
+			if (base == null || base.value == 0 || !base.unit.equals(score.unit)) {
+				continue;
+			}
+			double change = (score.value - base.value) / base.value * 100;
+			if (score.higherIsBetter() ? -change > threshold : change > threshold) {
+				System.out.println(String.format("REGRESSION %s: %s %s against %s (%+.1f%%)", score.key(), score.value, score.unit,
+						base.value, change));
+				passed = false;
+			}
+		}
+		return passed;
+	}
+
+	static String summary(long[] samples) {
+		long[] sorted = samples.clone();
+		Arrays.sort(sorted);
+		return String.format("median %6d  min %6d  max %6d", sorted[sorted.length / 2], sorted[0], sorted[sorted.length - 1]);
+	}
+}
@@ -1,11 +1,9 @@
 package ca.ucalgary.seng301.myvendingmachine;
 
 import java.io.FileNotFoundException;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 
-import ca.ucalgary.seng301.vendingmachine.Coin;
 import ca.ucalgary.seng301.vendingmachine.Driver;
 import ca.ucalgary.seng301.vendingmachine.IVendingMachineFactory;
 import ca.ucalgary.seng301.vendingmachine.Pop;
@@ -429,6 +427,11 @@ import ca.ucalgary.seng301.vendingmachine.parser.ParseException;
 public class VendingMachineFactory implements IVendingMachineFactory { 
     
 	VendingMachine vendingMachine;  
+	int changeTableCeiling = ChangeMaker.DEFAULT_TABLE_CEILING;
+	FactoryMetrics metrics = FactoryMetrics.DISABLED;
+	MachineJournal journal;																	//Set while a journal is attached
+	boolean checkingTotals = VendingMachineFactory.class.desiredAssertionStatus();			//Recount the totals after every operation
+	boolean refusingSalesWithoutChange = false;												//Refuse a press whose change cannot be paid
 	
 	public static void main(String[] args) throws ParseException, FileNotFoundException {
 	// Vending Machine
@@ -437,25 +440,44 @@ public class VendingMachineFactory implements IVendingMachineFactory {
 	new VendingMachineFactory("bad-script2");
     }
 
+    /**
+     * Creates a factory without running a script, for driving the vending
+     * machine directly.
+     */
+    public VendingMachineFactory() {
+    }
+
     public VendingMachineFactory(String path) throws ParseException, FileNotFoundException {
 	// Don't change this, unless you want to turn off debug mode, in which
 	// case, replace "true" with "false"
 	new Driver(path, this, true);
     }
 
+    /**
+     * @return the contents of the delivery chute, which stay as they are
+     *         until the next extract() empties the chute for reuse
+     */
     @Override
-    public List<Object> extract() {
-    	
-    	List<Object> unloadedItems = new ArrayList<Object>();
-    	for (Coin coin : vendingMachine.change) { 
-    		unloadedItems.add(coin.getValue()); 																//Extract coins from the delivery chute
-    	}  
-    	vendingMachine.change.clear();
-    	
-    	for (Pop purchasedPop : vendingMachine.unextractedPop) { 
-    		unloadedItems.add(purchasedPop);														//Extract pop from the delivery chute 
+    public DeliveryChute extract() {
+    	long start = metrics.enabled ? System.nanoTime() : 0L;
+    	DeliveryChute unloadedItems = vendingMachine.deliveryChute; 								//Extract everything in the delivery chute at once
+    	DeliveryChute emptyChute = vendingMachine.spareChute;
+    	if (emptyChute == null) {
+    		emptyChute = new DeliveryChute(vendingMachine.coinValues);
+    	} else {
+    		emptyChute.empty();																	//Recycle the chute handed over last time
+    	}
+    	vendingMachine.deliveryChute = emptyChute;													//Replace it with an empty delivery chute
+    	vendingMachine.spareChute = unloadedItems;
+    	if (journal != null) {
+    		journal.extract();
+    	}
+    	if (metrics.enabled) {
+    		metrics.time(FactoryMetrics.Operation.EXTRACT, start);
+    	}
+    	if (checkingTotals) {
+    		verifyTotals();
     	}
-    	vendingMachine.unextractedPop.clear();   													//Clear pop from the delivery chute
     	return unloadedItems;    	
     }
 
@@ -465,14 +487,36 @@ public class VendingMachineFactory implements IVendingMachineFactory {
     		throw new IllegalArgumentException("The coin must have a positive value."); 
     	} 
     	
-		Coin paymentCoin = new Coin(value);
-    	if (vendingMachine.coinDenominations.contains(value)) { 
+    	long start = metrics.enabled ? System.nanoTime() : 0L;
+    	int coinKind = deposit(value);
+    	if (journal != null) {
+    		journal.insert(value);
+    	}
+    	if (metrics.enabled) {
+    		metrics.count(coinKind >= 0 ? FactoryMetrics.Event.COIN_ACCEPTED : FactoryMetrics.Event.COIN_REJECTED);
+    		metrics.time(FactoryMetrics.Operation.INSERT, start);
+    	}
+    	if (checkingTotals) {
+    		verifyTotals();
+    	}
+    }
+
+    /**
+     * Takes a coin of any value as payment, or puts it into the delivery chute
+     * if it is not a valid kind.
+     *
+     * @return the coin kind, or -1 if it was rejected
+     */
+    private int deposit(int value) {
+    	int coinKind = vendingMachine.coinKindIndex.kindOf(value);
+    	if (coinKind >= 0) { 
     		vendingMachine.currentPaymentCredit += value;											//Increase current payments
     		vendingMachine.totalPayments += value;													//Increase total payments to the machine
-    		vendingMachine.loadedCoins.add(paymentCoin); 		    								//See if coin kind is value, load the machine if it is
+    		vendingMachine.loadedCoins[coinKind]++;													//See if coin kind is value, load the machine if it is
     	} else { 
-    		vendingMachine.change.add(paymentCoin);													//Put coin into the delivery chute if it is not a valid kind
+    		vendingMachine.deliveryChute.reject(value);												//Put coin into the delivery chute if it is not a valid kind
     	}
+    	return coinKind;
     }
 
     @Override
@@ -481,71 +525,364 @@ public class VendingMachineFactory implements IVendingMachineFactory {
     		throw new IllegalArgumentException("A choice within the range of the selection buttons must be chosen.");
     	} 
     	    	
-    	int price = vendingMachine.selectionButtons.get(value).getPrice(); 
-    	if (vendingMachine.popDispenser.get(value).isEmpty()) { 
-    		//Do nothing
+    	long start = metrics.enabled ? System.nanoTime() : 0L;
+    	FactoryMetrics.Event outcome = vend(value);
+    	if (journal != null) {
+    		journal.press(value);
+    	}
+    	if (metrics.enabled) {
+    		metrics.count(outcome);
+    		metrics.time(FactoryMetrics.Operation.PRESS, start);
+    	}
+    	if (checkingTotals) {
+    		verifyTotals();
+    	}
+    }
+
+    /**
+     * Vends a pop from a slot if there is credit enough to pay for it.
+     *
+     * @return the outcome of the press
+     */
+    private FactoryMetrics.Event vend(int value) {
+    	int price = vendingMachine.priceTable.prices[value];									//Price from the current configuration
+    	FactoryMetrics.Event outcome = FactoryMetrics.Event.PRESS_INSUFFICIENT_CREDIT;
+    	if (vendingMachine.stock[value] == 0) {
+    		outcome = FactoryMetrics.Event.PRESS_SOLD_OUT;											//Do nothing
+    	} else if (refusingSalesWithoutChange && vendingMachine.currentPaymentCredit >= price
+    			&& !canMakeChange(vendingMachine.currentPaymentCredit - price)) {
+    		outcome = FactoryMetrics.Event.PRESS_NO_CHANGE;										//Do nothing, the credit is kept
     	} else if (vendingMachine.currentPaymentCredit >= price) {																		
-    		vendingMachine.popDispenser.get(value).remove(0); 										//Remove the chosen pop from its pop array
-    		Pop purchasedPop = new Pop(vendingMachine.selectionButtons.get(value).getName());  	
-    		vendingMachine.unextractedPop.add(purchasedPop);										//Add selected pop to delivery chute
+    		vendingMachine.popDispenser[value].take();  											//Remove the oldest pop from the chosen slot
+    		Pop purchasedPop = vendingMachine.popOf(value);											//Vended under the button's current name
+    		vendingMachine.stock[value]--;
+    		vendingMachine.popCount--;
+    		vendingMachine.deliveryChute.pops.put(purchasedPop, 1);									//Add selected pop to delivery chute
     		
-    		/*//Store payment into coin dispenser
-    		for (Coin paymentCoins : vendingMachine.loadedCoins) { 
-        		int coinIndex = vendingMachine.coinDenominations.indexOf(paymentCoins.getValue()); 	//Find index for coin
-        		vendingMachine.coinDispenser.get(coinIndex).add(paymentCoins);						//Puts coin into its proper array
-        	} 
-        	vendingMachine.loadedCoins.clear();  */
+    		//Payment coins stay in loadedCoins and are never paid out as change
         	
         	vendingMachine.currentPaymentCredit = vendingMachine.currentPaymentCredit - price; 		//Calculate change
         	makeChange(vendingMachine.currentPaymentCredit); 										//Make change and put it into the delivery chute
+        	outcome = FactoryMetrics.Event.POP_VENDED;
     	}     	
+    	return outcome;
     }
 
-    public void makeChange(int amount) {      														//TODO: Make change only does sorted coin kinds
-    	//Start at highest coin value and obtain change from coin kinds of descending value
-    	for (int i = vendingMachine.coinDispenser.size() - 1; i >= 0; i--) { 							
-    		ArrayList<Coin> coinKind = vendingMachine.coinDispenser.get(i);  
-    		while (!coinKind.isEmpty() && amount >= vendingMachine.coinDenominations.get(i)) {  	//Loop while there are still coins and the amount is more than or equal to the coin value
-    			amount -= vendingMachine.coinDenominations.get(i);  
-    			coinKind.remove(0); 																//Shrinks the coin kind array by first element
-    			Coin coinForChange = new Coin(vendingMachine.coinDenominations.get(i)); 
-    			vendingMachine.change.add(coinForChange);											//Add change to change array
-    		} 
+    /**
+     * Inserts coins and presses a button as one transaction, with the same
+     * effect as calling {@link #insert(int)} for each coin and then
+     * {@link #press(int)}.
+     *
+     * @param results
+     *            receives the outcome of the transaction; its previous
+     *            contents are discarded
+     */
+    public void purchase(int[] coins, int button, TransactionResults results) {
+    	if (button < 0 || button >= vendingMachine.selectionButtonCount) {
+    		throw new IllegalArgumentException("A choice within the range of the selection buttons must be chosen.");
+    	}
+    	for (int coin : coins) {
+    		if (coin <= 0) {
+    			throw new IllegalArgumentException("The coin must have a positive value.");
+    		}
+    	}
+
+    	long start = metrics.enabled ? System.nanoTime() : 0L;
+    	results.reset(1, vendingMachine.coinValues.length);
+    	transact(coins, 0, coins.length, button, results, 0);
+    	if (metrics.enabled) {
+    		metrics.time(FactoryMetrics.Operation.PURCHASE, start);
+    	}
+    	if (checkingTotals) {
+    		verifyTotals();
+    	}
+    }
+
+    /**
+     * Carries out a batch of transactions, each a sequence of coins and a
+     * button press, with the same effect as carrying them out one at a time
+     * with {@link #purchase(int[], int, TransactionResults)}. The whole batch
+     * is validated first, so an invalid batch has no effect at all.
+     *
+     * @param coins
+     *            the coins of every transaction, one after another
+     * @param coinOffsets
+     *            the index in coins of the first coin of each transaction,
+     *            followed by the end of the last transaction's coins
+     * @param buttons
+     *            the button pressed by each transaction
+     * @param count
+     *            the number of transactions
+     * @param results
+     *            receives the outcome of each transaction; its previous
+     *            contents are discarded
+     */
+    public void purchase(int[] coins, int[] coinOffsets, int[] buttons, int count, TransactionResults results) {
+    	if (count < 0 || count > buttons.length || count >= coinOffsets.length) {
+    		throw new IllegalArgumentException("The batch must have a button and coin offsets for each transaction.");
+    	}
+    	if (coinOffsets[0] < 0 || coinOffsets[count] > coins.length) {
+    		throw new IllegalArgumentException("The coin offsets must be within the coins.");
+    	}
+    	for (int t = 0; t < count; t++) {
+    		if (coinOffsets[t] > coinOffsets[t + 1]) {
+    			throw new IllegalArgumentException("The coin offsets cannot decrease.");
+    		}
+    		if (buttons[t] < 0 || buttons[t] >= vendingMachine.selectionButtonCount) {
+    			throw new IllegalArgumentException("A choice within the range of the selection buttons must be chosen.");
+    		}
+    	}
+    	for (int i = coinOffsets[0]; i < coinOffsets[count]; i++) {
+    		if (coins[i] <= 0) {
+    			throw new IllegalArgumentException("The coin must have a positive value.");
+    		}
+    	}
+
+    	long start = metrics.enabled ? System.nanoTime() : 0L;
+    	results.reset(count, vendingMachine.coinValues.length);
+    	for (int t = 0; t < count; t++) {
+    		transact(coins, coinOffsets[t], coinOffsets[t + 1], buttons[t], results, t);
+    	}
+    	if (metrics.enabled) {
+    		metrics.time(FactoryMetrics.Operation.PURCHASE, start);
+    	}
+    	if (checkingTotals) {
+    		verifyTotals();
+    	}
+    }
+
+    /**
+     * Carries out one validated transaction and records its outcome.
+     */
+    private void transact(int[] coins, int from, int to, int button, TransactionResults results, int transaction) {
+    	for (int i = from; i < to; i++) {
+    		int coinKind = deposit(coins[i]);
+    		if (journal != null) {
+    			journal.insert(coins[i]);
+    		}
+    		if (metrics.enabled) {
+    			metrics.count(coinKind >= 0 ? FactoryMetrics.Event.COIN_ACCEPTED : FactoryMetrics.Event.COIN_REJECTED);
+    		}
+    	}
+    	int shortfall = vendingMachine.changeShortfall;
+    	FactoryMetrics.Event outcome = vend(button);
+    	if (outcome == FactoryMetrics.Event.POP_VENDED) {
+    		results.vended(transaction, button, vendingMachine.changeTaken, vendingMachine.changeShortfall - shortfall);
+    	}
+    	if (journal != null) {
+    		journal.press(button);
+    	}
+    	if (metrics.enabled) {
+    		metrics.count(outcome);
+    	}
+    }
+
+    /**
+     * Pays change from the coin dispenser into the delivery chute, using the
+     * fewest coins possible. If the exact amount cannot be paid, as much of it
+     * as possible is paid and the rest is recorded as a change shortfall.
+     */
+    public void makeChange(int amount) {      														
+    	int[] taken = vendingMachine.changeTaken;
+    	int paid = vendingMachine.changeMaker.makeChange(amount, vendingMachine.coinDispenser, taken);
+    	for (int i = 0; i < taken.length; i++) { 							
+    		vendingMachine.coinDispenser[i] -= taken[i]; 										//Shrinks the coin kind count
+    		vendingMachine.deliveryChute.change[i] += taken[i];									//Add change to the delivery chute
     	} 
+    	vendingMachine.changeValue -= paid;
+    	if (paid > 0) {
+    		vendingMachine.changeAvailability.invalidate();
+    	}
+    	if (amount > paid) { 
+    		vendingMachine.changeShortfall += amount - paid;										//Change owed that could not be paid
+    		if (metrics.enabled) {
+    			metrics.count(FactoryMetrics.Event.CHANGE_SHORTFALL);
+    			metrics.count(FactoryMetrics.Event.CHANGE_SHORTFALL_VALUE, amount - paid);
+    		}
+    	}
     	vendingMachine.currentPaymentCredit = 0; 													//Clear value of current payments
     }
     
+    /**
+     * @return whether the coins currently loaded can pay the given amount of
+     *         change exactly
+     */
+    public boolean canMakeChange(int amount) {
+    	if (amount <= vendingMachine.changeAvailability.getLimit()) {
+    		return vendingMachine.changeAvailability.canPay(amount, vendingMachine.coinDispenser);
+    	}
+    	return vendingMachine.changeMaker.canMakeChange(amount, vendingMachine.coinDispenser);	//Beyond the tables, the change maker searches
+    }
+
+    /**
+     * @return whether the machine should show "exact change only": some amount
+     *         of change below the largest coin kind, that the coin kinds could
+     *         make, cannot be paid from the coins loaded
+     */
+    public boolean isExactChangeOnly() {
+    	return vendingMachine.changeAvailability.isExactChangeOnly(vendingMachine.coinDispenser);
+    }
+
+    /**
+     * Turns on or off refusing a press whose change cannot be paid exactly.
+     * When on, such a press does nothing, as if the credit were insufficient,
+     * instead of vending and recording a change shortfall. It is off by
+     * default, as the scripts expect; a factory that recovers from a journal
+     * must have the same setting as the one that wrote it.
+     */
+    public void setRefusingSalesWithoutChange(boolean refusingSalesWithoutChange) {
+    	this.refusingSalesWithoutChange = refusingSalesWithoutChange;
+    }
+
+    /**
+     * Sets the largest amount of change that machines constructed afterwards
+     * precompute change tables for, from 0 up to
+     * {@link ChangeMaker#MAX_TABLE_CEILING}. Change above the ceiling is
+     * still exact, but greedy change is only trusted there for canonical coin
+     * kinds; for others it takes a search in proportion to the amount.
+     */
+    public void setChangeTableCeiling(int changeTableCeiling) {
+    	if (changeTableCeiling < 0 || changeTableCeiling > ChangeMaker.MAX_TABLE_CEILING) {
+    		throw new IllegalArgumentException("The change table ceiling must be between 0 and " + ChangeMaker.MAX_TABLE_CEILING + ".");
+    	}
+    	this.changeTableCeiling = changeTableCeiling;
+    }
+
+    /**
+     * Sets the metrics that this factory's operations are recorded in.
+     * {@link FactoryMetrics#DISABLED} turns recording off.
+     */
+    public void setMetrics(FactoryMetrics metrics) {
+    	if (metrics == null) {
+    		throw new IllegalArgumentException("metrics cannot be null.");
+    	}
+    	this.metrics = metrics;
+    }
+
+    public FactoryMetrics getMetrics() {
+    	return metrics;
+    }
+
+    /**
+     * @return the total value of the coins available for change
+     */
+    public int getChangeValue() {
+    	return vendingMachine.changeValue;
+    }
+
+    /**
+     * @return the total value of the payment coins taken since the machine was
+     *         constructed, which unload() reports but does not reset
+     */
+    public int getPaymentValue() {
+    	return vendingMachine.totalPayments;
+    }
+
+    /**
+     * @return the number of pops left in every slot together
+     */
+    public int getPopCount() {
+    	return vendingMachine.popCount;
+    }
+
+    /**
+     * @return the number of pops left in a slot
+     */
+    public int getStock(int slot) {
+    	return vendingMachine.stock[slot];
+    }
+
+    /**
+     * Turns on or off recounting the coins and pops after every operation and
+     * comparing them with the running totals. This is on by default when
+     * assertions are enabled.
+     */
+    public void setCheckingTotals(boolean checkingTotals) {
+    	this.checkingTotals = checkingTotals;
+    }
+
+    /**
+     * Recounts the coins and pops in the machine from scratch and compares
+     * them with the running totals that operations keep.
+     *
+     * @throws IllegalStateException
+     *             if any running total differs from its recount
+     */
+    public void verifyTotals() {
+    	int changeValue = 0;
+    	int paymentValue = 0;
+    	for (int i = 0; i < vendingMachine.coinValues.length; i++) {
+    		changeValue += vendingMachine.coinDispenser[i] * vendingMachine.coinValues[i];
+    		paymentValue += vendingMachine.loadedCoins[i] * vendingMachine.coinValues[i];
+    	}
+    	int popCount = 0;
+    	for (int i = 0; i < vendingMachine.selectionButtonCount; i++) {
+    		int size = vendingMachine.slotSize(i);
+    		if (vendingMachine.stock[i] != size) {
+    			throw new IllegalStateException("Slot " + i + " holds " + size + " pops but its stock is " + vendingMachine.stock[i] + ".");
+    		}
+    		popCount += size;
+    	}
+    	if (vendingMachine.changeValue != changeValue) {
+    		throw new IllegalStateException("The change coins are worth " + changeValue + " but their total is " + vendingMachine.changeValue + ".");
+    	}
+    	if (vendingMachine.totalPayments != paymentValue) {
+    		throw new IllegalStateException("The payment coins are worth " + paymentValue + " but their total is " + vendingMachine.totalPayments + ".");
+    	}
+    	if (vendingMachine.popCount != popCount) {
+    		throw new IllegalStateException("The slots hold " + popCount + " pops but their total is " + vendingMachine.popCount + ".");
+    	}
+    }
+
+    /**
+     * Forks the machine: the factory returned has a machine in the same state
+     * as this one, which changes independently of it, for trying out what
+     * would happen to this machine without changing it. The inventory is
+     * copied on write, so forking costs O(coin kinds + selection buttons)
+     * however much is loaded, and forks can be operated in parallel with each
+     * other. The fork has the same settings, but no metrics and no journal.
+     */
+    public VendingMachineFactory fork() {
+    	VendingMachineFactory fork = new VendingMachineFactory();
+    	fork.vendingMachine = new VendingMachine(vendingMachine);
+    	fork.changeTableCeiling = changeTableCeiling;
+    	fork.checkingTotals = checkingTotals;
+    	fork.refusingSalesWithoutChange = refusingSalesWithoutChange;
+    	return fork;
+    }
+
+    /**
+     * @return the current prices and pop names; this can be read while other
+     *         threads operate the machine, and reflects whole configurations
+     */
+    public PriceTable getPriceTable() {
+    	return vendingMachine.priceTable;
+    }
+    
     @Override
     public void construct(List<Integer> coinKinds, int selectionButtonCount) {
-    	vendingMachine = new VendingMachine(selectionButtonCount);
-    	
+    	long start = metrics.enabled ? System.nanoTime() : 0L;
     	if (selectionButtonCount <= 0) { 
     		throw new IllegalArgumentException("The selection button count must be positive.");
     	} 
     	
-    	for (int coinKind : coinKinds) {  
-    		if (coinKind <= 0) { 
-    			throw new IllegalArgumentException("The coin kind must have a positive value.");
-    		} 
-    		if (Collections.frequency(coinKinds, coinKind) > 1) { 
-    			throw new IllegalStateException(coinKind + " is a duplicate value. You cannot have duplicate coin kinds.");
-    		} 
-    		vendingMachine.coinDenominations.add(coinKind);  
-    		ArrayList<Coin> coinTote = new ArrayList<Coin>();
-			vendingMachine.coinDispenser.add(coinTote);
-    	}   
-    	
-    	for (int i=0; i < selectionButtonCount; i++) { 
-    		SelectionButton selectionButton = new SelectionButton(); 
-    		vendingMachine.selectionButtons.add(selectionButton); 
-    		ArrayList<Pop> popTote = new ArrayList<Pop>(); 
-    		vendingMachine.popDispenser.add(popTote);
+    	//Coin kinds and change tables, shared with the last machine built for the same coin kinds
+    	CoinTables tables = CoinTables.of(coinKinds, changeTableCeiling);
+    	vendingMachine = new VendingMachine(tables, selectionButtonCount);						//Buttons and slots are made on first use
+    	if (journal != null) {
+    		journal.construct(coinKinds, selectionButtonCount);
+    	}
+    	if (metrics.enabled) {
+    		metrics.time(FactoryMetrics.Operation.CONSTRUCT, start);
+    	}
+    	if (checkingTotals) {
+    		verifyTotals();
     	}
     }
 
     @Override
     public void configure(List<String> popNames, List<Integer> popCosts) {
-    	
+    	long start = metrics.enabled ? System.nanoTime() : 0L;
     	if (popNames == null || popCosts == null) { 
     		throw new IllegalArgumentException("popNames and popCosts cannot be null.");
     	}
@@ -556,76 +893,129 @@ public class VendingMachineFactory implements IVendingMachineFactory {
     		throw new IllegalArgumentException("The number of pop names and number of pop costs must equal to the number of selection buttons.");
     	}  
  
-    	//Iterate through every selection button and set the pop name and pop cost
-    	for (int i=0; i < vendingMachine.selectionButtonCount; i++) {	 
-    		if (popCosts.get(i) <= 0) { 
+    	for (int popCost : popCosts) {
+    		if (popCost <= 0) {
     			throw new IllegalArgumentException("popCosts must be a positive integer.");
     		}  
+    	}
     		
+    	//Iterate through every selection button and set the pop name and pop cost
+    	for (int i=0; i < vendingMachine.selectionButtonCount; i++) {	 
     		//Set selection button name and create pop
-    		vendingMachine.selectionButtons.get(i).setName(popNames.get(i)); 	 
+    		vendingMachine.button(i).setName(popNames.get(i));
     		
     		//Set price for the pop on the selection button
-    		vendingMachine.selectionButtons.get(i).setPrice(popCosts.get(i));		
+    		vendingMachine.button(i).setPrice(popCosts.get(i));		
+    	}
+
+    	//Swap in the prices for press to use
+    	vendingMachine.priceTable = new PriceTable(vendingMachine.priceTable.getVersion() + 1, popNames, popCosts);
+    	if (journal != null) {
+    		journal.configure(popNames, popCosts);
+    	}
+    	if (metrics.enabled) {
+    		metrics.time(FactoryMetrics.Operation.CONFIGURE, start);
+    	}
+    	if (checkingTotals) {
+    		verifyTotals();
     	}
     }
 
     @Override
     public void load(List<Integer> coinCounts, List<Integer> popCounts) {
-    		
+    		long start = metrics.enabled ? System.nanoTime() : 0L;
     		if (coinCounts == null || popCounts == null) { 
     			throw new NullPointerException("coinCounts and popCounts cannot be null.");
     		}
-    		if (coinCounts.size() != vendingMachine.coinDispenser.size()) { 
+    		if (coinCounts.size() != vendingMachine.coinDispenser.length) { 
     			throw new IllegalArgumentException("The number of coinCounts must equal the number of coinKinds.");
     		} 
     		if (popCounts.size() != vendingMachine.selectionButtonCount) { 
     			throw new IllegalArgumentException("The number of popCounts must equal the selectionButtonCount.");
     		}
+
+    		//Check every count before loading any, so a refused load changes nothing
+    		for (Integer coinCount : coinCounts) {
+    			if (coinCount == null || coinCount < 0) {
+    				throw new IllegalArgumentException("coinCounts must be non-negative integers.");
+    			}
+    		}
+    		for (Integer popCount : popCounts) {
+    			if (popCount == null || popCount < 0) {
+    				throw new IllegalArgumentException("popCounts must be non-negative integers.");
+    			}
+    		}
     	
-    		//Set each coin to its associated coin count
+    		//Add each coin count to its associated coin kind
     		for (int i = 0; i < coinCounts.size(); i++) { 
-				int coinValue = vendingMachine.coinDenominations.get(i); 						//Get coin value
-    			for (int j = 1; j <= coinCounts.get(i); j++) {
-    				Coin coin = new Coin(coinValue); 												//Make new coin 
-    				vendingMachine.coinDispenser.get(i).add(coin); //Add coin to appropriate coin value 
-    			}
+    			vendingMachine.coinDispenser[i] += coinCounts.get(i); 							//Add coins to appropriate coin value 
+    			vendingMachine.changeValue += coinCounts.get(i) * vendingMachine.coinValues[i];
+    			vendingMachine.changeAvailability.added(i, coinCounts.get(i));
     		} 
     		
-    		//Set each pop to its associated pop count
+    		//Add each pop count to its associated slot
     		for (int i=0; i < popCounts.size(); i++){  
-    			String popName = vendingMachine.selectionButtons.get(i).getName(); 				//Get pop name 
-    			for (int j= 1; j <= popCounts.get(j); j++) {
-    				Pop pop = new Pop(popName); 													//Make new pop
-    				vendingMachine.popDispenser.get(i).add(pop);									//Add pop to appropriate slot
+    			int count = popCounts.get(i);
+    			if (count != 0) {
+    				Pop pop = vendingMachine.popOf(i); 												//Get the pop for the current name
+    				vendingMachine.slot(i).put(pop, count);										//Add pops to appropriate slot
     			}
+    			vendingMachine.stock[i] += popCounts.get(i);
+    			vendingMachine.popCount += popCounts.get(i);
+    		}	
+    		if (journal != null) {
+    			journal.load(coinCounts, popCounts);
+    		}
+    		if (metrics.enabled) {
+    			metrics.time(FactoryMetrics.Operation.LOAD, start);
     		}	
+    		if (checkingTotals) {
+    			verifyTotals();
+    		}
     }
 
     @Override
-    public List<Object> unload() {
+    public UnloadedItems unload() {
+    	long start = metrics.enabled ? System.nanoTime() : 0L;
     	
-    	List<Object> unloadArray = new ArrayList<Object>();
+    	//Take out every coin, using the running totals for their value
+    	int valueOfUnusedCoins = vendingMachine.changeValue;
+    	int valueOfPayments = vendingMachine.totalPayments;
+    	Arrays.fill(vendingMachine.coinDispenser, 0);
+    	vendingMachine.changeValue = 0;
+    	vendingMachine.changeAvailability.invalidate();
     	
-    	//Add the value of unused dispenser coins to the unload array
-    	int valueOfUnusedCoins = 0;
-    	for (ArrayList<Coin> coinKind: vendingMachine.coinDispenser) { 							//Get coin type for coin dispenser
-    		for (Coin coin : coinKind) {		
-    			valueOfUnusedCoins += coin.getValue(); 											//Calculate unused value for the coin   		
-    		} 
-    		coinKind.clear();   																//Clear all items from the coin kind array
-    	}  
-    	unloadArray.add(valueOfUnusedCoins);
-    	
-    	//Add the value of coins payed into the machine
-    	unloadArray.add(vendingMachine.totalPayments);
+    	int runs = 0;
+    	for (FifoDispenser<Pop> popKind : vendingMachine.popDispenser) {
+    		if (popKind != null) {
+    			runs += popKind.runs();
+    		}
+    	}
+    	Pop[] pops = new Pop[runs];
+    	int[] counts = new int[runs];
+    	runs = 0;
     	
-    	for (ArrayList<Pop> popKind : vendingMachine.popDispenser) { 							//TODO: Does this need to include names?
-    		for (Pop pop : popKind) {  
-    			unloadArray.add(pop);
+    	for (FifoDispenser<Pop> popKind : vendingMachine.popDispenser) { 						//TODO: Does this need to include names?
+    		if (popKind == null) {
+    			continue;																		//Never loaded
+    		}
+    		for (int run = 0; run < popKind.runs(); run++) {  									//Oldest pops come out first
+    			pops[runs] = popKind.elementAt(run);
+    			counts[runs++] = popKind.countAt(run);												//Whole runs, not one entry per pop
     		}
-    		popKind.clear();																	//Return every pop instance
+    		popKind.clear();																	//Return every pop in the slot
     	} 
-    	return unloadArray;
+    	Arrays.fill(vendingMachine.stock, 0);
+    	vendingMachine.popCount = 0;
+    	if (journal != null) {
+    		journal.unload();
+    	}
+    	if (metrics.enabled) {
+    		metrics.time(FactoryMetrics.Operation.UNLOAD, start);
+    	} 
+    	if (checkingTotals) {
+    		verifyTotals();
+    	}
+    	return new UnloadedItems(valueOfUnusedCoins, valueOfPayments, pops, counts);
     }
 }
@@ -0,0 +1,153 @@
+package ca.ucalgary.seng301.myvendingmachine;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fleet of vending machines addressed by ID, each driven by its own
+ * {@link VendingMachineFactory}. The methods mirror those of the factory with
+ * the machine ID added in front, and may be called from any number of
+ * threads. Each machine has its own lock, so operations on different machines
+ * never wait for each other, while operations on the same machine take effect
+ * one at a time in the order they acquire its lock.
+ */
+public class VendingMachineFleet {
+
+	private final AtomicReferenceArray<VendingMachineFactory> machines;
+	private volatile boolean metricsEnabled;
+
+	/**
+	 * @param capacity
+	 *            the number of machine IDs, from 0 to capacity - 1
+	 */
+	public VendingMachineFleet(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("The fleet capacity must be positive.");
+		}
+		machines = new AtomicReferenceArray<VendingMachineFactory>(capacity);
+	}
+
+	public int capacity() {
+		return machines.length();
+	}
+
+	/**
+	 * Constructs the machine with the given ID, replacing it if it already
+	 * exists.
+	 */
+	public void construct(int machineId, List<Integer> coinKinds, int selectionButtonCount) {
+		checkId(machineId);
+		VendingMachineFactory machine = machines.get(machineId);
+		if (machine == null) {
+			machines.compareAndSet(machineId, null, new VendingMachineFactory());
+			machine = machines.get(machineId);								//Whoever won the race made the factory
+		}
+		synchronized (machine) {
+			if (metricsEnabled && !machine.getMetrics().isEnabled()) {
+				machine.setMetrics(new FactoryMetrics(1));
+			}
+			machine.construct(coinKinds, selectionButtonCount);
+		}
+	}
+
+	public void configure(int machineId, List<String> popNames, List<Integer> popCosts) {
+		VendingMachineFactory machine = machine(machineId);
+		synchronized (machine) {
+			machine.configure(popNames, popCosts);
+		}
+	}
+
+	public void load(int machineId, List<Integer> coinCounts, List<Integer> popCounts) {
+		VendingMachineFactory machine = machine(machineId);
+		synchronized (machine) {
+			machine.load(coinCounts, popCounts);
+		}
+	}
+
+	public List<Object> unload(int machineId) {
+		VendingMachineFactory machine = machine(machineId);
+		synchronized (machine) {
+			return machine.unload();
+		}
+	}
+
+	public List<Object> extract(int machineId) {
+		VendingMachineFactory machine = machine(machineId);
+		synchronized (machine) {
+			return new DeliveryChute(machine.extract());					//Another thread's extract reuses the machine's chute
+		}
+	}
+
+	public void insert(int machineId, int value) {
+		VendingMachineFactory machine = machine(machineId);
+		synchronized (machine) {
+			machine.insert(value);
+		}
+	}
+
+	public void press(int machineId, int value) {
+		VendingMachineFactory machine = machine(machineId);
+		synchronized (machine) {
+			machine.press(value);
+		}
+	}
+
+	/**
+	 * Gives every machine in the fleet, including those constructed later, its
+	 * own metrics. Each machine is only driven by one thread at a time, so its
+	 * counters need a single stripe.
+	 */
+	public void enableMetrics() {
+		metricsEnabled = true;
+		for (int i = 0; i < machines.length(); i++) {
+			VendingMachineFactory machine = machines.get(i);
+			if (machine != null) {
+				synchronized (machine) {
+					if (!machine.getMetrics().isEnabled()) {
+						machine.setMetrics(new FactoryMetrics(1));
+					}
+				}
+			}
+		}
+	}
+
+	public FactoryMetrics.Snapshot metricsSnapshot(int machineId) {
+		return machine(machineId).getMetrics().snapshot();
+	}
+
+	/**
+	 * @return the metrics of every machine in the fleet added together
+	 */
+	public FactoryMetrics.Snapshot metricsSnapshot() {
+		FactoryMetrics.Snapshot total = new FactoryMetrics.Snapshot();
+		for (int i = 0; i < machines.length(); i++) {
+			VendingMachineFactory machine = machines.get(i);
+			if (machine != null) {
+				total.add(machine.getMetrics().snapshot());
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * @return whether the machine with the given ID has been constructed
+	 */
+	public boolean contains(int machineId) {
+		return machineId >= 0 && machineId < machines.length() && machines.get(machineId) != null;
+	}
+
+	private VendingMachineFactory machine(int machineId) {
+		checkId(machineId);
+		VendingMachineFactory machine = machines.get(machineId);
+		if (machine == null) {
+			throw new IllegalStateException("Machine " + machineId + " has not been constructed.");
+		}
+		return machine;
+	}
+
+	private void checkId(int machineId) {
+		if (machineId < 0 || machineId >= machines.length()) {
+			throw new IllegalArgumentException("Machine " + machineId + " is not in the fleet.");
+		}
+	}
+}